@@ -0,0 +1,23 @@
+package com.QueueEmulator;
+
+// what a push does when its queue is at (or close to) one of its limits - see
+// QueueService.push(message, queueName, backpressure, waitTime).
+// Limits are the queue's max. message count and byte budget. The bytes of a message are counted from when it is pushed
+// until it is deleted, so only consumers deleting messages make room.
+
+public enum Backpressure {
+    // fail straight away (with QUEUE_FULL) if the queue is full
+    FAIL,
+    // wait up to waitTime for the queue to make room
+    BLOCK,
+    // slow the producer down as the queue fills up: past THROTTLE_THRESHOLD of a limit, each push is delayed, by up to
+    // MAX_THROTTLE_DELAY ms as the queue nears the limit. A full queue is waited on as with BLOCK. The delays count
+    // towards waitTime.
+    THROTTLE;
+
+    // fraction of a limit past which THROTTLE starts delaying pushes
+    static final double THROTTLE_THRESHOLD = 0.8;
+
+    // longest delay THROTTLE puts on a push while the queue isn't full (in milliseconds)
+    static final long MAX_THROTTLE_DELAY = 10;
+}
@@ -1,32 +1,56 @@
 package com.QueueEmulator;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 // class representing an in-file message
 // once a message is read from disk, will be transformed into a FileMessage
 // instance and returned to client.
+// its payload is a read-only slice of the mapped log segment the message was read from - content pushed as a String
+// is only decoded when getMessageContent() is first called.
 
 class FileMessage implements Message {
     private long messageID;
-    private Long receiptHandle;
-    private Object messageContent;
+    // receipt handle issued at the last retrieval - 0 while not in flight (0 is never issued as a handle)
+    private long receiptHandle;
+    private final ByteBuffer payload;
+    private final boolean binary;
+    private String messageContent;
     private long timeCreated;
     private long timeRetrieved;
     private long visibilityTimeoutDuration;
 
-    protected FileMessage(long timeout, Object content) {
+    protected FileMessage(long timeout, ByteBuffer payload, boolean binary) {
         this.visibilityTimeoutDuration = timeout;
-        this.messageContent = content;
-        this.receiptHandle = null;
+        this.payload = payload;
+        this.binary = binary;
+        this.receiptHandle = 0;
         this.timeRetrieved = 0;
-        this.timeCreated = new Date().getTime();
+        this.timeCreated = QueueClock.now();
     }
 
     public Object getMessageContent() {
+        if(this.binary) {
+            return this.payload.duplicate();
+        }
+
+        if(this.messageContent == null) {
+            this.messageContent = StandardCharsets.UTF_8.decode(this.payload.duplicate()).toString();
+        }
+
         return this.messageContent;
     }
 
+    public ByteBuffer getPayload() {
+        return this.payload.duplicate();
+    }
+
     public Long getReceiptHandle() {
+        if(this.receiptHandle == 0) {
+            return null;
+        }
+
         return this.receiptHandle;
     }
 
@@ -34,34 +58,35 @@ class FileMessage implements Message {
         this.messageID = mid;
     }
 
-    protected void setReceiptHandle(Long rh) {
-        if(rh != null) {
-            this.receiptHandle = rh;
-        }
+    protected void setReceiptHandle(long rh) {
+        this.receiptHandle = rh;
     }
 
     protected Long getTimeCreated() {
         return this.timeCreated;
     }
 
+    // for messages read back from a queue's log - the time the message was pushed
+    protected void setTimeCreated(long time) {
+        this.timeCreated = time;
+    }
+
     protected boolean visible() {
+        return this.visible(QueueClock.now());
+    }
+
+    // check visibility against a given time (in ms) - does not change message state
+    protected boolean visible(long now) {
         if(this.timeRetrieved == 0) {
             return true;
         }
 
-        long now = new Date().getTime();
-        if((now - timeRetrieved) < visibilityTimeoutDuration) {
-            return false;
-        }
-
-        this.receiptHandle = null;
-        this.timeRetrieved = 0;
-        return true;
+        return (now - timeRetrieved) >= visibilityTimeoutDuration;
     }
 
     protected boolean retrieve() {
         // set time retrieved to calculate visibility in visible()
-        this.timeRetrieved = new Date().getTime();
+        this.timeRetrieved = QueueClock.now();
         return true;
     }
 
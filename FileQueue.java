@@ -0,0 +1,1304 @@
+package com.QueueEmulator;
+
+import java.util.*;
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Function;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.zip.CRC32C;
+
+// class representing a file-backed message queue, as opened by one process (see the FileQueueService notes for the layout).
+// All access to the queue's files is made holding its QueueLock, which excludes other threads and other processes.
+class FileQueue implements VisibilityTimer.Sweepable, QueueMetrics.Source {
+    // size of the in-flight slot table - a queue's attributes can set a lower limit on messages in flight
+    private static final int MAX_INFLIGHT_MESSAGES = QueueAttributes.MAX_IN_FLIGHT;
+
+    // receipt handles are built the same way as InMemoryQueue's: (delivery sequence << SLOT_BITS) | in-flight slot
+    private static final int SLOT_BITS = 15;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+
+    // offset file layout
+    private static final int OFFSET_READ = 0;           // long: log position of the next message never delivered
+    private static final int OFFSET_TAIL = 8;           // long: log position the next message is appended at
+    private static final int OFFSET_COUNT = 16;         // long: number of messages on the queue (in flight or not)
+    private static final int OFFSET_FIRST_SEGMENT = 24; // long: first segment of the log - those before it have been dropped
+    private static final int OFFSET_FILE_SIZE = 32;
+
+    // index file layout: a header followed by MAX_INFLIGHT_MESSAGES slots
+    private static final int INDEX_MAGIC = 0;           // int: INDEX_MAGIC_VALUE once the index has been set up
+    private static final int INDEX_FREE = 4;            // int: head of the list of free slots
+    private static final int INDEX_INFLIGHT_HEAD = 8;   // int: head/tail of the in-flight list, in order of expiry
+    private static final int INDEX_INFLIGHT_TAIL = 12;
+    private static final int INDEX_RETURNED_HEAD = 16;  // int: head/tail of the list of slots whose timeout ran out
+    private static final int INDEX_RETURNED_TAIL = 20;
+    private static final int INDEX_INFLIGHT_COUNT = 24; // int: number of slots on the in-flight list
+    private static final int INDEX_SEQUENCE = 32;       // long: sequence number of the last delivery
+    private static final int INDEX_HEADER_SIZE = 64;
+    private static final int INDEX_MAGIC_VALUE = 0x51494458;
+
+    // slot layout
+    private static final int SLOT_STATE = 0;            // int: SLOT_FREE, SLOT_INFLIGHT or SLOT_RETURNED
+    private static final int SLOT_NEXT = 4;             // int: next slot on the list the slot is on
+    private static final int SLOT_PREV = 8;             // int: previous slot on the in-flight list
+    private static final int SLOT_POSITION = 16;        // long: log position of the slot's message
+    private static final int SLOT_EXPIRY = 24;          // long: time (in ms) the slot's visibility timeout runs out
+    private static final int SLOT_HANDLE = 32;          // long: receipt handle issued for the slot's message
+    private static final int SLOT_SIZE = 40;
+
+    private static final int SLOT_FREE = 0;
+    private static final int SLOT_INFLIGHT = 1;
+    private static final int SLOT_RETURNED = 2;
+
+    // end of a slot list
+    private static final int NONE = -1;
+
+    // name of this queue on its FileQueueService
+    private final String queueName;
+
+    // attributes of this queue (see QueueAttributes) - replaced if the queue is created again with new ones
+    private volatile QueueAttributes attributes;
+
+    // most log records looked at under one hold of the queue lock when dropping messages past their retention period
+    private static final int MAX_RETENTION_DROP = 10000;
+
+    // message log, offset file and index of this queue
+    private final SegmentLog log;
+    private final MappedByteBuffer offsets;
+    private final MappedByteBuffer index;
+
+    // directory holding this queue's files
+    private final File dir;
+
+    // CRC of the last checkpoint written by this process - a checkpoint that would be the same isn't written again
+    private int checkpointCrc = 0;
+
+    // lock on this queue, shared with every other FileQueue opened on it in this process
+    private final QueueLock queueLock;
+
+    // pushes waiting for the next group commit, and the lock held by the pusher committing them
+    private final ArrayList<PendingPush> pendingPushes = new ArrayList<PendingPush>();
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    // durability of pushes onto this queue, and the background sync of this queue in INTERVAL mode
+    private volatile FileQueueService.Durability durability = FileQueueService.Durability.NONE;
+    private ScheduledFuture<?> syncTask;
+
+    // background compaction and checkpointing of this queue
+    private final ScheduledFuture<?> compactionTask;
+    private final ScheduledFuture<?> checkpointTask;
+
+    // set once this queue is closed in this process - operations on it fail from then on (see lock())
+    private volatile boolean closed = false;
+
+    // log tail as of the last sync
+    private volatile long syncedTail = 0;
+
+    // runs the background syncs of all queues in INTERVAL mode
+    private static final ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FileQueueSync");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // interval between background compactions of a queue (in milliseconds)
+    private static final long COMPACTION_INTERVAL = 10000;
+
+    // a segment whose remaining messages take up less than this fraction of it is compacted by relocating them
+    private static final double RELOCATE_THRESHOLD = 0.25;
+
+    // interval between checkpoints of a queue (in milliseconds)
+    private static final long CHECKPOINT_INTERVAL = 5000;
+
+    // checkpoint file layout: CHECKPOINT_MAGIC, CHECKPOINT_VERSION, the offset file, the index header, the number of
+    // slots in use followed by each one's number and contents (in-flight list, then returned list), and a CRC32C of
+    // all of that. Free slots aren't kept - every slot not in the checkpoint is free.
+    private static final int CHECKPOINT_MAGIC = 0x51434b50;
+    private static final int CHECKPOINT_VERSION = 1;
+
+    // clients may still hold receipt handles issued after the checkpoint a queue is recovered from - the delivery
+    // sequence jumps ahead by this much on recovery, so no handle issued afterwards can match one of those
+    private static final long RECOVERY_SEQUENCE_GAP = 1L << 24;
+
+    // runs the background compaction and checkpointing of all queues
+    private static final ScheduledExecutorService maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "FileQueueMaintenance");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // operations on this queue by this process, recorded by the service
+    protected final QueueMetrics metrics = new QueueMetrics();
+
+    // bytes of log freed, and time spent (in nanoseconds), by compactions of this queue in this process
+    private final AtomicLong reclaimedBytes = new AtomicLong();
+    private final AtomicLong compactionNanos = new AtomicLong();
+
+    // corrupt records this process has dropped from the queue, as pulls came to them
+    private final AtomicLong corruptRecords = new AtomicLong();
+
+    // a push waiting to be group committed
+    private static class PendingPush {
+        private final List<ByteBuffer> payloads;
+        private final byte flags;
+        private final boolean[] results;
+        private boolean committed = false;   // guarded by commitLock
+
+        private PendingPush(List<ByteBuffer> payloads, byte flags) {
+            this.payloads = payloads;
+            this.flags = flags;
+            this.results = new boolean[payloads.size()];
+        }
+    }
+
+    // run after messages have been returned to the queue (by the background sweeper, or changeVisibility()), or
+    // dead-lettered onto it from another queue
+    private final Runnable onExpired;
+
+    // opens queues on the service by name - where the dead-letter queue is looked up when messages are moved to it
+    private final Function<String, FileQueue> queues;
+
+    protected FileQueue(File dir, String queueName, QueueAttributes attributes, Runnable onExpired, Function<String, FileQueue> queues) throws IOException, InterruptedException {
+        this.dir = dir;
+        this.queueName = queueName;
+        this.attributes = attributes;
+        this.onExpired = onExpired;
+        this.queues = queues;
+        this.queueLock = QueueLock.forDirectory(dir);
+        this.log = new SegmentLog(dir);
+
+        // mappings stay valid once their channels are closed - a new file is mapped (and so created) filled with zeros
+        try (FileChannel ch = FileChannel.open(new File(dir, "offset").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.offsets = ch.map(FileChannel.MapMode.READ_WRITE, 0, OFFSET_FILE_SIZE);
+        }
+
+        try (FileChannel ch = FileChannel.open(new File(dir, "index").toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            this.index = ch.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER_SIZE + (long)MAX_INFLIGHT_MESSAGES * SLOT_SIZE);
+        }
+
+        this.queueLock.lock();
+        try {
+            if(!this.validate()) {
+                this.recover();
+            }
+
+            this.writeCheckpoint();
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        // segments dropped before the checkpoint may still be on disk, if their process went down before deleting them
+        this.log.dropBefore((int)this.offsets.getLong(OFFSET_FIRST_SEGMENT));
+
+        VisibilityTimer.register(this);
+        this.compactionTask = maintainer.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.MILLISECONDS);
+        this.checkpointTask = maintainer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL, CHECKPOINT_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    // close this queue in this process: its background compaction, checkpointing and syncing stop, its MBean is
+    // unregistered and, after a last checkpoint, its segment files are closed. the queue stays on disk
+    protected synchronized void close() {
+        if(this.closed) {
+            return;
+        }
+
+        this.compactionTask.cancel(false);
+        this.checkpointTask.cancel(false);
+        if(this.syncTask != null) {
+            this.syncTask.cancel(false);
+            this.syncTask = null;
+        }
+
+        VisibilityTimer.unregister(this);
+        this.metrics.unregister();
+
+        // operations already holding the queue lock finish first - those after it fail
+        boolean locked = this.lock();
+        this.closed = true;
+        try {
+            if(locked) {
+                this.writeCheckpoint();
+            }
+        } catch(IOException e) {
+            System.err.println("Caught IOException while checkpointing queue <" + this.queueName + ">: " + e.getMessage());
+        } finally {
+            this.log.close();
+            if(locked) {
+                this.queueLock.unlock();
+            }
+        }
+    }
+
+    // delete this queue's files, once it is closed - returns false if they couldn't all be deleted. other processes
+    // with the queue open keep the files they have open until they next lock it
+    protected boolean deleteFiles() {
+        boolean deleted = true;
+        try {
+            this.queueLock.lock();
+        } catch(IOException e) {
+            System.err.println("Caught IOException while attempting an access lock on queue <" + this.queueName + ">: " + e.getMessage());
+            return false;
+        } catch(InterruptedException e) {
+            System.err.println("Caught InterruptedException while attempting an access lock on queue <" + this.queueName + ">: " + e.getMessage());
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        try {
+            File[] files = this.dir.listFiles();
+            if(files != null) {
+                for(File f: files) {
+                    deleted &= f.delete();
+                }
+            }
+
+            deleted &= this.dir.delete();
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        // a queue created again in its place is locked through a new lock file
+        QueueLock.release(this.dir);
+        return deleted;
+    }
+
+    protected String getQueueName() {
+        return this.queueName;
+    }
+
+    protected QueueAttributes getAttributes() {
+        return this.attributes;
+    }
+
+    // apply new attributes to this queue - messages already in flight keep the visibility timeout they were received with
+    protected void setAttributes(QueueAttributes attributes) {
+        this.attributes = attributes;
+    }
+
+    // indicate if the queue has reached its max. number of messages (never, unless its attributes set one)
+    protected boolean full() {
+        long max = this.attributes.getMaxMessages();
+        return max > 0 && this.offsets.getLong(OFFSET_COUNT) >= max;
+    }
+
+    // append messages to this queue - results[i] is true if payloads[i] was published (null entries fail).
+    // the push joins the pending group; the first pusher to get hold of commitLock writes the whole group, and every
+    // other pusher in it finds its push already done once it gets the lock in turn.
+    protected boolean[] push(List<ByteBuffer> payloads, boolean binary) {
+        PendingPush push = new PendingPush(payloads, binary ? SegmentLog.FLAG_BINARY : 0);
+        synchronized(this.pendingPushes) {
+            this.pendingPushes.add(push);
+        }
+
+        this.commitLock.lock();
+        try {
+            if(!push.committed) {
+                ArrayList<PendingPush> group;
+                synchronized(this.pendingPushes) {
+                    group = new ArrayList<PendingPush>(this.pendingPushes);
+                    this.pendingPushes.clear();
+                }
+
+                this.commit(group);
+            }
+        } finally {
+            this.commitLock.unlock();
+        }
+
+        return push.results;
+    }
+
+    // write a group of pushes to the log in one append, forcing it to disk first in SYNC mode. if the queue has a max.
+    // number of messages, the pushes past it fail, in the order they joined the group
+    private void commit(List<PendingPush> group) {
+        int count = 0;
+        for(PendingPush push: group) {
+            push.committed = true;
+            for(ByteBuffer payload: push.payloads) {
+                if(payload != null) {
+                    count++;
+                }
+            }
+        }
+
+        if(count == 0 || !this.lock()) {
+            return;
+        }
+
+        boolean sync = (this.durability == FileQueueService.Durability.SYNC);
+        ArrayList<ByteBuffer> valid = new ArrayList<ByteBuffer>(count);
+        try {
+            long max = this.attributes.getMaxMessages();
+            long room = max > 0 ? max - this.offsets.getLong(OFFSET_COUNT) : Long.MAX_VALUE;
+            ByteArrayOutputStream flags = new ByteArrayOutputStream();
+            for(PendingPush push: group) {
+                for(int i = 0; i < push.results.length; i++) {
+                    ByteBuffer payload = push.payloads.get(i);
+                    if(payload != null && valid.size() < room) {
+                        valid.add(payload);
+                        flags.write(push.flags);
+                        push.results[i] = true;     // only stands if the append succeeds
+                    }
+                }
+            }
+
+            if(valid.isEmpty()) {
+                return;
+            }
+
+            long tail = this.log.append(this.offsets.getLong(OFFSET_TAIL), valid, flags.toByteArray(), null);
+            if(sync) {
+                // the log must be on disk before a durable tail can point past it
+                this.log.force(tail);
+            }
+
+            // messages only become visible to consumers once the tail moves past them
+            this.offsets.putLong(OFFSET_TAIL, tail);
+            this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) + valid.size());
+        } catch(IOException e) {
+            System.err.println("Caught IOException while appending to message log of queue <" + this.queueName + ">: " + e.getMessage());
+            for(PendingPush push: group) {
+                Arrays.fill(push.results, false);
+            }
+            return;
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        if(sync && !valid.isEmpty()) {
+            this.offsets.force();
+        }
+    }
+
+    // force the log and offsets of this queue to disk, if anything has been pushed since they last were
+    private void sync() {
+        if(this.closed) {
+            return;
+        }
+
+        long tail = this.offsets.getLong(OFFSET_TAIL);
+        if(tail == this.syncedTail) {
+            return;
+        }
+
+        try {
+            this.log.force(tail);
+            this.offsets.force();
+            this.syncedTail = tail;
+        } catch(IOException e) {
+            System.err.println("Caught IOException while syncing message log of queue <" + this.queueName + ">: " + e.getMessage());
+        }
+    }
+
+    // set the durability of pushes onto this queue (syncInterval is only used in INTERVAL mode)
+    protected synchronized void setDurability(FileQueueService.Durability durability, long syncInterval) {
+        if(this.closed) {
+            return;
+        }
+
+        if(this.syncTask != null) {
+            this.syncTask.cancel(false);
+            this.syncTask = null;
+        }
+
+        this.durability = durability;
+        if(durability == FileQueueService.Durability.INTERVAL) {
+            this.syncTask = syncer.scheduleWithFixedDelay(this::sync, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        } else if(durability == FileQueueService.Durability.SYNC) {
+            this.sync();    // anything pushed before now
+        }
+    }
+
+    // get up to max messages from this queue - redeliveries of messages whose timeout ran out come first,
+    // then messages never delivered, in the order they were pushed. messages past the queue's retention period are
+    // dropped instead of delivered, and messages already received the queue's max receive count times are moved to its
+    // dead-letter queue. a message is appended to the dead-letter queue before its slot is freed here, so a crash in
+    // between leaves it on both queues rather than neither
+    protected List<FileMessage> pull(int max) {
+        ArrayList<FileMessage> messages = new ArrayList<FileMessage>();
+
+        // the dead-letter queue is opened before this queue is locked - its lock is taken inside this one
+        String deadLetterQueue = this.attributes.getDeadLetterQueue();
+        FileQueue target = null;
+        if(deadLetterQueue != null && !deadLetterQueue.equals(this.queueName)) {
+            target = this.queues.apply(deadLetterQueue);
+        }
+
+        if(!this.lock()) {
+            return messages;
+        }
+
+        int deadLettered = 0;
+        try {
+            long now = QueueClock.now();
+            this.expire(now);
+
+            QueueAttributes attributes = this.attributes;
+            long retained = this.retainedSince(now);
+            long tail = this.offsets.getLong(OFFSET_TAIL);
+            while(messages.size() < max && this.index.getInt(INDEX_INFLIGHT_COUNT) < attributes.getMaxInFlight()) {
+                int slot;
+                SegmentLog.Record record;
+
+                int returned = this.index.getInt(INDEX_RETURNED_HEAD);
+                if(returned != NONE) {
+                    slot = returned;
+                    record = this.readReturnedHead(tail);
+                    if(record == null) {
+                        continue;   // corrupt - dropped
+                    }
+
+                    this.index.putInt(INDEX_RETURNED_HEAD, this.getSlotInt(slot, SLOT_NEXT));
+                    if(this.index.getInt(INDEX_RETURNED_HEAD) == NONE) {
+                        this.index.putInt(INDEX_RETURNED_TAIL, NONE);
+                    }
+
+                    if(record.pushedTime < retained) {
+                        this.freeSlot(slot);
+                        this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) - 1);
+                        continue;
+                    }
+
+                    // only a redelivery can have been received before - if the dead-letter queue can't take the
+                    // message (it doesn't exist, or is full), it is delivered instead
+                    if(target != null && attributes.getMaxReceiveCount() > 0 && record.receiveCount >= attributes.getMaxReceiveCount()
+                        && target.push(Collections.singletonList(record.payload.duplicate()), record.binary())[0]) {
+                        this.freeSlot(slot);
+                        this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) - 1);
+                        deadLettered++;
+                        continue;
+                    }
+                } else {
+                    slot = this.index.getInt(INDEX_FREE);
+                    if(slot == NONE) {
+                        break;  // max inflight message limit reached for this queue
+                    }
+
+                    record = this.readUnread(tail);
+                    while(record != null && record.relocated()) {
+                        // a copy compaction made of a message already delivered - it's redelivered through its slot
+                        this.offsets.putLong(OFFSET_READ, record.next);
+                        record = this.readUnread(tail);
+                    }
+                    if(record == null) {
+                        break;  // no more messages on this queue
+                    }
+
+                    this.offsets.putLong(OFFSET_READ, record.next);
+                    if(record.pushedTime < retained) {
+                        this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) - 1);
+                        continue;
+                    }
+
+                    this.index.putInt(INDEX_FREE, this.getSlotInt(slot, SLOT_NEXT));
+                    this.setSlotLong(slot, SLOT_POSITION, record.position);
+                }
+
+                // put the slot in flight, and issue a receipt handle for it
+                long sequence = this.index.getLong(INDEX_SEQUENCE) + 1;
+                this.index.putLong(INDEX_SEQUENCE, sequence);
+                long receiptHandle = (sequence << SLOT_BITS) | slot;
+
+                this.setSlotLong(slot, SLOT_HANDLE, receiptHandle);
+                this.setSlotLong(slot, SLOT_EXPIRY, now + attributes.getVisibilityTimeout());
+                this.setSlotInt(slot, SLOT_STATE, SLOT_INFLIGHT);
+                this.linkInFlight(slot);
+
+                // the receive count lives in the record, so it survives the queue being reopened - if the update fails,
+                // the message stays in flight and comes back once its timeout runs out
+                int receiveCount = record.receiveCount + 1;
+                this.log.updateReceived(record.position, receiveCount, now);
+
+                FileMessage msg = new FileMessage(attributes.getVisibilityTimeout(), record.payload, record.binary());
+                msg.setMessageID(record.position);
+                msg.setTimeCreated(record.pushedTime);
+                msg.setReceiptHandle(receiptHandle);
+                msg.retrieve();
+                messages.add(msg);
+            }
+        } catch(IOException e) {
+            System.err.println("Caught IOException while reading message log of queue <" + this.queueName + ">: " + e.getMessage());
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        if(deadLettered > 0) {
+            target.onExpired.run();
+        }
+
+        return messages;
+    }
+
+    // delete messages from this queue - results[i] is true if receiptHandles[i] matched a message in visibility timeout
+    protected boolean[] delete(List<Long> receiptHandles) {
+        boolean[] results = new boolean[receiptHandles.size()];
+
+        if(!this.lock()) {
+            return results;
+        }
+
+        try {
+            // a message whose timeout has run out can no longer be deleted with its old receipt handle
+            this.expire(QueueClock.now());
+
+            for(int i = 0; i < results.length; i++) {
+                int slot = this.inFlightSlot(receiptHandles.get(i));
+                if(slot == NONE) {
+                    continue;   // stale or unknown receipt handle
+                }
+
+                this.unlinkInFlight(slot);
+                this.freeSlot(slot);
+                this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) - 1);
+                results[i] = true;
+            }
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        return results;
+    }
+
+    // change the visibility timeout of messages in flight on this queue, to a given duration (in ms) counted from now -
+    // a timeout of 0 returns them to the queue straight away. results[i] is true if receiptHandles[i] matched a message
+    // in visibility timeout
+    protected boolean[] changeVisibility(List<Long> receiptHandles, long timeout) {
+        boolean[] results = new boolean[receiptHandles.size()];
+
+        if(!this.lock()) {
+            return results;
+        }
+
+        int returned = 0;
+        try {
+            long now = QueueClock.now();
+            this.expire(now);
+
+            for(int i = 0; i < results.length; i++) {
+                int slot = this.inFlightSlot(receiptHandles.get(i));
+                if(slot == NONE) {
+                    continue;   // stale or unknown receipt handle
+                }
+
+                this.unlinkInFlight(slot);
+                if(timeout == 0) {
+                    this.returnSlot(slot);
+                    returned++;
+                } else {
+                    this.setSlotLong(slot, SLOT_EXPIRY, now + timeout);
+                    this.linkInFlight(slot);
+                }
+                results[i] = true;
+            }
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        if(returned > 0) {
+            this.onExpired.run();
+        }
+
+        return results;
+    }
+
+    // slot of the message in flight a receipt handle was issued for - NONE if the handle is stale or unknown.
+    // must be called with the queue locked
+    private int inFlightSlot(Long receiptHandle) {
+        if(receiptHandle == null || receiptHandle <= 0) {
+            return NONE;
+        }
+
+        int slot = (int)(receiptHandle & SLOT_MASK);
+        if(slot >= MAX_INFLIGHT_MESSAGES || this.getSlotInt(slot, SLOT_STATE) != SLOT_INFLIGHT || this.getSlotLong(slot, SLOT_HANDLE) != receiptHandle) {
+            return NONE;
+        }
+
+        return slot;
+    }
+
+    // read the record at the read offset - null if it is the tail. a corrupt record there is dropped: the read offset
+    // moves on to the next valid record (see SegmentLog.resync()), and whatever was skipped counts as one message.
+    // must be called with the queue locked
+    private SegmentLog.Record readUnread(long tail) throws IOException {
+        while(true) {
+            long position = this.offsets.getLong(OFFSET_READ);
+            try {
+                return this.log.read(position, tail);
+            } catch(SegmentLog.CorruptRecordException e) {
+                long next = this.log.resync(position, tail);
+                this.offsets.putLong(OFFSET_READ, next);
+                this.dropCorrupt(e);
+            }
+        }
+    }
+
+    // read the record of the slot at the head of the returned list. a corrupt record there can't be delivered again,
+    // so its slot is taken off the list and freed, and null returned. must be called with the queue locked
+    private SegmentLog.Record readReturnedHead(long tail) throws IOException {
+        int slot = this.index.getInt(INDEX_RETURNED_HEAD);
+        long position = this.getSlotLong(slot, SLOT_POSITION);
+        try {
+            return this.log.read(position, tail);
+        } catch(SegmentLog.CorruptRecordException e) {
+            int next = this.getSlotInt(slot, SLOT_NEXT);
+            this.index.putInt(INDEX_RETURNED_HEAD, next);
+            if(next == NONE) {
+                this.index.putInt(INDEX_RETURNED_TAIL, NONE);
+            }
+            this.freeSlot(slot);
+            this.dropCorrupt(e);
+            return null;
+        }
+    }
+
+    // count a corrupt message dropped from the queue
+    private void dropCorrupt(IOException e) {
+        this.offsets.putLong(OFFSET_COUNT, Math.max(this.offsets.getLong(OFFSET_COUNT) - 1, 0));
+        this.corruptRecords.incrementAndGet();
+        System.err.println("Dropped corrupt message from queue <" + this.queueName + ">: " + e.getMessage());
+    }
+
+    // push time (in ms) before which messages are past the queue's retention period - Long.MIN_VALUE if it has none
+    private long retainedSince(long now) {
+        long retention = this.attributes.getRetentionPeriod();
+        return retention > 0 ? now - retention : Long.MIN_VALUE;
+    }
+
+    // drop messages past the queue's retention period from the front of the returned list and of the unread log,
+    // under one hold of the queue lock - returns false once there are none left there to drop. messages further back
+    // are dropped as pulls reach them
+    private boolean dropRetained() {
+        if(this.attributes.getRetentionPeriod() == 0 || !this.lock()) {
+            return false;
+        }
+
+        try {
+            long retained = this.retainedSince(QueueClock.now());
+            long tail = this.offsets.getLong(OFFSET_TAIL);
+            int seen = 0;
+
+            int slot = this.index.getInt(INDEX_RETURNED_HEAD);
+            while(slot != NONE && seen < MAX_RETENTION_DROP) {
+                seen++;
+                SegmentLog.Record record = this.readReturnedHead(tail);
+                if(record == null) {
+                    slot = this.index.getInt(INDEX_RETURNED_HEAD);
+                    continue;   // corrupt - dropped
+                }
+
+                if(record.pushedTime >= retained) {
+                    break;
+                }
+
+                int next = this.getSlotInt(slot, SLOT_NEXT);
+                this.index.putInt(INDEX_RETURNED_HEAD, next);
+                if(next == NONE) {
+                    this.index.putInt(INDEX_RETURNED_TAIL, NONE);
+                }
+                this.freeSlot(slot);
+                this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) - 1);
+                slot = next;
+            }
+
+            while(seen < MAX_RETENTION_DROP) {
+                SegmentLog.Record record = this.readUnread(tail);
+                if(record == null || (!record.relocated() && record.pushedTime >= retained)) {
+                    return false;
+                }
+
+                seen++;
+                this.offsets.putLong(OFFSET_READ, record.next);
+                if(!record.relocated()) {
+                    this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) - 1);
+                }
+            }
+
+            return true;
+        } catch(IOException e) {
+            System.err.println("Caught IOException while reading message log of queue <" + this.queueName + ">: " + e.getMessage());
+            return false;
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    // drop segments from the front of the log for as long as they can be - returns the number of bytes freed.
+    // messages past the queue's retention period are dropped first, so the segments they were in can go too
+    protected long compact() {
+        long start = System.nanoTime();
+        long freed = 0;
+
+        while(this.dropRetained()) {
+        }
+
+        // each segment is compacted under its own hold of the queue lock, so pushes and pulls are only held up briefly
+        int dropped = 0;
+        while(this.compactFirstSegment()) {
+            dropped++;
+        }
+
+        // dropped segments are only deleted once a checkpoint no longer refers to them
+        if(dropped > 0 && this.lock()) {
+            int first = (int)this.offsets.getLong(OFFSET_FIRST_SEGMENT);
+            boolean checkpointed = false;
+            try {
+                this.writeCheckpoint();
+                checkpointed = true;
+            } catch(IOException e) {
+                System.err.println("Caught IOException while checkpointing queue <" + this.queueName + ">: " + e.getMessage());
+            } finally {
+                this.queueLock.unlock();
+            }
+
+            if(checkpointed) {
+                freed = this.log.dropBefore(first);
+            }
+        }
+
+        this.reclaimedBytes.addAndGet(freed);
+        this.compactionNanos.addAndGet(System.nanoTime() - start);
+        return freed;
+    }
+
+    // bytes of log freed by compactions of this queue in this process
+    protected long getReclaimedBytes() {
+        return this.reclaimedBytes.get();
+    }
+
+    // number of corrupt records this process has dropped from this queue
+    protected long getCorruptRecordCount() {
+        return this.corruptRecords.get();
+    }
+
+    // time spent compacting this queue in this process (in milliseconds)
+    protected long getCompactionTime() {
+        return this.compactionNanos.get() / 1000000;
+    }
+
+    // drop the first segment of the log, relocating the messages left in it if there are few enough of them -
+    // returns false if the segment can't be dropped yet. the segment's file is left for compact() to delete
+    private boolean compactFirstSegment() {
+        if(!this.lock()) {
+            return false;
+        }
+
+        try {
+            int segment = (int)this.offsets.getLong(OFFSET_FIRST_SEGMENT);
+            long tail = this.offsets.getLong(OFFSET_TAIL);
+            if(segment >= SegmentLog.segmentOf(this.offsets.getLong(OFFSET_READ))) {
+                return false;   // still being read from
+            }
+
+            // slots whose messages are still in this segment
+            ArrayList<Integer> slots = new ArrayList<Integer>();
+            this.collectSlots(this.index.getInt(INDEX_INFLIGHT_HEAD), segment, slots);
+            this.collectSlots(this.index.getInt(INDEX_RETURNED_HEAD), segment, slots);
+
+            if(!slots.isEmpty()) {
+                ArrayList<SegmentLog.Record> records = new ArrayList<SegmentLog.Record>(slots.size());
+                long live = 0;
+                for(int slot: slots) {
+                    SegmentLog.Record record = this.log.read(this.getSlotLong(slot, SLOT_POSITION), tail);
+                    records.add(record);
+                    live += record.next - record.position;
+                }
+
+                if(live > this.log.segmentSize(segment) * RELOCATE_THRESHOLD) {
+                    return false;   // mostly live - wait for more of it to be deleted
+                }
+
+                long[] positions = new long[records.size()];
+                tail = this.log.relocate(tail, records, positions);
+                for(int i = 0; i < positions.length; i++) {
+                    this.setSlotLong(slots.get(i), SLOT_POSITION, positions[i]);
+                }
+                this.offsets.putLong(OFFSET_TAIL, tail);
+            }
+
+            this.offsets.putLong(OFFSET_FIRST_SEGMENT, segment + 1);
+            return true;
+        } catch(IOException e) {
+            System.err.println("Caught IOException while compacting message log of queue <" + this.queueName + ">: " + e.getMessage());
+            return false;
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    // checkpoint this queue in the background
+    private void checkpoint() {
+        if(!this.lock()) {
+            return;
+        }
+
+        try {
+            this.writeCheckpoint();
+        } catch(IOException e) {
+            System.err.println("Caught IOException while checkpointing queue <" + this.queueName + ">: " + e.getMessage());
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    // write a checkpoint of this queue's offsets and index, unless nothing has changed since the last one. the log is
+    // forced up to the checkpoint's tail first, so a checkpoint never refers to records that aren't on disk.
+    // must be called with the queue locked (a checkpoint is small: in-use slots only)
+    private void writeCheckpoint() throws IOException {
+        ArrayList<Integer> slots = new ArrayList<Integer>();
+        for(int slot = this.index.getInt(INDEX_INFLIGHT_HEAD); slot != NONE; slot = this.getSlotInt(slot, SLOT_NEXT)) {
+            slots.add(slot);
+        }
+        for(int slot = this.index.getInt(INDEX_RETURNED_HEAD); slot != NONE; slot = this.getSlotInt(slot, SLOT_NEXT)) {
+            slots.add(slot);
+        }
+
+        ByteBuffer cp = ByteBuffer.allocate(12 + OFFSET_FILE_SIZE + INDEX_HEADER_SIZE + slots.size() * (4 + SLOT_SIZE) + 4);
+        cp.putInt(CHECKPOINT_MAGIC);
+        cp.putInt(CHECKPOINT_VERSION);
+        cp.put(cp.position(), this.offsets, 0, OFFSET_FILE_SIZE).position(cp.position() + OFFSET_FILE_SIZE);
+        cp.put(cp.position(), this.index, 0, INDEX_HEADER_SIZE).position(cp.position() + INDEX_HEADER_SIZE);
+        cp.putInt(slots.size());
+        for(int slot: slots) {
+            cp.putInt(slot);
+            cp.put(cp.position(), this.index, INDEX_HEADER_SIZE + slot * SLOT_SIZE, SLOT_SIZE).position(cp.position() + SLOT_SIZE);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(cp.array(), 0, cp.position());
+        int checksum = (int)crc.getValue();
+        if(checksum == this.checkpointCrc) {
+            return;
+        }
+
+        cp.putInt(checksum);
+        cp.flip();
+
+        this.log.force(this.offsets.getLong(OFFSET_TAIL));
+
+        // written aside and renamed into place, so there's always a whole checkpoint to recover from
+        File tmp = new File(this.dir, "checkpoint.tmp");
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(cp.hasRemaining()) {
+                ch.write(cp);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp.toPath(), new File(this.dir, "checkpoint").toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        this.checkpointCrc = checksum;
+    }
+
+    // read this queue's last checkpoint - null if there isn't a whole one
+    private ByteBuffer readCheckpoint() {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(new File(this.dir, "checkpoint").toPath());
+        } catch(IOException e) {
+            return null;
+        }
+
+        if(bytes.length < 12 + OFFSET_FILE_SIZE + INDEX_HEADER_SIZE + 4) {
+            return null;
+        }
+
+        ByteBuffer cp = ByteBuffer.wrap(bytes);
+        CRC32C crc = new CRC32C();
+        crc.update(bytes, 0, bytes.length - 4);
+        if(cp.getInt(0) != CHECKPOINT_MAGIC || cp.getInt(4) != CHECKPOINT_VERSION || (int)crc.getValue() != cp.getInt(bytes.length - 4)) {
+            return null;
+        }
+
+        return cp;
+    }
+
+    // check this queue's offsets and index are consistent with each other and with the log - they always are, unless
+    // the machine went down with some of their pages unwritten. only the log written since the last checkpoint is
+    // read, so this takes the same time however long the queue is. must be called with the queue locked
+    private boolean validate() {
+        if(this.index.getInt(INDEX_MAGIC) != INDEX_MAGIC_VALUE) {
+            return false;
+        }
+
+        long read = this.offsets.getLong(OFFSET_READ);
+        long tail = this.offsets.getLong(OFFSET_TAIL);
+        long first = SegmentLog.position((int)this.offsets.getLong(OFFSET_FIRST_SEGMENT), 0);
+        if(read < first || read > tail) {
+            return false;
+        }
+
+        int inFlight = this.walk(INDEX_INFLIGHT_HEAD, INDEX_INFLIGHT_TAIL, SLOT_INFLIGHT, true);
+        int returned = this.walk(INDEX_RETURNED_HEAD, INDEX_RETURNED_TAIL, SLOT_RETURNED, false);
+        int free = this.walk(INDEX_FREE, -1, SLOT_FREE, false);
+        if(inFlight < 0 || returned < 0 || free < 0 || inFlight != this.index.getInt(INDEX_INFLIGHT_COUNT)
+            || inFlight + returned + free != MAX_INFLIGHT_MESSAGES) {
+            return false;
+        }
+
+        // the log must hold whole records from the checkpoint's tail right up to this tail, with the read offset on one
+        ByteBuffer cp = this.readCheckpoint();
+        long p = (cp == null) ? first : Math.max(first, cp.getLong(8 + OFFSET_TAIL));
+        boolean readChecked = (read <= p);
+        while(p < tail) {
+            SegmentLog.Record record = this.log.readRecovering(p);
+            if(record == null) {
+                // a corrupt record with valid ones after it is dropped once a pull comes to it (see readUnread()) - only
+                // a log with no valid record left before the tail, as after a torn write, needs recovering. segment
+                // files missing or cut short can't be searched (that would create them)
+                if(this.log.segmentSize(SegmentLog.segmentOf(p)) <= SegmentLog.offsetOf(p)
+                    || this.log.segmentSize(SegmentLog.segmentOf(tail)) < SegmentLog.offsetOf(tail)) {
+                    return false;
+                }
+
+                long next;
+                try {
+                    next = this.log.resync(p, tail);
+                } catch(IOException e) {
+                    return false;
+                }
+
+                if(next >= tail) {
+                    return false;
+                }
+
+                readChecked |= (read == p);
+                p = next;
+                continue;
+            }
+
+            readChecked |= (read == p || read == record.position);
+            p = record.next;
+        }
+
+        return p == tail && (readChecked || read == tail);
+    }
+
+    // walk a slot list, checking its slots are in the given state (and linked back, if the list is) - returns its
+    // length, or -1 if it's broken
+    private int walk(int headField, int tailField, int state, boolean linkedBack) {
+        int length = 0;
+        int prev = NONE;
+        for(int slot = this.index.getInt(headField); slot != NONE; slot = this.getSlotInt(slot, SLOT_NEXT)) {
+            if(slot < 0 || slot >= MAX_INFLIGHT_MESSAGES || ++length > MAX_INFLIGHT_MESSAGES || this.getSlotInt(slot, SLOT_STATE) != state
+                || (linkedBack && this.getSlotInt(slot, SLOT_PREV) != prev)) {
+                return -1;
+            }
+
+            prev = slot;
+        }
+
+        if(tailField >= 0 && this.index.getInt(tailField) != prev) {
+            return -1;
+        }
+
+        return length;
+    }
+
+    // rebuild this queue's offsets and index from its last checkpoint, then replay the log written after it. without a
+    // checkpoint, the whole log is replayed and every message in it is taken to be undelivered.
+    // deliveries and deletes made after the checkpoint are lost, so their messages are delivered again.
+    // must be called with the queue locked
+    private void recover() {
+        ByteBuffer cp = this.readCheckpoint();
+        if(cp != null) {
+            this.offsets.put(0, cp, 8, OFFSET_FILE_SIZE);
+            this.index.put(0, cp, 8 + OFFSET_FILE_SIZE, INDEX_HEADER_SIZE);
+
+            cp.position(8 + OFFSET_FILE_SIZE + INDEX_HEADER_SIZE);
+            int count = cp.getInt();
+            boolean[] used = new boolean[MAX_INFLIGHT_MESSAGES];
+            for(int i = 0; i < count; i++) {
+                int slot = cp.getInt();
+                this.index.put(INDEX_HEADER_SIZE + slot * SLOT_SIZE, cp, cp.position(), SLOT_SIZE);
+                cp.position(cp.position() + SLOT_SIZE);
+                used[slot] = true;
+            }
+
+            // every other slot is free
+            int free = NONE;
+            for(int slot = MAX_INFLIGHT_MESSAGES - 1; slot >= 0; slot--) {
+                if(!used[slot]) {
+                    this.setSlotInt(slot, SLOT_STATE, SLOT_FREE);
+                    this.setSlotInt(slot, SLOT_NEXT, free);
+                    free = slot;
+                }
+            }
+
+            this.index.putInt(INDEX_FREE, free);
+            this.index.putLong(INDEX_SEQUENCE, this.index.getLong(INDEX_SEQUENCE) + RECOVERY_SEQUENCE_GAP);
+        } else {
+            for(int slot = 0; slot < MAX_INFLIGHT_MESSAGES; slot++) {
+                this.setSlotInt(slot, SLOT_STATE, SLOT_FREE);
+                this.setSlotInt(slot, SLOT_NEXT, (slot + 1 < MAX_INFLIGHT_MESSAGES) ? slot + 1 : NONE);
+            }
+
+            this.index.putInt(INDEX_FREE, 0);
+            this.index.putInt(INDEX_INFLIGHT_HEAD, NONE);
+            this.index.putInt(INDEX_INFLIGHT_TAIL, NONE);
+            this.index.putInt(INDEX_RETURNED_HEAD, NONE);
+            this.index.putInt(INDEX_RETURNED_TAIL, NONE);
+            this.index.putInt(INDEX_INFLIGHT_COUNT, 0);
+            this.index.putLong(INDEX_SEQUENCE, this.index.getLong(INDEX_SEQUENCE) + RECOVERY_SEQUENCE_GAP);
+            this.index.putInt(INDEX_MAGIC, INDEX_MAGIC_VALUE);
+
+            long first = SegmentLog.position(this.log.firstSegmentOnDisk(), 0);
+            this.offsets.putLong(OFFSET_FIRST_SEGMENT, SegmentLog.segmentOf(first));
+            this.offsets.putLong(OFFSET_READ, first);
+            this.offsets.putLong(OFFSET_TAIL, first);
+            this.offsets.putLong(OFFSET_COUNT, 0);
+        }
+
+        // replay the log up to where its whole records end
+        long tail = this.offsets.getLong(OFFSET_TAIL);
+        int replayed = 0;
+        SegmentLog.Record record;
+        while((record = this.log.readRecovering(tail)) != null) {
+            if(!record.relocated()) {
+                replayed++;
+            }
+
+            tail = record.next;
+        }
+
+        this.offsets.putLong(OFFSET_TAIL, tail);
+        this.offsets.putLong(OFFSET_COUNT, this.offsets.getLong(OFFSET_COUNT) + replayed);
+        if(cp != null || tail != 0) {
+            System.err.println("Recovered queue <" + this.queueName + "> from " + ((cp != null) ? "its last checkpoint" : "its log") + ", replaying " + replayed + " messages");
+        }
+    }
+
+    // add the slots on a list whose messages are in a given segment
+    private void collectSlots(int head, int segment, List<Integer> slots) {
+        for(int slot = head; slot != NONE; slot = this.getSlotInt(slot, SLOT_NEXT)) {
+            if(SegmentLog.segmentOf(this.getSlotLong(slot, SLOT_POSITION)) == segment) {
+                slots.add(slot);
+            }
+        }
+    }
+
+    // snapshot of this queue's metrics
+    public QueueStats stats() {
+        if(!this.lock()) {
+            long total = this.offsets.getLong(OFFSET_COUNT);
+            long inFlight = this.index.getInt(INDEX_INFLIGHT_COUNT);
+            return this.metrics.snapshot(this.queueName, total - inFlight, inFlight, total, 0);
+        }
+
+        try {
+            long now = QueueClock.now();
+            this.expire(now);
+
+            long total = this.offsets.getLong(OFFSET_COUNT);
+            long inFlight = this.index.getInt(INDEX_INFLIGHT_COUNT);
+
+            // the oldest visible message is either the first redelivery, or the next message never delivered
+            long oldest = now;
+            long tail = this.offsets.getLong(OFFSET_TAIL);
+            try {
+                int returned = this.index.getInt(INDEX_RETURNED_HEAD);
+                if(returned != NONE) {
+                    SegmentLog.Record record = this.log.read(this.getSlotLong(returned, SLOT_POSITION), tail);
+                    if(record != null) {
+                        oldest = Math.min(oldest, record.pushedTime);
+                    }
+                }
+
+                SegmentLog.Record record = this.log.read(this.offsets.getLong(OFFSET_READ), tail);
+                while(record != null && record.relocated()) {
+                    record = this.log.read(record.next, tail);
+                }
+                if(record != null) {
+                    oldest = Math.min(oldest, record.pushedTime);
+                }
+            } catch(IOException e) {
+                System.err.println("Caught IOException while reading message log of queue <" + this.queueName + ">: " + e.getMessage());
+            }
+
+            return this.metrics.snapshot(this.queueName, total - inFlight, inFlight, total, Math.max(now - oldest, 0));
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    // return number of messages on this queue (in flight or not)
+    protected long getMessageCount() {
+        return this.offsets.getLong(OFFSET_COUNT);
+    }
+
+    // return number of messages in visibility timeout on this queue
+    protected long getInFlightCount() {
+        if(!this.lock()) {
+            return this.index.getInt(INDEX_INFLIGHT_COUNT);
+        }
+
+        try {
+            this.expire(QueueClock.now());
+            return this.index.getInt(INDEX_INFLIGHT_COUNT);
+        } finally {
+            this.queueLock.unlock();
+        }
+    }
+
+    // expire in-flight messages on behalf of the visibility timer's background sweeper -
+    // skipped if the queue is busy, as every operation on the queue expires messages itself
+    public void expire() {
+        if(this.closed) {
+            return;
+        }
+
+        // racy look at the head of the in-flight list, to avoid locking queues with nothing to expire
+        int head = this.index.getInt(INDEX_INFLIGHT_HEAD);
+        if(head == NONE || head >= MAX_INFLIGHT_MESSAGES || this.getSlotLong(head, SLOT_EXPIRY) > QueueClock.now()) {
+            return;
+        }
+
+        if(!this.queueLock.tryLock()) {
+            return;
+        }
+
+        int expired = 0;
+        try {
+            expired = this.expire(QueueClock.now());
+        } finally {
+            this.queueLock.unlock();
+        }
+
+        if(expired > 0) {
+            this.onExpired.run();
+        }
+    }
+
+    // move slots whose visibility timeout has run out from the in-flight list to the returned list - returns how many
+    // were moved. must be called with the queue locked
+    private int expire(long now) {
+        int expired = 0;
+
+        int slot = this.index.getInt(INDEX_INFLIGHT_HEAD);
+        while(slot != NONE && this.getSlotLong(slot, SLOT_EXPIRY) <= now) {
+            int next = this.getSlotInt(slot, SLOT_NEXT);
+            this.unlinkInFlight(slot);
+            this.returnSlot(slot);
+
+            expired++;
+            slot = next;
+        }
+
+        this.metrics.expired(expired);
+        return expired;
+    }
+
+    // append a slot (off every list) to the returned list
+    private void returnSlot(int slot) {
+        this.setSlotInt(slot, SLOT_STATE, SLOT_RETURNED);
+        this.setSlotInt(slot, SLOT_NEXT, NONE);
+        int returnedTail = this.index.getInt(INDEX_RETURNED_TAIL);
+        if(returnedTail == NONE) {
+            this.index.putInt(INDEX_RETURNED_HEAD, slot);
+        } else {
+            this.setSlotInt(returnedTail, SLOT_NEXT, slot);
+        }
+        this.index.putInt(INDEX_RETURNED_TAIL, slot);
+    }
+
+    // put a slot (off every list) back on the free list
+    private void freeSlot(int slot) {
+        this.setSlotInt(slot, SLOT_STATE, SLOT_FREE);
+        this.setSlotInt(slot, SLOT_NEXT, this.index.getInt(INDEX_FREE));
+        this.index.putInt(INDEX_FREE, slot);
+    }
+
+    // insert a slot into the in-flight list, keeping the list in expiry order. the insert point is looked for from the
+    // tail: a message just received, or whose timeout was extended, usually expires after everything already in flight
+    private void linkInFlight(int slot) {
+        long expiry = this.getSlotLong(slot, SLOT_EXPIRY);
+        int prev = this.index.getInt(INDEX_INFLIGHT_TAIL);
+        while(prev != NONE && this.getSlotLong(prev, SLOT_EXPIRY) > expiry) {
+            prev = this.getSlotInt(prev, SLOT_PREV);
+        }
+
+        int next = (prev == NONE) ? this.index.getInt(INDEX_INFLIGHT_HEAD) : this.getSlotInt(prev, SLOT_NEXT);
+        this.setSlotInt(slot, SLOT_PREV, prev);
+        this.setSlotInt(slot, SLOT_NEXT, next);
+        if(prev == NONE) {
+            this.index.putInt(INDEX_INFLIGHT_HEAD, slot);
+        } else {
+            this.setSlotInt(prev, SLOT_NEXT, slot);
+        }
+
+        if(next == NONE) {
+            this.index.putInt(INDEX_INFLIGHT_TAIL, slot);
+        } else {
+            this.setSlotInt(next, SLOT_PREV, slot);
+        }
+
+        this.index.putInt(INDEX_INFLIGHT_COUNT, this.index.getInt(INDEX_INFLIGHT_COUNT) + 1);
+    }
+
+    // remove a slot from the in-flight list
+    private void unlinkInFlight(int slot) {
+        int prev = this.getSlotInt(slot, SLOT_PREV);
+        int next = this.getSlotInt(slot, SLOT_NEXT);
+
+        if(prev == NONE) {
+            this.index.putInt(INDEX_INFLIGHT_HEAD, next);
+        } else {
+            this.setSlotInt(prev, SLOT_NEXT, next);
+        }
+
+        if(next == NONE) {
+            this.index.putInt(INDEX_INFLIGHT_TAIL, prev);
+        } else {
+            this.setSlotInt(next, SLOT_PREV, prev);
+        }
+
+        this.index.putInt(INDEX_INFLIGHT_COUNT, this.index.getInt(INDEX_INFLIGHT_COUNT) - 1);
+    }
+
+    private int getSlotInt(int slot, int field) {
+        return this.index.getInt(INDEX_HEADER_SIZE + slot * SLOT_SIZE + field);
+    }
+
+    private void setSlotInt(int slot, int field, int value) {
+        this.index.putInt(INDEX_HEADER_SIZE + slot * SLOT_SIZE + field, value);
+    }
+
+    private long getSlotLong(int slot, int field) {
+        return this.index.getLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + field);
+    }
+
+    private void setSlotLong(int slot, int field, long value) {
+        this.index.putLong(INDEX_HEADER_SIZE + slot * SLOT_SIZE + field, value);
+    }
+
+    // obtain access lock on this queue - returns false (having reported why) if it couldn't be obtained
+    private boolean lock() {
+        if(this.closed) {
+            return false;
+        }
+
+        try {
+            this.queueLock.lock();
+            if(this.closed) {
+                this.queueLock.unlock();
+                return false;
+            }
+
+            // let go of segments another process has dropped
+            int first = (int)this.offsets.getLong(OFFSET_FIRST_SEGMENT);
+            if(first > this.log.firstSegment()) {
+                this.log.closeBefore(first);
+            }
+
+            return true;
+        } catch(IOException e) {
+            System.err.println("Caught IOException while attempting an access lock on queue <" + this.queueName + ">: " + e.getMessage());
+        } catch(InterruptedException e) {
+            System.err.println("Caught InterruptedException while attempting an access lock on queue <" + this.queueName + ">: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        }
+
+        return false;
+    }
+}
@@ -2,12 +2,50 @@ package com.QueueEmulator;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 
 // FileQueueService implements a filesystem-based message queue service (based on the QueueService interface)
+//
+// Each queue is a directory under the service root, holding:
+// - segment files ("00000000000000000000.log", ...): an append-only log of checksummed binary message records (see SegmentLog)
+// - "offset": the consumer read offset (position of the next message never delivered), the log tail, the message count
+//   and the first segment of the log
+// - "index": the ack/visibility index - a fixed table of in-flight slots, linked into a list ordered by visibility
+//   timeout expiry, plus the list of messages whose timeout ran out and are waiting to be redelivered
+// - ".lock": the file the queue's cross-process lock is held on (see QueueLock)
+// - "attributes": the queue's attributes, if it was created with any (see QueueAttributes) - read when a process opens
+//   the queue
+// The offset and index files are memory-mapped, so every process using the queue shares them, and all changes to a
+// queue are made under its lock. Pull and delete touch a fixed number of index slots and read at most one record, so
+// they take the same time however long the log gets.
+//
+// Segments before the one being read from only hold messages that have been deleted, or are in flight or waiting to
+// be redelivered. A background compactor drops them from the front of the log once no message in them is left -
+// or once what's left is a small part of the segment, by copying it to the tail first.
+//
+// How durable a push is when it returns is chosen per queue (see Durability). Concurrent pushes onto a queue are
+// group committed: whichever pusher gets to the queue first writes every push waiting behind it as well, in one log
+// write and (in SYNC mode) one force to disk, so a busy queue pays for a sync per group rather than per message.
+//
+// The asynchronous forms of push, pull and delete hand their requests to the queue's I/O stage (see FileQueueStage), a
+// thread per queue which batches them into queue operations. Callers never block, and asynchronous long polls wait on
+// the stage rather than holding a thread each.
 
 public class FileQueueService implements QueueService {
 
+  // durability of pushes onto a queue
+  public enum Durability {
+    // pushes are written to the OS but never forced to disk - they survive the process crashing, not the machine
+    NONE,
+    // written pushes are forced to disk every syncInterval ms - at most that much is lost if the machine goes down
+    INTERVAL,
+    // a push returns once it is on disk
+    SYNC
+  }
+
   // FileQueueService attributes
 
   // queueServiceRoot is the filesystem root directory for storing queues of this service
@@ -17,8 +55,8 @@ public class FileQueueService implements QueueService {
   // and ending with only the queue root folder name with no following '/'
   private String queueServiceRoot;
 
-  // default visibility timeout for a message on a queue on this service (in milliseconds)
-  private static final long MESSAGE_TIMEOUT = 5000;
+  // largest message content a queue takes (in bytes) - as SQS
+  public static final int MAX_MESSAGE_BYTES = 256 * 1024;
 
   // max. number of queues provided by service
   private long MAX_QUEUES = 60;
@@ -26,9 +64,45 @@ public class FileQueueService implements QueueService {
   // max. length of the String queue name
   private long MAX_QUEUENAME_LEN = 80;
 
+  // long polling consumers wait on this for changes to a queue directory, made by this or any other process.
+  // created on the first long poll, as it keeps a background thread.
+  private FileQueueWatcher watcher;
+
+  // longest a long polling consumer waits before checking its queue again without being woken up -
+  // covers visibility timeouts running out in other processes, which don't touch the queue directory
+  private static final long WAIT_RECHECK_INTERVAL = 1000;
+
+  // durability of pushes onto queues of this service, unless set per queue with setDurability()
+  private Durability durability = Durability.NONE;
+
+  // interval between syncs of queues in INTERVAL mode (in milliseconds)
+  private long syncInterval = DEFAULT_SYNC_INTERVAL;
+  private static final long DEFAULT_SYNC_INTERVAL = 100;
+
+  // number of this service in this process, which names its queues' MBeans
+  private final int serviceNumber = QueueMetrics.nextServiceNumber();
+
+  // queues of this service opened by this process, by queue name
+  private ConcurrentHashMap<String,FileQueue> queues = new ConcurrentHashMap<String,FileQueue>();
+
+  // I/O stages of queues used asynchronously, by queue name - started on the first asynchronous call on the queue
+  private ConcurrentHashMap<String,FileQueueStage> stages = new ConcurrentHashMap<String,FileQueueStage>();
+
 
   // Constructor
   public FileQueueService(String qsr) {
+    this(qsr, Durability.NONE, DEFAULT_SYNC_INTERVAL);
+  }
+
+  // Constructor - pushes onto queues of this service are made durable as given (syncInterval is only used in INTERVAL mode)
+  public FileQueueService(String qsr, Durability durability, long syncInterval) {
+    if(durability == null || syncInterval <= 0) {
+      throw new IllegalArgumentException("FileQueueService durability must be given, with a positive sync interval.");
+    }
+
+    this.durability = durability;
+    this.syncInterval = syncInterval;
+
     if(qsr != null || !qsr.trim().equals("")) {
       // TODO: validate qsr contains a valid full pathname e.g. '/var/local/queues'
 
@@ -48,19 +122,57 @@ public class FileQueueService implements QueueService {
     } else {
       throw new IllegalArgumentException("FileQueueService root cannot be null or empty.");
     }
+
+    this.openQueues();
   }
 
-  // Create a new message queue on this service: returns true if successful 
-  public synchronized boolean createQueue(String queueName) {
+  // open the queues already under the root - in parallel, as opening a queue may mean recovering it (see FileQueue)
+  private void openQueues() {
+    File[] dirs = new File(this.queueServiceRoot).listFiles(File::isDirectory);
+    if(dirs == null || dirs.length == 0) {
+      return;
+    }
+
+    ExecutorService pool = Executors.newFixedThreadPool(Math.min(dirs.length, Runtime.getRuntime().availableProcessors()));
+    for(File dir: dirs) {
+      pool.execute(() -> this.getQueue(dir.getName()));
+    }
+
+    pool.shutdown();
+    try {
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch(InterruptedException e) {
+      // queues not opened yet are opened on first use instead
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // Create a new message queue on this service: returns true if successful. an existing queue keeps its attributes
+  public boolean createQueue(String queueName) {
+    return this.createQueue(queueName, null);
+  }
+
+  // Create a new message queue on this service with given attributes (see QueueAttributes) - null leaves an existing
+  // queue's attributes as they are. returns true if successful.
+  // Creating an existing queue with attributes replaces its attributes: this process applies them straight away, other
+  // processes once they next open the queue.
+  public synchronized boolean createQueue(String queueName, QueueAttributes attributes) {
     // basic validation
     if(queueName == null || queueName.trim().equals("") || (queueName.trim().length() > this.MAX_QUEUENAME_LEN)) {
       // invalid queuename
       return false;
     }
 
+    if(attributes != null && !attributes.valid()) {
+      return false;
+    }
+
     // check current pool size on this service and create queue if there's space
     if(this.queueCount() < MAX_QUEUES) {
       queueName = queueName.trim();
+      if(attributes != null && this.redrivesTo(attributes.getDeadLetterQueue(), queueName)) {
+        return false;   // the queue would be its own dead-letter queue
+      }
       
       // check if queue exists and if not, create
       File f = new File(this.queueServiceRoot + "/" + queueName);
@@ -70,6 +182,20 @@ public class FileQueueService implements QueueService {
 
       }
 
+      if(attributes != null) {
+        try {
+          attributes.store(new File(f, "attributes"));
+        } catch(IOException e) {
+          System.err.println("Caught IOException while writing attributes of queue <" + queueName + ">: " + e.getMessage());
+          return false;
+        }
+
+        FileQueue queue = this.queues.get(queueName);
+        if(queue != null) {
+          queue.setAttributes(new QueueAttributes(attributes));
+        }
+      }
+
       return true;
     }
 
@@ -77,99 +203,716 @@ public class FileQueueService implements QueueService {
     return false;
   }
 
+  // indicate if messages dead-lettered to a given queue would end up on a specified queue, following the redrive
+  // policies of the queues on the way (as this process applies them, or as their attributes files give them).
+  // dead-lettering nests queue locks in redrive order, so redrive policies can't loop
+  private boolean redrivesTo(String deadLetterQueue, String queueName) {
+    HashSet<String> seen = new HashSet<String>();
+    while(deadLetterQueue != null && seen.add(deadLetterQueue)) {
+      if(deadLetterQueue.equals(queueName)) {
+        return true;
+      }
+
+      FileQueue next = this.queues.get(deadLetterQueue);
+      try {
+        QueueAttributes attributes = (next != null) ? next.getAttributes() : QueueAttributes.load(new File(this.queueServiceRoot + "/" + deadLetterQueue, "attributes"));
+        deadLetterQueue = attributes.getDeadLetterQueue();
+      } catch(IOException e) {
+        deadLetterQueue = null;    // unreadable attributes - the queue won't be opened, so nothing is dead-lettered past it
+      }
+    }
+
+    return false;
+  }
+
   // Push a message with given content onto a specified queue - returns true if message published successfully
   // For this implementation, all messages have String contents
-  public synchronized boolean push(String messageContent, String queueName) {
-    // TODO: check for max. message size
-    if(queueName == null || queueName.trim().equals("") || messageContent == null || messageContent.trim().equals("")) {
-      return false;
+  public boolean push(String messageContent, String queueName) {
+    return this.pushBatch(Collections.singletonList(messageContent), queueName)[0];
+  }
+
+  // Push a message with given content onto a specified queue - returns the outcome. file queues are only bounded by
+  // disk space and their max. messages attribute (see QueueAttributes), so pushes never wait and backpressure doesn't apply
+  public PushStatus push(String messageContent, String queueName, Backpressure backpressure, long waitTime) {
+    if(messageContent == null || messageContent.trim().equals("")) {
+      return PushStatus.INVALID_MESSAGE;
     }
 
-    // check if queue with given name exists
-    File f = new File(this.queueServiceRoot + "/" + queueName);
-    
-    if(f.isDirectory()) {
-      // obtain lock on queue
-      File lockFile = new File(this.queueServiceRoot + "/" + queueName + "/.lock");
-      try {        
-        this.lock(lockFile); 
+    return this.push(ByteBuffer.wrap(messageContent.getBytes(StandardCharsets.UTF_8)), false, queueName);
+  }
+
+  // Push a message with binary content onto a specified queue - returns the outcome (backpressure doesn't apply, as above)
+  public PushStatus pushPayload(ByteBuffer payload, String queueName, Backpressure backpressure, long waitTime) {
+    if(payload == null || !payload.hasRemaining()) {
+      return PushStatus.INVALID_MESSAGE;
+    }
+
+    return this.push(payload.duplicate(), true, queueName);
+  }
+
+  // push one message's bytes onto a specified queue
+  private PushStatus push(ByteBuffer payload, boolean binary, String queueName) {
+    if(payload.remaining() > MAX_MESSAGE_BYTES) {
+      return PushStatus.MESSAGE_TOO_LARGE;
+    }
+
+    if(queueName == null || queueName.trim().equals("")) {
+      return PushStatus.NO_SUCH_QUEUE;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue == null) {
+      return PushStatus.NO_SUCH_QUEUE;
+    }
+
+    if(queue.full()) {
+      return PushStatus.QUEUE_FULL;
+    }
+
+    long start = System.nanoTime();
+    boolean result = queue.push(Collections.singletonList(payload), binary)[0];
+    queue.metrics.pushed(result ? 1 : 0, System.nanoTime() - start);
+
+    // consumers long polling in this process don't need to wait for the file system event
+    if(this.watcher != null) {
+      this.watcher.signal(queue.getQueueName());
+    }
+
+    if(result) {
+      return PushStatus.OK;
+    }
+
+    return queue.full() ? PushStatus.QUEUE_FULL : PushStatus.FAILED;
+  }
+
+  // Push a batch of messages onto a specified queue - results[i] is true if messageContents[i] was published.
+  // The whole batch is appended to the queue's log under one queue lock, in one write per segment.
+  public boolean[] pushBatch(List<String> messageContents, String queueName) {
+    boolean[] results = new boolean[messageContents == null ? 0 : messageContents.size()];
+
+    if(queueName == null || queueName.trim().equals("") || results.length == 0) {
+      return results;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue == null) {
+      return results;   // failed: no such queue exists
+    }
+
+    // invalid entries (and those over MAX_MESSAGE_BYTES) fail on their own, as a null payload, without failing the rest of the batch
+    ArrayList<ByteBuffer> payloads = new ArrayList<ByteBuffer>(results.length);
+    for(String messageContent: messageContents) {
+      if(messageContent == null || messageContent.trim().equals("")) {
+        payloads.add(null);
+      } else {
+        byte[] bytes = messageContent.getBytes(StandardCharsets.UTF_8);
+        payloads.add(bytes.length > MAX_MESSAGE_BYTES ? null : ByteBuffer.wrap(bytes));
+      }
+    }
+
+    long start = System.nanoTime();
+    results = queue.push(payloads, false);
+    queue.metrics.pushed(QueueMetrics.count(results), System.nanoTime() - start);
+
+    // consumers long polling in this process don't need to wait for the file system event
+    if(this.watcher != null) {
+      this.watcher.signal(queue.getQueueName());
+    }
+
+    return results;
+  }
+
+  // Push a message with binary content onto a specified queue - returns true if message published successfully.
+  // the bytes go straight from the caller's buffer into the log write (the buffer itself is left as it was), and are
+  // pulled back as a read-only slice of the mapped log segment rather than a copy
+  public boolean pushPayload(ByteBuffer payload, String queueName) {
+    return this.pushPayload(payload, queueName, Backpressure.FAIL, 0) == PushStatus.OK;
+  }
+
+  // receive message from specified queue
+  public Message pull(String queueName) {
+    List<Message> messages = this.pull(queueName, 1);
+    if(messages.isEmpty()) {
+      return null;
+    }
+
+    return messages.get(0);
+  }
+
+  // receive up to maxMessages messages from specified queue, under a single queue lock
+  public List<Message> pull(String queueName, int maxMessages) {
+    if(queueName == null || queueName.trim().equals("") || maxMessages < 1) {
+      return new ArrayList<Message>();
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      long start = System.nanoTime();
+      List<Message> messages = new ArrayList<Message>(queue.pull(maxMessages));
+      queue.metrics.pulled(messages.size(), System.nanoTime() - start);
+      return messages;
+    }
+
+    return new ArrayList<Message>();
+  }
+
+  // receive up to maxMessages messages from specified queue, waiting up to waitTime (in milliseconds) for one to become visible.
+  // Waiting consumers are woken by changes to the queue directory, so a push from another JVM wakes them as well.
+  public List<Message> pull(String queueName, int maxMessages, long waitTime) {
+    if(waitTime <= 0 || queueName == null || queueName.trim().equals("") || maxMessages < 1) {
+      return this.pull(queueName, maxMessages);
+    }
+
+    queueName = queueName.trim();
+    FileQueue queue = this.getQueue(queueName);
+    if(queue == null) {
+      return new ArrayList<Message>();
+    }
+
+    List<Message> messages = new ArrayList<Message>(queue.pull(maxMessages));
+    if(messages.isEmpty()) {
+      messages = this.awaitMessages(queue, queueName, maxMessages, waitTime);
+    }
+
+    // a long poll takes as long as it waits - its time isn't recorded
+    queue.metrics.pulled(messages.size(), -1);
+    return messages;
+  }
+
+  // receive up to maxMessages messages from a queue that had none visible, waiting up to waitTime (in milliseconds) for one
+  private List<Message> awaitMessages(FileQueue queue, String queueName, int maxMessages, long waitTime) {
+    List<Message> messages = new ArrayList<Message>();
+    long deadline = System.currentTimeMillis() + waitTime;
+
+    FileQueueWatcher w;
+    try {
+      w = this.getWatcher();
+    } catch(IOException e) {
+      System.err.println("Caught IOException while starting file watcher for queue <" + queueName + ">: " + e.getMessage());
+      return messages;
+    }
+
+    while(messages.isEmpty()) {
+      long remaining = deadline - System.currentTimeMillis();
+      if(remaining <= 0 || this.queues.get(queueName) != queue) {
+        break;    // the wait ran out, or the queue was deleted or closed meanwhile
+      }
+
+      // take the change count before pulling again, so a push landing between the pull and the wait is not missed
+      long changes = w.changes(queueName);
+      messages = new ArrayList<Message>(queue.pull(maxMessages));
+      if(!messages.isEmpty()) {
+        break;
+      }
+
+      try {
+        w.await(this.queueServiceRoot + "/" + queueName, queueName, changes, Math.min(remaining, WAIT_RECHECK_INTERVAL));
       } catch(InterruptedException e) {
-        System.err.println("Caught InterruptedException while attempting an access lock on queue <" + queueName + ">: " + e.getMessage());
-        return false;
+        Thread.currentThread().interrupt();
+        break;
       }
+    }
+
+    return messages;
+  }
+
+  // Push a message onto a specified queue without blocking - completes with true once the message is published.
+  // the push is made by the queue's I/O stage, in one log write with the other pushes queued on the stage meanwhile
+  public CompletableFuture<Boolean> pushAsync(String messageContent, String queueName) {
+    if(queueName == null || queueName.trim().equals("") || messageContent == null || messageContent.trim().equals("")) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    byte[] bytes = messageContent.getBytes(StandardCharsets.UTF_8);
+    FileQueueStage stage = this.getStage(queueName);
+    if(stage == null || bytes.length > MAX_MESSAGE_BYTES) {
+      return CompletableFuture.completedFuture(false);    // failed: no such queue exists, or the message is too large
+    }
+
+    return stage.push(ByteBuffer.wrap(bytes));
+  }
+
+  // Receive up to maxMessages messages from specified queue without blocking, waiting up to waitTime (in milliseconds) for
+  // one to become visible. while it waits, the pull is parked on the queue's I/O stage and doesn't hold a thread
+  public CompletableFuture<List<Message>> pullAsync(String queueName, int maxMessages, long waitTime) {
+    if(queueName == null || queueName.trim().equals("") || maxMessages < 1) {
+      return CompletableFuture.completedFuture(new ArrayList<Message>());
+    }
+
+    FileQueueStage stage = this.getStage(queueName);
+    if(stage == null) {
+      return CompletableFuture.completedFuture(new ArrayList<Message>());
+    }
+
+    return stage.pull(maxMessages, Math.max(waitTime, 0));
+  }
+
+  // Delete a received message from a specified queue without blocking - completes with true if the message was deleted
+  public CompletableFuture<Boolean> deleteAsync(Long receiptHandle, String queueName) {
+    if(queueName == null || queueName.trim().equals("") || receiptHandle == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    FileQueueStage stage = this.getStage(queueName);
+    if(stage == null) {
+      return CompletableFuture.completedFuture(false);
+    }
+
+    return stage.delete(receiptHandle);
+  }
+
+  // return the I/O stage of a queue of this service, starting it on first use - null if there's no such queue
+  private FileQueueStage getStage(String queueName) {
+    FileQueueStage stage = this.stages.get(queueName.trim());
+    if(stage != null) {
+      return stage;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue == null) {
+      return null;
+    }
 
-      // Messages on the messages file have are recorded one per line with format "last_retrieved_time, message_content"
-      String message = 0 + ", " + messageContent + "\n";
-      try (PrintWriter pw = new PrintWriter(new FileWriter(this.queueServiceRoot + "/" + queueName + "/messages", true))) {  // append
-        pw.println(message);
-        
+    return this.stages.computeIfAbsent(queue.getQueueName(), name -> {
+      FileQueueStage started = new FileQueueStage(queue, () -> {
+        // consumers long polling in this process (including the stage's own) don't need to wait for the file system event
+        if(watcher != null) {
+          watcher.signal(name);
+        }
+      });
+
+      // parked long polls are retried on every change the watcher sees or is signalled
+      try {
+        this.getWatcher().listen(this.queueServiceRoot + "/" + name, name, started::wake);
       } catch(IOException e) {
-        System.err.println("Caught IOException while opening message store for queue <" + queueName + ">: " + e.getMessage());
-        return false;
-      } finally {
-        unlock(lockFile);
+        // parked long polls fall back to re-checking the queue at an interval
+        System.err.println("Caught IOException while starting file watcher for queue <" + name + ">: " + e.getMessage());
       }
 
-      return false;   // failed: queue full
+      return started;
+    });
+  }
+
+  // set the durability of pushes onto a given queue by this process - returns false if there's no such queue
+  public boolean setDurability(String queueName, Durability durability, long syncInterval) {
+    if(queueName == null || queueName.trim().equals("") || durability == null || syncInterval <= 0) {
+      return false;
     }
 
-    return false;   // failed: no such queue exists
+    FileQueue queue = this.getQueue(queueName);
+    if(queue == null) {
+      return false;
+    }
+
+    queue.setDurability(durability, syncInterval);
+    return true;
   }
 
-  // receive message from specified queue
-  public synchronized Message pull(String queueName) {
+  // delete a queue of this service - its files are deleted, along with any messages on it. asynchronous requests on
+  // the queue still waiting complete as if they had failed, and long polls still waiting come back empty.
+  // other processes with the queue open keep using the files they have open until they next lock it
+  public synchronized boolean deleteQueue(String queueName) {
     if(queueName == null || queueName.trim().equals("")) {
-      return null;
+      return false;
     }
 
+    FileQueue queue = this.getQueue(queueName);
+    if(queue == null) {
+      // no such queue
+      return false;
+    }
+
+    this.close(queue);
+    return queue.deleteFiles();
+  }
+
+  // close this service: the queues it has open in this process are closed (see FileQueue.close()) and the threads it
+  // started are stopped. asynchronous requests and long polls still waiting complete as on deleteQueue(). the queues
+  // stay on disk, for a service opened on the same root to carry on with (using this service again opens them again)
+  public synchronized void close() {
+    for(FileQueue queue: this.queues.values()) {
+      this.close(queue);
+    }
+
+    if(this.watcher != null) {
+      this.watcher.close();
+      this.watcher = null;
+    }
+  }
+
+  // close a queue of this service in this process - its I/O stage is stopped first, so it has finished with the queue
+  private void close(FileQueue queue) {
+    String name = queue.getQueueName();
+    this.queues.remove(name);
+
+    FileQueueStage stage = this.stages.remove(name);
+    if(stage != null) {
+      stage.stop();
+    }
+
+    if(this.watcher != null) {
+      this.watcher.unlisten(name);
+    }
+
+    queue.close();
+  }
+
+  // return the watcher used by long polling consumers, starting it on first use
+  private synchronized FileQueueWatcher getWatcher() throws IOException {
+    if(this.watcher == null) {
+      this.watcher = new FileQueueWatcher();
+    }
+
+    return this.watcher;
+  }
+
+  // return an open queue of this service by name, opening it on first use - null if there's no such queue
+  private FileQueue getQueue(String queueName) {
     queueName = queueName.trim();
-    
-    // check if queue with given name exists
-    File f = new File(this.queueServiceRoot + "/" + queueName);
-
-    if(f.isDirectory()) {
-      // obtain lock on queue
-      File lockFile = new File(this.queueServiceRoot + "/" + queueName + "/.lock");
-      try {        
-        this.lock(lockFile); 
+
+    FileQueue queue = this.queues.get(queueName);
+    if(queue != null) {
+      return queue;
+    }
+
+    File dir = new File(this.queueServiceRoot + "/" + queueName);
+    if(!dir.isDirectory()) {
+      return null;    // no such queue
+    }
+
+    // only opens of the same queue wait for each other
+    return this.queues.computeIfAbsent(queueName, name -> {
+      try {
+        QueueAttributes attributes = QueueAttributes.load(new File(dir, "attributes"));
+        FileQueue opened = new FileQueue(dir, name, attributes, new Runnable() {
+          public void run() {
+            // messages came out of visibility timeout, or were dead-lettered onto the queue - wake up consumers long
+            // polling in this process
+            if(watcher != null) {
+              watcher.signal(name);
+            }
+          }
+        }, this::getQueue);
+        opened.setDurability(this.durability, this.syncInterval);
+        opened.metrics.register("FileQueueService", this.serviceNumber, name, opened);
+        return opened;
+      } catch(IOException e) {
+        System.err.println("Caught IOException while opening queue <" + name + ">: " + e.getMessage());
       } catch(InterruptedException e) {
-        System.err.println("Caught InterruptedException while attempting an access lock on queue <" + queueName + ">: " + e.getMessage());
-        return null;
+        System.err.println("Caught InterruptedException while attempting an access lock on queue <" + name + ">: " + e.getMessage());
+        Thread.currentThread().interrupt();
       }
 
-      // read next-up message, return, unlock queue
+      return null;
+    });
+  }
+
+  // delete received message from a specified queue
+  public void delete(Long receiptHandle, String queueName) {
+    if(queueName == null || queueName.trim().equals("") || receiptHandle == null) {
+      return;
+    }
+
+    this.deleteBatch(Collections.singletonList(receiptHandle), queueName);
+  }
+
+  // delete a batch of received messages from a specified queue - results[i] is true if receiptHandles[i]
+  // matched a message in visibility timeout, which was then deleted
+  public boolean[] deleteBatch(List<Long> receiptHandles, String queueName) {
+    boolean[] results = new boolean[receiptHandles == null ? 0 : receiptHandles.size()];
+    if(queueName == null || queueName.trim().equals("") || results.length == 0) {
+      return results;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      long start = System.nanoTime();
+      results = queue.delete(receiptHandles);
+      queue.metrics.deleted(QueueMetrics.count(results), System.nanoTime() - start);
+    }
+
+    return results;
+  }
+
+  // change the visibility timeout of a received message on a specified queue - see QueueService.changeVisibility()
+  public boolean changeVisibility(Long receiptHandle, String queueName, long timeout) {
+    return this.changeVisibilityBatch(Collections.singletonList(receiptHandle), queueName, timeout)[0];
+  }
 
-      return null;   // failed: queue full
+  // change the visibility timeout of a batch of received messages on a specified queue, under one queue lock -
+  // results[i] is true if receiptHandles[i] matched a message in visibility timeout
+  public boolean[] changeVisibilityBatch(List<Long> receiptHandles, String queueName, long timeout) {
+    boolean[] results = new boolean[receiptHandles == null ? 0 : receiptHandles.size()];
+    if(queueName == null || queueName.trim().equals("") || results.length == 0 || timeout < 0 || timeout > QueueAttributes.MAX_VISIBILITY_TIMEOUT) {
+      return results;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      results = queue.changeVisibility(receiptHandles, timeout);
+    }
+
+    return results;
+  }
+
+  // return a copy of the attributes of a given queue, as this process applies them - null if there's no such queue
+  public QueueAttributes getQueueAttributes(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return null;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return new QueueAttributes(queue.getAttributes());
     }
 
     return null;
   }
 
-  // obtain access lock on a given queue
-  private synchronized void lock(File lock) throws InterruptedException {
-    while (!lock.mkdir()) {
-      Thread.sleep(50);
+  // get number of messages on a given queue (in flight or not) - -1 if there's no such queue
+  public long getQueueMessageCount(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.getMessageCount();
     }
+
+    return -1;
   }
 
-  // release access lock on a given queue
-  private synchronized void unlock(File lock) {
-    lock.delete();
+  // return a snapshot of the metrics of a given queue - null if there's no such queue. operation counts and latencies
+  // cover this process only, while message counts are those of the queue itself
+  public QueueStats getQueueStats(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return null;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.stats();
+    }
+
+    return null;
   }
-  
 
-  // delete received message from a specified queue
-  public synchronized void delete(Long receiptHandle, String queueName) {
+  // get number of messages in visibility timeout on a given queue - -1 if there's no such queue
+  public long getInFlightCount(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.getInFlightCount();
+    }
+
+    return -1;
+  }
+
+  // compact a given queue now, rather than waiting for the background compactor - returns the number of bytes
+  // freed, or -1 if there's no such queue
+  public long compact(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.compact();
+    }
+
+    return -1;
+  }
+
+  // get number of bytes freed by compactions of a given queue in this process - -1 if there's no such queue
+  public long getReclaimedBytes(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.getReclaimedBytes();
+    }
+
+    return -1;
+  }
+
+  // get number of corrupt records dropped from a given queue by this process - -1 if there's no such queue.
+  // a record that fails its checksum can't be delivered, so pulls skip over it to the next valid record
+  public long getCorruptRecordCount(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.getCorruptRecordCount();
+    }
 
-    return;
+    return -1;
+  }
+
+  // get time spent compacting a given queue in this process (in milliseconds) - -1 if there's no such queue
+  public long getCompactionTime(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    FileQueue queue = this.getQueue(queueName);
+    if(queue != null) {
+      return queue.getCompactionTime();
+    }
+
+    return -1;
   }
 
   public synchronized long queueCount() {
     try {
-      return Files.find(Paths.get("/tmp"), 1, (path, attributes) -> attributes.isDirectory()).count() - 1;
+      return Files.find(Paths.get(this.queueServiceRoot), 1, (path, attributes) -> attributes.isDirectory()).count() - 1;
     } catch(IOException e) {
       return -1;
     }
     
   }
-}
\ No newline at end of file
+}
+
+// watches queue directories of a FileQueueService for changes (e.g. a message file being appended to, by any process)
+// and wakes up long polling consumers of that queue. One watch service and one daemon thread serve all queues.
+class FileQueueWatcher implements Runnable {
+    private final WatchService watchService;
+
+    // per-queue change counters - consumers wait on the counter object of their queue, and compare the count
+    // against the one they took before checking the queue, so a change made in between is never missed
+    private final ConcurrentHashMap<String,long[]> queueChanges = new ConcurrentHashMap<String,long[]>();
+
+    // queue directories registered with the watch service, mapped to queue names
+    private final ConcurrentHashMap<WatchKey,String> watchedQueues = new ConcurrentHashMap<WatchKey,String>();
+
+    // listeners run on every change to their queue, by queue name (see FileQueueStage)
+    private final ConcurrentHashMap<String,Runnable> listeners = new ConcurrentHashMap<String,Runnable>();
+
+    protected FileQueueWatcher() throws IOException {
+        this.watchService = FileSystems.getDefault().newWatchService();
+
+        Thread t = new Thread(this, "FileQueueWatcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // current change count for a queue
+    protected long changes(String queueName) {
+        long[] counter = this.counter(queueName);
+        synchronized(counter) {
+            return counter[0];
+        }
+    }
+
+    // wait up to waitTime (in ms) for the change count of a queue to move past seen
+    protected void await(String queueDir, String queueName, long seen, long waitTime) throws InterruptedException {
+        this.watch(queueDir, queueName);
+
+        long[] counter = this.counter(queueName);
+        long deadline = System.currentTimeMillis() + waitTime;
+        synchronized(counter) {
+            long remaining = waitTime;
+            while(counter[0] == seen && remaining > 0) {
+                counter.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+        }
+    }
+
+    // record a change on a queue and wake up its waiting consumers
+    protected void signal(String queueName) {
+        long[] counter = this.counter(queueName);
+        synchronized(counter) {
+            counter[0]++;
+            counter.notifyAll();
+        }
+
+        Runnable listener = this.listeners.get(queueName);
+        if(listener != null) {
+            listener.run();
+        }
+    }
+
+    // start watching a queue directory, and run a listener on every change to the queue from then on - the listener
+    // runs on the thread signalling the change, so it must not block
+    protected void listen(String queueDir, String queueName, Runnable listener) {
+        this.listeners.put(queueName, listener);
+        this.watch(queueDir, queueName);
+    }
+
+    // stop watching a deleted or closed queue - its consumers still waiting are woken, to find it gone
+    protected void unlisten(String queueName) {
+        this.listeners.remove(queueName);
+        for(Map.Entry<WatchKey,String> watched: this.watchedQueues.entrySet()) {
+            if(watched.getValue().equals(queueName)) {
+                watched.getKey().cancel();
+                this.watchedQueues.remove(watched.getKey());
+            }
+        }
+
+        this.signal(queueName);
+    }
+
+    // stop watching altogether - the watcher thread exits
+    protected void close() {
+        try {
+            this.watchService.close();
+        } catch(IOException e) {
+            // nothing left to do with it
+        }
+    }
+
+    private long[] counter(String queueName) {
+        long[] counter = this.queueChanges.get(queueName);
+        if(counter == null) {
+            this.queueChanges.putIfAbsent(queueName, new long[1]);
+            counter = this.queueChanges.get(queueName);
+        }
+
+        return counter;
+    }
+
+    // start watching a queue directory, if not watched already
+    private void watch(String queueDir, String queueName) {
+        if(this.watchedQueues.containsValue(queueName)) {
+            return;
+        }
+
+        try {
+            WatchKey key = Paths.get(queueDir).register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            this.watchedQueues.put(key, queueName);
+        } catch(IOException e) {
+            // waiting consumers fall back to re-checking the queue at an interval
+            System.err.println("Caught IOException while watching queue <" + queueName + ">: " + e.getMessage());
+        }
+    }
+
+    public void run() {
+        while(true) {
+            WatchKey key;
+            try {
+                key = this.watchService.take();
+            } catch(InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            key.pollEvents();
+            String queueName = this.watchedQueues.get(key);
+            if(queueName != null) {
+                this.signal(queueName);
+            }
+
+            if(!key.reset()) {
+                // queue directory is gone
+                this.watchedQueues.remove(key);
+            }
+        }
+    }
+}
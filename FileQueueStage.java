@@ -0,0 +1,361 @@
+package com.QueueEmulator;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// FileQueueStage carries out the asynchronous pushes, pulls and deletes on one file-backed queue (see
+// FileQueueService.pushAsync() etc.) on a dedicated I/O thread, so callers never block on the queue lock, a log write
+// or a sync.
+// Callers only put a request on the stage's request queue. The stage thread takes every request queued since it last
+// looked and carries them out in the order they were made, merging each run of requests of the same kind into one
+// queue operation: a run of pushes is one group-committed log write, a run of pulls one pass over the queue and a run
+// of deletes one batch delete. The busier the queue, the more requests share each queue lock.
+// Long polls that find no message are parked on the stage instead of holding a thread, and retried whenever the queue
+// changes - a push through the stage, or a change signalled by the service's file watcher (a push by another thread
+// or process, or messages coming out of visibility timeout) - and at least every RECHECK_INTERVAL.
+// Results are completed on the stage thread.
+// Once the stage is stopped (the queue is deleted or closed), requests it hasn't carried out complete as if they had
+// failed - pushes and deletes with false, pulls empty - as do parked long polls and any request made afterwards.
+
+class FileQueueStage implements Runnable {
+    // longest a parked long poll goes without its queue being checked again, in case a change wasn't signalled (see
+    // FileQueueService.WAIT_RECHECK_INTERVAL)
+    private static final long RECHECK_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    // most requests taken off the request queue in one pass
+    private static final int MAX_DRAIN = 1024;
+
+    // request kinds
+    private static final int PUSH = 0;
+    private static final int PULL = 1;
+    private static final int DELETE = 2;
+    private static final int WAKE = 3;      // the queue has changed - retry parked long polls
+    private static final int STOP = 4;      // the stage is stopped - no further requests are carried out
+
+    private static class Request {
+        private final int kind;
+        private final long created = System.nanoTime();
+        private final ByteBuffer payload;                       // PUSH: null if the message is invalid
+        private final Long receiptHandle;                       // DELETE
+        private final int max;                                  // PULL: most messages to receive
+        private final long deadline;                            // PULL: System.nanoTime() the wait runs out at
+        private final boolean longPoll;                         // PULL: may be parked waiting for a message
+        private final CompletableFuture<Boolean> completed;     // PUSH, DELETE
+        private final CompletableFuture<List<Message>> received;// PULL
+
+        private Request(int kind, ByteBuffer payload, Long receiptHandle, int max, long waitTime) {
+            this.kind = kind;
+            this.payload = payload;
+            this.receiptHandle = receiptHandle;
+            this.max = max;
+            this.deadline = this.created + TimeUnit.MILLISECONDS.toNanos(waitTime);
+            this.longPoll = waitTime > 0;
+            this.completed = kind == PUSH || kind == DELETE ? new CompletableFuture<Boolean>() : null;
+            this.received = kind == PULL ? new CompletableFuture<List<Message>>() : null;
+        }
+
+        // complete as if the request had failed
+        private void abandon() {
+            if(this.completed != null) {
+                this.completed.complete(false);
+            } else if(this.received != null) {
+                this.received.complete(new ArrayList<Message>());
+            }
+        }
+
+        private void fail(Throwable e) {
+            if(this.completed != null) {
+                this.completed.completeExceptionally(e);
+            } else if(this.received != null) {
+                this.received.completeExceptionally(e);
+            }
+        }
+    }
+
+    private static final Request WAKE_REQUEST = new Request(WAKE, null, null, 0, 0);
+    private static final Request STOP_REQUEST = new Request(STOP, null, null, 0, 0);
+
+    private final FileQueue queue;
+
+    // run after each run of pushes - wakes consumers of the queue long polling in this process
+    private final Runnable onPush;
+
+    private final LinkedBlockingQueue<Request> requests = new LinkedBlockingQueue<Request>();
+
+    // long polls waiting for a message, in the order they were made - only touched by the stage thread
+    private final ArrayList<Request> parked = new ArrayList<Request>();
+    private long lastCheck = System.nanoTime();
+
+    // set while a WAKE request is queued, so a burst of changes queues one
+    private final AtomicBoolean wakePending = new AtomicBoolean();
+
+    // set by stop()
+    private volatile boolean stopped = false;
+
+    private final Thread thread;
+
+    protected FileQueueStage(FileQueue queue, Runnable onPush) {
+        this.queue = queue;
+        this.onPush = onPush;
+
+        this.thread = new Thread(this, "FileQueueStage-" + queue.getQueueName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    // push a message (null if invalid) - completes with true once it is published
+    protected CompletableFuture<Boolean> push(ByteBuffer payload) {
+        Request request = new Request(PUSH, payload, null, 0, 0);
+        this.submit(request);
+        return request.completed;
+    }
+
+    // receive up to max messages, waiting up to waitTime (in ms) for one to become visible
+    protected CompletableFuture<List<Message>> pull(int max, long waitTime) {
+        Request request = new Request(PULL, null, null, max, waitTime);
+        this.submit(request);
+        return request.received;
+    }
+
+    // delete a received message - completes with true if it was deleted
+    protected CompletableFuture<Boolean> delete(Long receiptHandle) {
+        Request request = new Request(DELETE, null, receiptHandle, 0, 0);
+        this.submit(request);
+        return request.completed;
+    }
+
+    // stop the stage, waiting for the stage thread to finish the requests it is carrying out (unless called on it)
+    protected void stop() {
+        this.stopped = true;
+        this.requests.add(STOP_REQUEST);
+
+        if(Thread.currentThread() != this.thread) {
+            try {
+                this.thread.join();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // queue a request - once the stage is stopped, whoever sees it queued abandons it (the stage thread may be gone)
+    private void submit(Request request) {
+        this.requests.add(request);
+        if(this.stopped) {
+            this.abandonQueued();
+        }
+    }
+
+    private void abandonQueued() {
+        ArrayList<Request> queued = new ArrayList<Request>();
+        this.requests.drainTo(queued);
+        for(Request request: queued) {
+            request.abandon();
+        }
+    }
+
+    // the queue has changed - retry parked long polls. cheap enough to call on every change
+    protected void wake() {
+        if(this.wakePending.compareAndSet(false, true)) {
+            this.requests.add(WAKE_REQUEST);
+        }
+    }
+
+    public void run() {
+        ArrayList<Request> batch = new ArrayList<Request>();
+        while(true) {
+            try {
+                Request first;
+                if(this.parked.isEmpty()) {
+                    first = this.requests.take();
+                } else {
+                    first = this.requests.poll(this.nextTimeout(), TimeUnit.NANOSECONDS);
+                }
+
+                if(first != null) {
+                    batch.add(first);
+                    this.requests.drainTo(batch, MAX_DRAIN - 1);
+                }
+            } catch(InterruptedException e) {
+                return;
+            }
+
+            if(this.stopped) {
+                for(Request request: batch) {
+                    request.abandon();
+                }
+
+                for(Request request: this.parked) {
+                    request.abandon();
+                }
+
+                this.parked.clear();
+                this.abandonQueued();
+                return;
+            }
+
+            boolean changed = this.process(batch);
+            batch.clear();
+
+            if(!this.parked.isEmpty()) {
+                this.serveParked(changed);
+            }
+        }
+    }
+
+    // carry out a batch of requests in order, a run of the same kind at a time - returns true if the queue may have
+    // gained visible messages
+    private boolean process(List<Request> batch) {
+        boolean changed = false;
+        int i = 0;
+        while(i < batch.size()) {
+            int kind = batch.get(i).kind;
+            int j = i + 1;
+            while(j < batch.size() && batch.get(j).kind == kind) {
+                j++;
+            }
+
+            List<Request> run = batch.subList(i, j);
+            try {
+                if(kind == PUSH) {
+                    this.push(run);
+                    changed = true;
+                } else if(kind == PULL) {
+                    this.pull(run);
+                } else if(kind == DELETE) {
+                    this.delete(run);
+                } else {
+                    this.wakePending.set(false);
+                    changed = true;
+                }
+            } catch(RuntimeException e) {
+                System.err.println("Caught " + e.getClass().getSimpleName() + " while serving requests on queue <" + this.queue.getQueueName() + ">: " + e.getMessage());
+                for(Request request: run) {
+                    request.fail(e);
+                }
+            }
+
+            i = j;
+        }
+
+        return changed;
+    }
+
+    private void push(List<Request> run) {
+        ArrayList<ByteBuffer> payloads = new ArrayList<ByteBuffer>(run.size());
+        for(Request request: run) {
+            payloads.add(request.payload);
+        }
+
+        boolean[] results = this.queue.push(payloads, false);
+        long now = System.nanoTime();
+        for(int i = 0; i < results.length; i++) {
+            Request request = run.get(i);
+            this.queue.metrics.pushed(results[i] ? 1 : 0, now - request.created);
+            request.completed.complete(results[i]);
+        }
+
+        this.onPush.run();
+    }
+
+    private void delete(List<Request> run) {
+        ArrayList<Long> receiptHandles = new ArrayList<Long>(run.size());
+        for(Request request: run) {
+            receiptHandles.add(request.receiptHandle);
+        }
+
+        boolean[] results = this.queue.delete(receiptHandles);
+        long now = System.nanoTime();
+        for(int i = 0; i < results.length; i++) {
+            Request request = run.get(i);
+            this.queue.metrics.deleted(results[i] ? 1 : 0, now - request.created);
+            request.completed.complete(results[i]);
+        }
+    }
+
+    // new pulls: those left without a message are parked if they long poll, otherwise complete empty
+    private void pull(List<Request> run) {
+        for(Request request: this.receive(run)) {
+            if(request.longPoll) {
+                this.parked.add(request);
+            } else {
+                this.complete(request, new ArrayList<Message>());
+            }
+        }
+    }
+
+    // retry parked long polls if the queue has changed or hasn't been checked for RECHECK_INTERVAL, then complete
+    // those whose wait has run out
+    private void serveParked(boolean changed) {
+        long now = System.nanoTime();
+        if(changed || now - this.lastCheck >= RECHECK_INTERVAL) {
+            this.lastCheck = now;
+            try {
+                List<Request> unserved = this.receive(this.parked);
+                this.parked.clear();
+                this.parked.addAll(unserved);
+            } catch(RuntimeException e) {
+                System.err.println("Caught " + e.getClass().getSimpleName() + " while serving requests on queue <" + this.queue.getQueueName() + ">: " + e.getMessage());
+                for(Request request: this.parked) {
+                    request.fail(e);
+                }
+
+                this.parked.clear();
+                return;
+            }
+        }
+
+        Iterator<Request> it = this.parked.iterator();
+        while(it.hasNext()) {
+            Request request = it.next();
+            if(request.deadline - now <= 0) {
+                it.remove();
+                this.complete(request, new ArrayList<Message>());
+            }
+        }
+    }
+
+    // pull for a run of pull requests in one pass over the queue, handing the messages out in request order - returns
+    // the requests left without a message
+    private List<Request> receive(List<Request> pulls) {
+        long total = 0;
+        for(Request request: pulls) {
+            total += request.max;
+        }
+
+        List<FileMessage> messages = this.queue.pull((int)Math.min(total, Integer.MAX_VALUE));
+        ArrayList<Request> unserved = new ArrayList<Request>();
+        int next = 0;
+        for(Request request: pulls) {
+            if(next == messages.size()) {
+                unserved.add(request);
+                continue;
+            }
+
+            int end = Math.min(next + request.max, messages.size());
+            this.complete(request, new ArrayList<Message>(messages.subList(next, end)));
+            next = end;
+        }
+
+        return unserved;
+    }
+
+    // a long poll takes as long as it waits - its time isn't recorded (as for FileQueueService.pull())
+    private void complete(Request request, List<Message> messages) {
+        this.queue.metrics.pulled(messages.size(), request.longPoll ? -1 : System.nanoTime() - request.created);
+        request.received.complete(messages);
+    }
+
+    // time until the next parked long poll's wait runs out, or the next recheck - whichever is first
+    private long nextTimeout() {
+        long now = System.nanoTime();
+        long timeout = this.lastCheck + RECHECK_INTERVAL - now;
+        for(Request request: this.parked) {
+            timeout = Math.min(timeout, request.deadline - now);
+        }
+
+        return Math.max(timeout, 0);
+    }
+}
@@ -1,30 +1,51 @@
 package com.QueueEmulator;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 // class representing an in-memory message
 
-class InMemoryMessage implements Message {
+class InMemoryMessage extends VisibilityTimer.Entry implements Message {
     private long messageID;
-    private Long receiptHandle;
+    // receipt handle issued at the last retrieval - 0 while not in flight (0 is never issued as a handle)
+    private long receiptHandle;
     private Object messageContent;
     private long timeCreated;
     private long timeRetrieved;
     private long visibilityTimeoutDuration;
+    // number of times the message has been received
+    private int receiveCount;
+    // size of the content (in bytes) - a String counts as its UTF-8 encoding
+    private int size;
 
     protected InMemoryMessage(long timeout, Object content) {
+        this(timeout, content, QueueClock.now());
+    }
+
+    // message created at a given time (in ms) - used to bring back a message stored off the heap (see OffHeapMessageStore)
+    protected InMemoryMessage(long timeout, Object content, long timeCreated) {
         this.visibilityTimeoutDuration = timeout;
         this.messageContent = content;
-        this.receiptHandle = null;
+        this.receiptHandle = 0;
         this.timeRetrieved = 0;
-        this.timeCreated = new Date().getTime();
+        this.timeCreated = timeCreated;
+        this.size = contentSize(content);
     }
 
     public Object getMessageContent() {
+        if(this.messageContent instanceof ByteBuffer) {
+            // binary content - each caller gets its own position and limit
+            return ((ByteBuffer)this.messageContent).duplicate();
+        }
+
         return this.messageContent;
     }
 
     public Long getReceiptHandle() {
+        if(this.receiptHandle == 0) {
+            return null;
+        }
+
         return this.receiptHandle;
     }
 
@@ -32,37 +53,97 @@ class InMemoryMessage implements Message {
         this.messageID = mid;
     }
 
-    protected void setReceiptHandle(Long rh) {
-        if(rh != null) {
-            this.receiptHandle = rh;
-        }
+    protected long getMessageID() {
+        return this.messageID;
+    }
+
+    // receipt handle as stored, without boxing - 0 while not in flight
+    protected long getRawReceiptHandle() {
+        return this.receiptHandle;
+    }
+
+    protected void setReceiptHandle(long rh) {
+        this.receiptHandle = rh;
     }
 
     protected Long getTimeCreated() {
         return this.timeCreated;
     }
 
+    protected long getVisibilityTimeout() {
+        return this.visibilityTimeoutDuration;
+    }
+
+    protected int getReceiveCount() {
+        return this.receiveCount;
+    }
+
+    protected int getSize() {
+        return this.size;
+    }
+
+    // size of message content (in bytes) - counts a String's UTF-8 encoding without encoding it
+    private static int contentSize(Object content) {
+        if(content instanceof ByteBuffer) {
+            return ((ByteBuffer)content).remaining();
+        }
+
+        String s = String.valueOf(content);
+        int size = s.length();
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if(c >= 0x80) {
+                // 2 bytes up to U+07FF, 3 bytes above - a surrogate pair is 4 bytes, 2 for each half
+                size += (c < 0x800 || Character.isSurrogate(c)) ? 1 : 2;
+            }
+        }
+
+        return size;
+    }
+
     protected boolean visible() {
+        return this.visible(QueueClock.now());
+    }
+
+    // check visibility against a given time (in ms) - does not change message state, see release()
+    protected boolean visible(long now) {
         if(this.timeRetrieved == 0) {
             return true;
         }
 
-        long now = new Date().getTime();
-        if((now - timeRetrieved) < visibilityTimeoutDuration) {
-            return false;
+        return (now - timeRetrieved) >= visibilityTimeoutDuration;
+    }
+
+    // time (in ms) at which this message's visibility timeout runs out - 0 if it is not in flight
+    protected long getExpiryTime() {
+        if(this.timeRetrieved == 0) {
+            return 0;
         }
 
-        this.receiptHandle = null;
-        this.timeRetrieved = 0;
-        return true;
+        return this.timeRetrieved + this.visibilityTimeoutDuration;
     }
 
-    protected boolean retrieve() {
+    // put the message in flight for a given visibility timeout (in ms)
+    protected boolean retrieve(long timeout) {
         // set time retrieved to calculate visibility in visible()
-        this.timeRetrieved = new Date().getTime();
+        this.timeRetrieved = QueueClock.now();
+        this.visibilityTimeoutDuration = timeout;
+        this.receiveCount++;
         return true;
     }
 
+    // restart the visibility timeout of a message in flight with a given duration (in ms), counted from now
+    protected void changeVisibility(long timeout) {
+        this.timeRetrieved = QueueClock.now();
+        this.visibilityTimeoutDuration = timeout;
+    }
+
+    // make message visible again once its visibility timeout has run out - its receipt handle is no longer valid
+    protected void release() {
+        this.receiptHandle = 0;
+        this.timeRetrieved = 0;
+    }
+
     protected synchronized void printMessage() {
         if(this.visible()){
            System.out.print("VISIBLE | ");
@@ -1,19 +1,42 @@
 package com.QueueEmulator;
 
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 // InMemoryQueueService implements an in-memory message queue service (based on the QueueService interface).
+// Messages waiting on a queue are kept as objects on the heap, or - in OFF_HEAP storage mode - serialized into direct
+// memory, so that deep queues don't add to the garbage collector's work (see Storage).
+// Queues of a service given a spill directory are tiered: past a threshold of messages waiting in memory, further
+// messages are spilled to disk, and read back as the queue drains - so a backlog is bounded by disk rather than memory.
 
 public class InMemoryQueueService implements QueueService {
+
+  // where queues of this service keep messages that haven't been received yet
+  public enum Storage {
+    // as message objects on the heap
+    HEAP,
+    // serialized into chunks of direct memory (see OffHeapMessageStore) - a message becomes an object again once it is
+    // received, so only messages in flight or waiting to be redelivered are on the heap. Pushes and pulls pay for
+    // copying each message in and out.
+    OFF_HEAP
+  }
   
   // Pool of in-memory queues managed by this service - it is a map of unique String IDs 
   // mapping to InMemoryQueue objects. 
   // Clients provide the queue name at queue creation which can be used to 
   // publish to and consume from a queue on a particular queue service instance.
-  private HashMap<String,InMemoryQueue> queues;
+  // The map is concurrent so that push/pull/delete only look a queue up and then contend on that queue alone:
+  // the service monitor is taken by createQueue()/deleteQueue() only, to keep the queue count within MAX_QUEUES.
+  private ConcurrentHashMap<String,InMemoryQueue> queues;
 
-  // default visibility timeout for a message on a queue on this service (in milliseconds)
-  private static final long MESSAGE_TIMEOUT = 5000;
+  // largest message content a queue takes (in bytes) unless set with setByteLimits() - as SQS
+  public static final int DEFAULT_MAX_MESSAGE_BYTES = 256 * 1024;
 
   // max. number of queues provided by service
   private long MAX_QUEUES = 60;
@@ -21,23 +44,91 @@ public class InMemoryQueueService implements QueueService {
   // max. length of a queue name
   private long MAX_QUEUENAME_LEN = 80;
 
+  // number of this service in this process, which names its queues' MBeans
+  private final int serviceNumber = QueueMetrics.nextServiceNumber();
+
+  // where queues of this service keep their messages
+  private final Storage storage;
+
+  // directory queues of this service spill messages to, in a subdirectory per queue - null if they don't spill
+  private final String spillRoot;
+
+  // most messages waiting on a queue that are kept in memory before further messages are spilled
+  private final int memoryThreshold;
+
   // Constructor
   public InMemoryQueueService() {
-    this.queues = new HashMap<String,InMemoryQueue>();
+    this(Storage.HEAP);
+  }
+
+  // Constructor - queues of this service keep their messages as given
+  public InMemoryQueueService(Storage storage) {
+    if(storage == null) {
+      throw new IllegalArgumentException("InMemoryQueueService storage must be given.");
+    }
+
+    this.storage = storage;
+    this.spillRoot = null;
+    this.memoryThreshold = 0;
+    this.queues = new ConcurrentHashMap<String,InMemoryQueue>();
+  }
+
+  // Constructor - queues of this service keep up to memoryThreshold messages waiting in memory, as given, and spill the
+  // rest to disk, in a directory per queue under spillRoot (see SpillStore). Spilled messages are read back into memory
+  // in batches as the queue drains, before consumers reach them, and are received in publish order as any other.
+  // Tiered queues have no message count limit; a byte budget set with setByteLimits() still counts spilled messages.
+  public InMemoryQueueService(Storage storage, String spillRoot, int memoryThreshold) {
+    if(storage == null) {
+      throw new IllegalArgumentException("InMemoryQueueService storage must be given.");
+    }
+
+    if(spillRoot == null || spillRoot.trim().equals("") || memoryThreshold < 1) {
+      throw new IllegalArgumentException("InMemoryQueueService spill directory and memory threshold (at least 1) must be given.");
+    }
+
+    this.storage = storage;
+    this.spillRoot = spillRoot;
+    this.memoryThreshold = memoryThreshold;
+    this.queues = new ConcurrentHashMap<String,InMemoryQueue>();
+  }
+
+  // Create a new message queue on this service, with default attributes: returns true if successful 
+  public boolean createQueue(String queueName) {
+    return this.createQueue(queueName, new QueueAttributes());
   }
 
-  // Create a new message queue on this service: returns true if successful 
-  public synchronized boolean createQueue(String queueName) {
+  // Create a new message queue on this service with given attributes (see QueueAttributes): returns true if successful
+  public synchronized boolean createQueue(String queueName, QueueAttributes attributes) {
     // basic validation
     if(queueName == null || queueName.trim().equals("") || (queueName.trim().length() > this.MAX_QUEUENAME_LEN) || this.queues.containsKey(queueName.trim())) {
       // invalid queuename
       return false;
     }
 
+    if(attributes == null || !attributes.valid()) {
+      return false;
+    }
+
     // check current pool size on this service and create queue if there's space
     if(this.queues.size() < MAX_QUEUES) {
       queueName = queueName.trim();
-      this.queues.put(queueName, new InMemoryQueue(queueName));
+      if(this.redrivesTo(attributes.getDeadLetterQueue(), queueName)) {
+        return false;   // the queue would be its own dead-letter queue
+      }
+
+      SpillStore spill = null;
+      if(this.spillRoot != null) {
+        try {
+          spill = new SpillStore(new File(this.spillRoot, queueName));
+        } catch(IOException e) {
+          System.err.println("Caught IOException while creating spill store for queue <" + queueName + ">: " + e.getMessage());
+          return false;
+        }
+      }
+
+      InMemoryQueue queue = new InMemoryQueue(queueName, new QueueAttributes(attributes), this.storage == Storage.OFF_HEAP, spill, this.memoryThreshold, this.queues::get);
+      this.queues.put(queueName, queue);
+      queue.metrics.register("InMemoryQueueService", this.serviceNumber, queueName, queue);
       return true;
     }
 
@@ -45,72 +136,285 @@ public class InMemoryQueueService implements QueueService {
     return false;
   }
 
+  // indicate if messages dead-lettered to a given queue would end up on a specified queue, following the redrive
+  // policies of the queues on the way. dead-lettering nests queue locks in redrive order, so redrive policies can't loop
+  private boolean redrivesTo(String deadLetterQueue, String queueName) {
+    for(int hops = 0; deadLetterQueue != null && hops <= this.queues.size(); hops++) {
+      if(deadLetterQueue.equals(queueName)) {
+        return true;
+      }
+
+      InMemoryQueue next = this.queues.get(deadLetterQueue);
+      deadLetterQueue = (next == null) ? null : next.getAttributes().getDeadLetterQueue();
+    }
+
+    return false;
+  }
+
   // return number of queues configured on this service
-  public synchronized int queueCount() {
+  public int queueCount() {
     return this.queues.size();
   }
 
+  // Push a message with binary content onto a specified queue - returns true if message published successfully.
+  // the content is copied once, into a read-only buffer the message keeps (the caller's buffer is left as it was)
+  public boolean pushPayload(ByteBuffer payload, String queueName) {
+    return this.pushPayload(payload, queueName, Backpressure.FAIL, 0) == PushStatus.OK;
+  }
+
+  // Push a message with binary content onto a specified queue, applying backpressure while the queue is at or near its
+  // limits for up to waitTime (in milliseconds) - returns the outcome
+  public PushStatus pushPayload(ByteBuffer payload, String queueName, Backpressure backpressure, long waitTime) {
+    if(payload == null || !payload.hasRemaining()) {
+      return PushStatus.INVALID_MESSAGE;
+    }
+
+    return this.push(payload, queueName, backpressure, waitTime);
+  }
+
   // Push a message with given content onto a specified queue - returns true if message published successfully
   // For this implementation, all messages have String contents
-  public synchronized boolean push(String messageContent, String queueName) {
-    // TODO: check for max. message size
-    if(queueName == null || queueName.trim().equals("") || messageContent == null || messageContent.trim().equals("")) {
-      return false;
+  public boolean push(String messageContent, String queueName) {
+    return this.push(messageContent, queueName, Backpressure.FAIL, 0) == PushStatus.OK;
+  }
+
+  // Push a message with given content onto a specified queue, applying backpressure while the queue is at or near its
+  // limits (message count, byte budget or messages in flight) for up to waitTime (in milliseconds) - returns the outcome
+  public PushStatus push(String messageContent, String queueName, Backpressure backpressure, long waitTime) {
+    if(messageContent == null || messageContent.trim().equals("")) {
+      return PushStatus.INVALID_MESSAGE;
+    }
+
+    return this.push((Object)messageContent, queueName, backpressure, waitTime);
+  }
+
+  // push a message with given content (a String, or a ByteBuffer to copy) onto a specified queue
+  private PushStatus push(Object content, String queueName, Backpressure backpressure, long waitTime) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return PushStatus.NO_SUCH_QUEUE;
     }
 
     // check if queue with given name exists
-    if(this.queues.containsKey(queueName.trim())) {
-      InMemoryQueue queue = this.queues.get(queueName);
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue == null) {
+      return PushStatus.NO_SUCH_QUEUE;
+    }
 
-      // add message to queue if queue is below max capacity
-      if(!queue.full()) {
-        this.queues.get(queueName).push(new InMemoryMessage(MESSAGE_TIMEOUT, messageContent));
-        return true;
-      }
+    if(backpressure == null) {
+      backpressure = Backpressure.FAIL;
+    }
 
-      return false;   // failed: queue full
+    // a producer that won't wait fails on a full queue before building the message
+    if(backpressure == Backpressure.FAIL && queue.full()) {
+      return PushStatus.QUEUE_FULL;
     }
 
-    return false;   // failed: no such queue exists
+    long start = System.nanoTime();
+    if(content instanceof ByteBuffer) {
+      ByteBuffer payload = (ByteBuffer)content;
+      content = ByteBuffer.allocate(payload.remaining()).put(payload.duplicate()).flip().asReadOnlyBuffer();
+    }
+
+    PushStatus status = queue.push(new InMemoryMessage(queue.getVisibilityTimeout(), content), backpressure, Math.max(waitTime, 0));
+    queue.metrics.pushed(status == PushStatus.OK ? 1 : 0, System.nanoTime() - start);
+    return status;
   }
 
   // Receive message from specified queue
-  public synchronized Message pull(String queueName) {
+  public Message pull(String queueName) {
     if(queueName == null || queueName.trim().equals("")) {
       return null;
     }
 
     // find queue by the name of queueName and get message from it
-    queueName = queueName.trim();
-    if(this.queues.containsKey(queueName)) {
-      return this.queues.get(queueName).getMessage();
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      long start = System.nanoTime();
+      Message msg = queue.getMessage();
+      queue.metrics.pulled(msg == null ? 0 : 1, System.nanoTime() - start);
+      return msg;
     }
 
     return null;
   }
 
   // delete received message from a specific queue - needs receipt handle and queue ID
-  public synchronized void delete(Long receiptHandle, String queueName) {
+  public void delete(Long receiptHandle, String queueName) {
     if(queueName == null || queueName.trim().equals("") || receiptHandle == null) {
       return;
     }
 
     // find queue by queueName and delete message from it
-    queueName = queueName.trim();
-    if(this.queues.containsKey(queueName)) {
-      this.queues.get(queueName).delete(receiptHandle);
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      long start = System.nanoTime();
+      boolean deleted = queue.delete(receiptHandle);
+      queue.metrics.deleted(deleted ? 1 : 0, System.nanoTime() - start);
     }
   }
 
+  // Push a batch of messages onto a specified queue - results[i] is true if messageContents[i] was published.
+  // The queue is looked up once and capacity for the whole batch is reserved in one step.
+  public boolean[] pushBatch(List<String> messageContents, String queueName) {
+    boolean[] results = new boolean[messageContents == null ? 0 : messageContents.size()];
+    if(queueName == null || queueName.trim().equals("") || results.length == 0) {
+      return results;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue == null) {
+      return results;   // failed: no such queue exists
+    }
+
+    // invalid entries fail on their own (as a null message) without failing the rest of the batch
+    long start = System.nanoTime();
+    ArrayList<InMemoryMessage> msgs = new ArrayList<InMemoryMessage>(results.length);
+    for(String messageContent: messageContents) {
+      if(messageContent == null || messageContent.trim().equals("")) {
+        msgs.add(null);
+      } else {
+        msgs.add(new InMemoryMessage(queue.getVisibilityTimeout(), messageContent));
+      }
+    }
+
+    results = queue.push(msgs);
+    queue.metrics.pushed(QueueMetrics.count(results), System.nanoTime() - start);
+    return results;
+  }
+
+  // Receive up to maxMessages messages from specified queue, under a single acquisition of the queue's consumer lock
+  public List<Message> pull(String queueName, int maxMessages) {
+    if(queueName == null || queueName.trim().equals("") || maxMessages < 1) {
+      return new ArrayList<Message>();
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      long start = System.nanoTime();
+      List<Message> messages = new ArrayList<Message>(queue.getMessages(maxMessages));
+      queue.metrics.pulled(messages.size(), System.nanoTime() - start);
+      return messages;
+    }
+
+    return new ArrayList<Message>();
+  }
+
+  // Receive up to maxMessages messages from specified queue, waiting up to waitTime (in milliseconds) for one to become
+  // visible. The caller is parked on the queue and woken by a push, or when an in-flight message's timeout runs out.
+  public List<Message> pull(String queueName, int maxMessages, long waitTime) {
+    if(queueName == null || queueName.trim().equals("") || maxMessages < 1) {
+      return new ArrayList<Message>();
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      try {
+        // a long poll takes as long as it waits - its time isn't recorded
+        List<Message> messages = new ArrayList<Message>(queue.getMessages(maxMessages, Math.max(waitTime, 0)));
+        queue.metrics.pulled(messages.size(), -1);
+        return messages;
+      } catch(InterruptedException e) {
+        // leave the interrupt for the caller to see - nothing was received
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    return new ArrayList<Message>();
+  }
+
+  // Push a message onto a specified queue without blocking. pushes never wait on consumers, so the result is complete straight away
+  public CompletableFuture<Boolean> pushAsync(String messageContent, String queueName) {
+    return CompletableFuture.completedFuture(this.push(messageContent, queueName));
+  }
+
+  // Receive up to maxMessages messages from specified queue without blocking. Visible messages are received straight away
+  // (pulling only holds the consumer lock briefly) - otherwise the result completes once a message becomes visible or waitTime
+  // runs out, with no thread waiting for it meanwhile.
+  public CompletableFuture<List<Message>> pullAsync(String queueName, int maxMessages, long waitTime) {
+    if(waitTime <= 0 || queueName == null || queueName.trim().equals("") || maxMessages < 1) {
+      return CompletableFuture.completedFuture(this.pull(queueName, maxMessages));
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue == null) {
+      return CompletableFuture.completedFuture(new ArrayList<Message>());
+    }
+
+    CompletableFuture<List<Message>> messages = queue.getMessagesAsync(maxMessages, waitTime);
+    messages.thenAccept(received -> queue.metrics.pulled(received.size(), -1));
+    return messages;
+  }
+
+  // Delete a received message from a specified queue without blocking - completes with true if the message was deleted.
+  // deleting only holds the consumer lock briefly, so the result is complete straight away
+  public CompletableFuture<Boolean> deleteAsync(Long receiptHandle, String queueName) {
+    return CompletableFuture.completedFuture(this.deleteBatch(Collections.singletonList(receiptHandle), queueName)[0]);
+  }
+
+  // delete a batch of received messages from a specific queue - results[i] is true if receiptHandles[i]
+  // matched a message in visibility timeout, which was then deleted
+  public boolean[] deleteBatch(List<Long> receiptHandles, String queueName) {
+    boolean[] results = new boolean[receiptHandles == null ? 0 : receiptHandles.size()];
+    if(queueName == null || queueName.trim().equals("") || results.length == 0) {
+      return results;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      long start = System.nanoTime();
+      results = queue.delete(receiptHandles);
+      queue.metrics.deleted(QueueMetrics.count(results), System.nanoTime() - start);
+    }
+
+    return results;
+  }
+
+  // change the visibility timeout of a received message on a specific queue - see QueueService.changeVisibility().
+  // the message is moved on the queue's visibility timer in constant time
+  public boolean changeVisibility(Long receiptHandle, String queueName, long timeout) {
+    return this.changeVisibilityBatch(Collections.singletonList(receiptHandle), queueName, timeout)[0];
+  }
+
+  // change the visibility timeout of a batch of received messages on a specific queue, under a single acquisition of the
+  // queue's consumer lock - results[i] is true if receiptHandles[i] matched a message in visibility timeout
+  public boolean[] changeVisibilityBatch(List<Long> receiptHandles, String queueName, long timeout) {
+    boolean[] results = new boolean[receiptHandles == null ? 0 : receiptHandles.size()];
+    if(queueName == null || queueName.trim().equals("") || results.length == 0 || timeout < 0 || timeout > QueueAttributes.MAX_VISIBILITY_TIMEOUT) {
+      return results;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      results = queue.changeVisibility(receiptHandles, timeout);
+    }
+
+    return results;
+  }
+
+  // return a copy of the attributes of a given queue - null if there's no such queue
+  public QueueAttributes getQueueAttributes(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return null;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      return new QueueAttributes(queue.getAttributes());
+    }
+
+    return null;
+  }
+
   // delete a queue configured on this queue service
   public synchronized boolean deleteQueue(String queueName) {
     if(queueName == null || queueName.trim().equals("")) {
       return false;
     }
 
-    queueName = queueName.trim();
-    if(this.queues.containsKey(queueName)) {
-      this.queues.remove(queueName);
+    InMemoryQueue queue = this.queues.remove(queueName.trim());
+    if(queue != null) {
+      queue.metrics.unregister();
+      queue.close();
       return true;
     }
 
@@ -118,17 +422,103 @@ public class InMemoryQueueService implements QueueService {
     return false;
   }
 
+  // close this service: every queue on it is deleted as by deleteQueue(), unregistering its MBean and releasing what it
+  // holds off the heap or on disk
+  public synchronized void close() {
+    for(String queueName: new ArrayList<String>(this.queues.keySet())) {
+      this.deleteQueue(queueName);
+    }
+  }
+
   // get number of messages on a given queue
   public int getQueueMessageCount(String queueName) {
-    if(this.queues.containsKey(queueName)) {
-      return this.queues.get(queueName).getMessageCount();
+    if(queueName == null) {
+      return -1;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName);
+    if(queue != null) {
+      return queue.getMessageCount();
+    }
+
+    return -1;
+  }
+
+  // return a snapshot of the metrics of a given queue - null if there's no such queue
+  public QueueStats getQueueStats(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return null;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      return queue.stats();
+    }
+
+    return null;
+  }
+
+  // set the byte limits of a given queue: the largest message content it takes, and the most message content it holds
+  // at a time, in flight or not (both in bytes) - returns false if there's no such queue or a limit isn't positive.
+  // queues take messages of up to DEFAULT_MAX_MESSAGE_BYTES, with no byte budget, unless set here
+  public boolean setByteLimits(String queueName, int maxMessageBytes, long maxQueueBytes) {
+    if(queueName == null || queueName.trim().equals("") || maxMessageBytes <= 0 || maxQueueBytes <= 0) {
+      return false;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue == null) {
+      return false;
+    }
+
+    queue.setByteLimits(maxMessageBytes, maxQueueBytes);
+    return true;
+  }
+
+  // get the bytes of message content on a given queue (in flight or not) - -1 if there's no such queue
+  public long getQueueBytes(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      return queue.getByteCount();
+    }
+
+    return -1;
+  }
+
+  // get number of messages on a given queue that are spilled to disk - -1 if there's no such queue
+  public int getSpilledCount(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      return queue.getSpilledCount();
+    }
+
+    return -1;
+  }
+
+  // get number of messages in visibility timeout on a given queue
+  public long getInFlightCount(String queueName) {
+    if(queueName == null || queueName.trim().equals("")) {
+      return -1;
+    }
+
+    InMemoryQueue queue = this.queues.get(queueName.trim());
+    if(queue != null) {
+      return queue.getInFlightCount();
     }
 
     return -1;
   }
 
   // print out names of queues configured on this queueservice
-  public synchronized void printQueueService() {
+  public void printQueueService() {
     if(this.queues.size() == 0) {
       System.out.println("\n<This queue service is empty>");
       return;
@@ -145,13 +535,15 @@ public class InMemoryQueueService implements QueueService {
   }
 
   // print contents of a given queue
-  public synchronized void printQueue(String queueName) {
+  public void printQueue(String queueName) {
     if(queueName == null || queueName.trim().equals("")) {
       System.out.println("\nCannot print queue: invalid queuename.");
+      return;
     }
 
-    if(this.queues.containsKey(queueName)) {
-      this.queues.get(queueName).printQueue();
+    InMemoryQueue queue = this.queues.get(queueName);
+    if(queue != null) {
+      queue.printQueue();
     } else {
       System.out.println("No such queue: QID <" + queueName + ">");
     }
@@ -159,148 +551,1129 @@ public class InMemoryQueueService implements QueueService {
 }
 
 // class representing an in-memory message queue
-class InMemoryQueue {
+// Producers and consumers do not share a lock: push() appends to a lock-free ready queue and reserves
+// capacity with atomic counters, while pull/delete/expiry (everything that touches in-flight state) run
+// under the queue's consumer lock. Queues never share locks with each other.
+// In-flight messages are scheduled on a visibility timer, which the timer's background sweeper advances
+// so that expired messages come back onto the queue even while no consumer is active.
+// A tiered queue spills never-retrieved messages beyond its memory threshold to a SpillStore: producers decide where a
+// message goes under the spill lock, and consumers page spilled messages back in under the consumer lock, taking the
+// spill lock inside it (never the other way round).
+class InMemoryQueue implements VisibilityTimer.Sweepable, QueueMetrics.Source {
     // unique identifier for this queue in InMemoryQueueService (set permanently at queue creation)
     private final String queueName;
 
+    // operations on this queue, recorded by the service
+    protected final QueueMetrics metrics = new QueueMetrics();
+
+    // attributes this queue was created with (see QueueAttributes)
+    private final QueueAttributes attributes;
+
+    // visibility timeout of messages on this queue (in milliseconds), and how long they are kept for (0 until deleted)
+    private final long visibilityTimeout;
+    private final long retentionPeriod;
+
     // max number of messages that can be in visibility timeout on this queue at a time
-    private static final long MAX_INFLIGHT_MESSAGES = 20000;
+    private final int maxInFlight;
+
+    // receives after which a message is moved to the dead-letter queue instead (0 if the queue has no redrive policy),
+    // and queues on the service by name - where the dead-letter queue is looked up when a message is moved
+    private final int maxReceiveCount;
+    private final Function<String, InMemoryQueue> queues;
 
-    // max number of messages that can be in the queue at a time
+    // max number of messages that can be in the queue at a time, unless set by the queue's attributes
     private static final long MAX_QUEUE_MESSAGES = 100000;    
 
-    // Map of receipt handles - each RH is tied to a unique Long key
-    // each time a message is retrieved, an RH will be issued and added to this map.
-    // and deleted at message deletion / timeout expiry.
-    private HashMap<Long,Object> receiptHandles = new HashMap<Long,Object>();
+    // most spilled messages read back into memory at a time
+    private static final int PAGE_IN_BATCH = 1000;
+
+    // max number of messages on this queue - as its attributes give it, otherwise MAX_QUEUE_MESSAGES, unless the queue
+    // spills to disk
+    private final long maxMessages;
+
+    // byte limits of this queue (see InMemoryQueueService.setByteLimits()) - no byte budget is Long.MAX_VALUE.
+    // byteCount is the content size of every message on the queue, in flight or not: it is reserved by producers
+    // alongside messageCount, and released when a message is deleted.
+    private volatile int maxMessageBytes = InMemoryQueueService.DEFAULT_MAX_MESSAGE_BYTES;
+    private volatile long maxQueueBytes = Long.MAX_VALUE;
+    private final AtomicLong byteCount = new AtomicLong();
+
+    // producers applying backpressure wait on spaceAvailable for consumers to make room, and compare spaceChanges
+    // against the count they took before trying to push (as long polling consumers do with waitingConsumers, consumers
+    // only take the monitor when waitingProducers isn't zero)
+    private final Object spaceAvailable = new Object();
+    private long spaceChanges = 0;  // guarded by spaceAvailable
+    private final AtomicInteger waitingProducers = new AtomicInteger();
+
+    // lock held by consumers (pull, delete, visibility timeout expiry) - guards the in-flight slots and returnedQueue
+    private final ReentrantLock consumerLock = new ReentrantLock();
+
+    // long polling consumers wait on this condition for a message to become visible. waitingConsumers lets
+    // producers skip taking the consumer lock to signal when nobody is waiting (the common case).
+    private final Condition messageAvailable = this.consumerLock.newCondition();
+    private final AtomicInteger waitingConsumers = new AtomicInteger();
+
+    // asynchronous long polls waiting for a message to become visible, in the order they were made - guarded by the
+    // consumer lock. They count in waitingConsumers too, so producers serve them as they signal blocked consumers.
+    // The background sweeper times them out.
+    private final ArrayDeque<AsyncPull> asyncPulls = new ArrayDeque<AsyncPull>();
+
+    private static class AsyncPull {
+        private final int max;
+        private final long deadline;    // System.nanoTime() the wait runs out at
+        private final CompletableFuture<List<Message>> result = new CompletableFuture<List<Message>>();
+
+        private AsyncPull(int max, long deadline) {
+            this.max = max;
+            this.deadline = deadline;
+        }
+    }
+
+    // In-flight messages are held in a fixed table of slots, one per message that can be in visibility timeout.
+    // Each time a message is retrieved it takes a free slot and is issued a receipt handle made of a queue-local
+    // delivery sequence number and the slot number:
+    //
+    //     receipt handle = (sequence << SLOT_BITS) | slot
+    //
+    // Handles are unique by construction (the sequence never repeats) and positive, and issuing one allocates nothing.
+    // delete() decodes the slot from the handle and finds the message directly; a handle is only accepted if it is the
+    // one the slot's message currently holds, so stale handles (from an earlier delivery whose timeout ran out, or of
+    // a message already deleted) are rejected even after the slot has been reused.
+    private static final int SLOT_BITS = 15;
+    private static final long SLOT_MASK = (1L << SLOT_BITS) - 1;
+    private final InMemoryMessage[] inFlightSlots;
+
+    // stack of free slot numbers - the top freeSlotCount entries are free
+    private final int[] freeSlots;
+    private int freeSlotCount;
+
+    // sequence number of the last delivery from this queue
+    private long deliverySequence = 0;
+
+    // in-flight messages, scheduled to come out of visibility timeout at their expiry time
+    private final VisibilityTimer<InMemoryMessage> visibilityTimer = new VisibilityTimer<InMemoryMessage>(QueueClock.now());
+
+    // returns a message whose visibility timeout has run out to the ready set - called by the timer as it advances
+    private final Consumer<InMemoryMessage> expiryHandler = new Consumer<InMemoryMessage>() {
+        public void accept(InMemoryMessage msg) {
+            releaseSlot(msg);
+            msg.release();
+            returnedQueue.add(msg);
+            inFlightCount--;
+            visibleCount.incrementAndGet();
+            metrics.expired(1);
+        }
+    };
+
+    // Visible messages on this queue are kept in two collections, so a pull never has to walk past in-flight messages:
+    // - readyQueue: messages that have never been retrieved, in publish order (new messages are added at the tail).
+    //   Producers hold its monitor just long enough to take a message ID and add the message, so it stays in ID order;
+    //   consumers poll it without. Off-heap queues keep these messages in offHeapStore instead (where producers hold
+    //   the store's monitor while copying a message in).
+    // - returnedQueue: messages whose visibility timeout ran out, ordered by message ID so they are
+    //   redelivered from the position they were originally published at
+    private ConcurrentLinkedQueue<InMemoryMessage> readyQueue;
+    private PriorityQueue<InMemoryMessage> returnedQueue;
+    private final OffHeapMessageStore offHeapStore;
+
+    // Tiered queues only (spill isn't null): never-retrieved messages beyond memoryThreshold waiting in memory are
+    // appended to spill instead, and from then on every new message is, until the spill has been read back - so the
+    // spill always holds the latest published messages. Consumers read spilled messages back into pagedIn (in publish
+    // order) once the messages waiting in memory fall to half the threshold, ahead of reaching them.
+    // memoryCount counts the messages in readyQueue (or offHeapStore) and pagedIn. spillLock serialises producers
+    // deciding where a message goes with consumers reading the spill, and guards the spill itself; pagedIn is guarded
+    // by the consumer lock. The spill lock is fair, so a consumer paging in isn't starved by a stream of spilling producers.
+    private final SpillStore spill;
+    private final int memoryThreshold;
+    private final ReentrantLock spillLock = new ReentrantLock(true);
+    private final ArrayDeque<InMemoryMessage> pagedIn = new ArrayDeque<InMemoryMessage>();
+    private final AtomicInteger memoryCount = new AtomicInteger();
+
+    // ID to be given to the next message published onto this queue (IDs increase in publish order)
+    private final AtomicLong nextMessageID = new AtomicLong();
 
-    // Collection of message objects on this queue
-    private ArrayList<InMemoryMessage> messageQueue;
+    // live message counts on this queue - updated on push, pull, delete and visibility timeout expiry
+    // so that none of the collections above need to be walked or sized to answer a count.
+    // inFlightCount only changes under the consumer lock; the other two are also changed by producers.
+    private final AtomicInteger visibleCount = new AtomicInteger();
+    private volatile int inFlightCount = 0;
+    private final AtomicInteger messageCount = new AtomicInteger();
+
+    // create a queue object with a given identifier and attributes - keeping never-retrieved messages off the heap if
+    // offHeap is set, and spilling those beyond memoryThreshold to spill if it is given. queues looks up the queues on
+    // the service by name
+    protected InMemoryQueue(String qn, QueueAttributes attributes, boolean offHeap, SpillStore spill, int memoryThreshold, Function<String, InMemoryQueue> queues) {
+        this.attributes = attributes;
+        this.visibilityTimeout = attributes.getVisibilityTimeout();
+        this.retentionPeriod = attributes.getRetentionPeriod();
+        this.maxInFlight = attributes.getMaxInFlight();
+        this.maxReceiveCount = attributes.getMaxReceiveCount();
+        this.queues = queues;
+        this.inFlightSlots = new InMemoryMessage[this.maxInFlight];
+        this.freeSlots = new int[this.maxInFlight];
+
+        this.offHeapStore = offHeap ? new OffHeapMessageStore() : null;
+        this.spill = spill;
+        this.memoryThreshold = memoryThreshold;
+        if(attributes.getMaxMessages() > 0) {
+            this.maxMessages = Math.min(attributes.getMaxMessages(), Integer.MAX_VALUE);
+        } else {
+            this.maxMessages = spill != null ? Integer.MAX_VALUE : MAX_QUEUE_MESSAGES;
+        }
 
-    // create a queue object with a given identifier
-    protected InMemoryQueue(String qn) {
         // if(qn == null || qn.trim().equals("")) {
             this.queueName = qn;
-            this.messageQueue = new ArrayList<InMemoryMessage>();
+            this.readyQueue = new ConcurrentLinkedQueue<InMemoryMessage>();
+            this.returnedQueue = new PriorityQueue<InMemoryMessage>(11, new Comparator<InMemoryMessage>() {
+                public int compare(InMemoryMessage m1, InMemoryMessage m2) {
+                    return Long.compare(m1.getMessageID(), m2.getMessageID());
+                }
+            });
         // }
+
+        for(int i = 0; i < this.freeSlots.length; i++) {
+            this.freeSlots[i] = this.freeSlots.length - 1 - i;    // lowest slots are handed out first
+        }
+        this.freeSlotCount = this.freeSlots.length;
+
+        VisibilityTimer.register(this);
+    }
+
+    // publish message onto this queue, applying backpressure for up to waitTime (in ms) while the queue is at or near
+    // one of its limits
+    protected PushStatus push(InMemoryMessage msg, Backpressure backpressure, long waitTime) {
+        if(msg == null) {
+            return PushStatus.INVALID_MESSAGE;
+        }
+
+        if(msg.getSize() > this.maxMessageBytes) {
+            return PushStatus.MESSAGE_TOO_LARGE;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+        if(backpressure == Backpressure.THROTTLE) {
+            this.throttle(deadline);
+        }
+
+        if(this.tryPush(msg)) {
+            return PushStatus.OK;
+        }
+
+        if(backpressure == Backpressure.FAIL) {
+            return PushStatus.QUEUE_FULL;
+        }
+
+        // wait for room - registered as waiting before retrying, so a consumer making room meanwhile signals
+        this.waitingProducers.incrementAndGet();
+        try {
+            while(true) {
+                long seen;
+                synchronized(this.spaceAvailable) {
+                    seen = this.spaceChanges;
+                }
+
+                if(this.tryPush(msg)) {
+                    return PushStatus.OK;
+                }
+
+                if(!this.awaitSpace(seen, deadline)) {
+                    return PushStatus.QUEUE_FULL;
+                }
+            }
+        } finally {
+            this.waitingProducers.decrementAndGet();
+        }
+    }
+
+    // publish a message if this queue has room for it
+    private boolean tryPush(InMemoryMessage msg) {
+        if(this.inFlightCount >= this.maxInFlight) {
+            // counts may include messages whose timeout has already run out - bring them up to date first
+            this.consumerLock.lock();
+            try {
+                this.expireInFlight();
+            } finally {
+                this.consumerLock.unlock();
+            }
+        }
+
+        if((this.inFlightCount < this.maxInFlight) && this.reserve(1) == 1) {
+            if(!this.reserveBytes(msg.getSize())) {
+                this.messageCount.decrementAndGet();
+                return false;   // over the byte budget
+            }
+
+            // counted before it is published, so a consumer taking it straight away never takes the count below zero
+            this.visibleCount.incrementAndGet();
+            this.offerReady(Collections.singletonList(msg));
+            this.signalConsumers(1);
+            return true;
+        }
+
+        // max inflight message limit reached (overlimit) or max message count reached for this queue
+        return false;
+    }
+
+    // delay a throttled producer by how close this queue is to its limits - nothing below THROTTLE_THRESHOLD of every
+    // limit, rising to MAX_THROTTLE_DELAY at a limit. the delay ends at deadline at the latest
+    private void throttle(long deadline) {
+        double fill = Math.max((double)this.messageCount.get() / this.maxMessages, (double)this.byteCount.get() / this.maxQueueBytes);
+        if(fill <= Backpressure.THROTTLE_THRESHOLD) {
+            return;
+        }
+
+        double level = Math.min((fill - Backpressure.THROTTLE_THRESHOLD) / (1 - Backpressure.THROTTLE_THRESHOLD), 1);
+        long delay = Math.min((long)(level * TimeUnit.MILLISECONDS.toNanos(Backpressure.MAX_THROTTLE_DELAY)), deadline - System.nanoTime());
+        if(delay > 0) {
+            LockSupport.parkNanos(delay);
+        }
+    }
+
+    // wait until deadline (a System.nanoTime()) for space changes to move past seen - returns false once the deadline
+    // has passed, or if the producer is interrupted (which is left for the caller to see)
+    private boolean awaitSpace(long seen, long deadline) {
+        synchronized(this.spaceAvailable) {
+            while(this.spaceChanges == seen) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return false;
+                }
+
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this.spaceAvailable, remaining);
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    // wake up producers waiting for room after a consumer has made some (by deleting a message, or a message coming
+    // out of flight)
+    private void signalProducers() {
+        if(this.waitingProducers.get() == 0) {
+            return;
+        }
+
+        synchronized(this.spaceAvailable) {
+            this.spaceChanges++;
+            this.spaceAvailable.notifyAll();
+        }
     }
 
-    // publish message onto this queue
-    protected synchronized boolean push(InMemoryMessage msg) {
-        if(msg != null) {
-            if((this.getInFlightCount() < this.MAX_INFLIGHT_MESSAGES) && !this.full()) {
-                this.messageQueue.add(msg);
+    // reserve bytes of this queue's byte budget - returns false (reserving none) if they don't fit
+    private boolean reserveBytes(long bytes) {
+        long limit = this.maxQueueBytes;
+        if(limit == Long.MAX_VALUE) {
+            this.byteCount.addAndGet(bytes);
+            return true;
+        }
+
+        while(true) {
+            long current = this.byteCount.get();
+            if(current + bytes > limit) {
+                return false;
+            }
+
+            if(this.byteCount.compareAndSet(current, current + bytes)) {
                 return true;
             }
+        }
+    }
 
-            // max inflight message limit reached (overlimit) or max message count reached for this queue
-            return false;
+    // set the byte limits of this queue - see InMemoryQueueService.setByteLimits()
+    protected void setByteLimits(int maxMessageBytes, long maxQueueBytes) {
+        this.maxMessageBytes = maxMessageBytes;
+        this.maxQueueBytes = maxQueueBytes;
+        this.signalProducers();     // a raised budget may make room
+    }
+
+    // bytes of message content on this queue
+    protected long getByteCount() {
+        return this.byteCount.get();
+    }
+
+    // publish a batch of messages onto this queue - results[i] is true if msgs[i] was published.
+    // null entries and messages over the max. message size are skipped (and fail); if the queue can't take the whole
+    // batch, the leading messages that fit are published.
+    protected boolean[] push(List<InMemoryMessage> msgs) {
+        boolean[] results = new boolean[msgs.size()];
+
+        int maxSize = this.maxMessageBytes;
+        int valid = 0;
+        for(InMemoryMessage msg: msgs) {
+            if(msg != null && msg.getSize() <= maxSize) {
+                valid++;
+            }
+        }
+
+        if(this.inFlightCount >= this.maxInFlight) {
+            // counts may include messages whose timeout has already run out - bring them up to date first
+            this.consumerLock.lock();
+            try {
+                this.expireInFlight();
+            } finally {
+                this.consumerLock.unlock();
+            }
+        }
+
+        if(valid == 0 || this.inFlightCount >= this.maxInFlight) {
+            return results;
+        }
+
+        // the byte budget is reserved for the leading messages given a place in one step if they all fit, otherwise for
+        // as many of them as fit - places they can't use are given back
+        int reserved = this.reserve(valid);
+        long bytes = 0;
+        for(int i = 0, n = 0; n < reserved; i++) {
+            InMemoryMessage msg = msgs.get(i);
+            if(msg != null && msg.getSize() <= maxSize) {
+                bytes += msg.getSize();
+                n++;
+            }
+        }
+
+        int published = reserved;
+        if(!this.reserveBytes(bytes)) {
+            published = 0;
+            for(int i = 0; published < reserved; i++) {
+                InMemoryMessage msg = msgs.get(i);
+                if(msg != null && msg.getSize() <= maxSize) {
+                    if(!this.reserveBytes(msg.getSize())) {
+                        break;
+                    }
+
+                    published++;
+                }
+            }
+
+            this.messageCount.addAndGet(published - reserved);
+        }
+
+        ArrayList<InMemoryMessage> offered = new ArrayList<InMemoryMessage>(published);
+        for(int i = 0; i < results.length && offered.size() < published; i++) {
+            InMemoryMessage msg = msgs.get(i);
+            if(msg != null && msg.getSize() <= maxSize) {
+                offered.add(msg);
+                results[i] = true;
+            }
+        }
+
+        this.visibleCount.addAndGet(published);
+        this.offerReady(offered);
+
+        this.signalConsumers(published);
+        return results;
+    }
+
+    // give messages their IDs and add them to the tail of the never-retrieved messages - in memory, or on a tiered
+    // queue, spilled once the queue has memoryThreshold messages waiting in memory (or has spilled messages already)
+    private void offerReady(List<InMemoryMessage> msgs) {
+        if(this.spill == null) {
+            for(InMemoryMessage msg: msgs) {
+                this.offerMemory(msg);
+            }
+
+            return;
+        }
+
+        this.spillLock.lock();
+        try {
+            int i = 0;
+            while(i < msgs.size() && this.spill.size() == 0 && this.memoryCount.get() < this.memoryThreshold) {
+                this.offerMemory(msgs.get(i++));
+                this.memoryCount.incrementAndGet();
+            }
+
+            if(i == msgs.size()) {
+                return;
+            }
+
+            List<InMemoryMessage> spilled = msgs.subList(i, msgs.size());
+            for(InMemoryMessage msg: spilled) {
+                msg.setMessageID(this.nextMessageID.getAndIncrement());
+            }
+
+            if(!this.spill.append(spilled)) {
+                // the messages aren't lost: they are kept in memory over the threshold instead, and may be received
+                // ahead of messages spilled before them
+                for(InMemoryMessage msg: spilled) {
+                    this.offerMemory(msg);
+                    this.memoryCount.incrementAndGet();
+                }
+            }
+        } finally {
+            this.spillLock.unlock();
+        }
+    }
+
+    // give a message its ID and add it to the tail of the never-retrieved messages in memory
+    private void offerMemory(InMemoryMessage msg) {
+        if(this.offHeapStore != null) {
+            // IDs are given under the store's monitor, so the store stays in ID order
+            synchronized(this.offHeapStore) {
+                msg.setMessageID(this.nextMessageID.getAndIncrement());
+                this.offHeapStore.offer(msg);
+            }
+        } else {
+            // as for the store: takeNext() relies on the head of the ready queue having the lowest ID in it
+            synchronized(this.readyQueue) {
+                msg.setMessageID(this.nextMessageID.getAndIncrement());
+                this.readyQueue.offer(msg);
+            }
+        }
+    }
+
+    // time the earliest published never-retrieved message in memory was created (in ms) - Long.MAX_VALUE if there is none
+    private long peekReadyTimeCreated() {
+        if(this.offHeapStore != null) {
+            return this.offHeapStore.size() == 0 ? Long.MAX_VALUE : this.offHeapStore.peekTimeCreated();
+        }
+
+        InMemoryMessage ready = this.readyQueue.peek();
+        return ready == null ? Long.MAX_VALUE : ready.getTimeCreated();
+    }
+
+    // ID of the earliest published never-retrieved message - -1 if there is none
+    private long peekReadyID() {
+        if(this.offHeapStore != null) {
+            return this.offHeapStore.peekID();
         }
 
-        return false;   // invalid message
+        InMemoryMessage ready = this.readyQueue.peek();
+        return ready == null ? -1 : ready.getMessageID();
+    }
+
+    // read a batch of spilled messages back into memory, topping the messages waiting in memory up towards the memory
+    // threshold - must be called with the consumer lock held
+    private int pageIn() {
+        this.spillLock.lock();
+        try {
+            int room = Math.min(this.memoryThreshold - this.memoryCount.get(), PAGE_IN_BATCH);
+            List<InMemoryMessage> msgs = this.spill.read(Math.max(room, 1));
+            this.pagedIn.addAll(msgs);
+            this.memoryCount.addAndGet(msgs.size());
+            return msgs.size();
+        } finally {
+            this.spillLock.unlock();
+        }
+    }
+
+    // release what a deleted queue holds: asynchronous long polls still waiting, and messages held off the heap or spilled to disk
+    protected void close() {
+        // asynchronous long polls still waiting complete empty, as if their wait had run out
+        this.consumerLock.lock();
+        try {
+            for(AsyncPull pull: this.asyncPulls) {
+                this.waitingConsumers.decrementAndGet();
+                QueueExecutors.ASYNC.execute(() -> pull.result.complete(new ArrayList<Message>()));
+            }
+            this.asyncPulls.clear();
+        } finally {
+            this.consumerLock.unlock();
+        }
+
+        if(this.offHeapStore != null) {
+            this.offHeapStore.clear();
+        }
+
+        if(this.spill != null) {
+            this.spillLock.lock();
+            try {
+                this.spill.close();
+            } finally {
+                this.spillLock.unlock();
+            }
+        }
+    }
+
+    // wake up consumers waiting in a long poll after count messages were made visible.
+    // a waiting consumer registers in waitingConsumers before it checks for messages, and producers check it after
+    // publishing, so either the consumer sees the new message or the producer sees the consumer and signals it.
+    private void signalConsumers(int count) {
+        if(count <= 0 || this.waitingConsumers.get() == 0) {
+            return;
+        }
+
+        this.consumerLock.lock();
+        try {
+            if(count == 1) {
+                this.messageAvailable.signal();
+            } else {
+                this.messageAvailable.signalAll();
+            }
+
+            this.serveAsyncPulls();
+        } finally {
+            this.consumerLock.unlock();
+        }
+    }
+
+    // reserve space for up to count more messages on this queue - returns the number reserved (0 if the queue is full)
+    private int reserve(int count) {
+        while(true) {
+            int current = this.messageCount.get();
+            int available = (int)Math.min(count, this.maxMessages - current);
+            if(available <= 0) {
+                return 0;
+            }
+
+            if(this.messageCount.compareAndSet(current, current + available)) {
+                return available;
+            }
+        }
     }
 
     // get message from this queue
-    protected synchronized InMemoryMessage getMessage() {
-        ListIterator li = this.messageQueue.listIterator();
-
-        // iterate from head of message queue, and return the first visible message
-        while(li.hasNext()) {
-            InMemoryMessage msg = (InMemoryMessage)li.next();
-            if(msg.visible()) {
-                // create a unique receipt handle, record it and return message
-                Long receiptHandle = this.createReceiptHandle();
-
-                while (this.receiptHandles.containsKey(receiptHandle)) {
-                    receiptHandle = this.createReceiptHandle();
+    protected InMemoryMessage getMessage() {
+        this.consumerLock.lock();
+        try {
+            // messages that have come out of visibility timeout go back to the ready set first
+            this.expireInFlight();
+            return this.retrieveNext();
+        } finally {
+            this.consumerLock.unlock();
+        }
+    }
+
+    // get up to max messages from this queue, in the order single getMessage() calls would return them
+    protected List<InMemoryMessage> getMessages(int max) {
+        ArrayList<InMemoryMessage> messages = new ArrayList<InMemoryMessage>();
+
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
+
+            while(messages.size() < max) {
+                InMemoryMessage msg = this.retrieveNext();
+                if(msg == null) {
+                    break;  // no more visible messages on this queue
+                }
+
+                messages.add(msg);
+            }
+        } finally {
+            this.consumerLock.unlock();
+        }
+
+        return messages;
+    }
+
+    // get up to max messages from this queue, waiting up to waitTime (in ms) for at least one to become visible.
+    // returns as soon as a message is retrieved, or an empty list if none became visible in time.
+    protected List<InMemoryMessage> getMessages(int max, long waitTime) throws InterruptedException {
+        ArrayList<InMemoryMessage> messages = new ArrayList<InMemoryMessage>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+
+        this.consumerLock.lockInterruptibly();
+        this.waitingConsumers.incrementAndGet();
+        try {
+            while(true) {
+                this.expireInFlight();
+
+                while(messages.size() < max) {
+                    InMemoryMessage msg = this.retrieveNext();
+                    if(msg == null) {
+                        break;  // no more visible messages on this queue
+                    }
+
+                    messages.add(msg);
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if(!messages.isEmpty() || remaining <= 0) {
+                    return messages;
+                }
+
+                // messages coming out of visibility timeout also signal, from expireInFlight()
+                this.messageAvailable.awaitNanos(remaining);
+            }
+        } finally {
+            this.waitingConsumers.decrementAndGet();
+            this.consumerLock.unlock();
+        }
+    }
+
+    // get up to max messages from this queue without blocking: if none are visible, the result completes once one is, or
+    // once waitTime (in ms) has run out (with an empty list)
+    protected CompletableFuture<List<Message>> getMessagesAsync(int max, long waitTime) {
+        AsyncPull pull = new AsyncPull(max, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime));
+
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
+
+            ArrayList<Message> messages = new ArrayList<Message>();
+            while(messages.size() < max) {
+                InMemoryMessage msg = this.retrieveNext();
+                if(msg == null) {
+                    break;  // no more visible messages on this queue
+                }
+
+                messages.add(msg);
+            }
+
+            if(!messages.isEmpty()) {
+                // nothing can be waiting on the result yet, so it is completed here
+                pull.result.complete(messages);
+            } else {
+                this.asyncPulls.add(pull);
+                this.waitingConsumers.incrementAndGet();
+            }
+        } finally {
+            this.consumerLock.unlock();
+        }
+
+        return pull.result;
+    }
+
+    // hand visible messages to waiting asynchronous long polls, in the order they were made, and complete those whose
+    // wait has run out - must be called with the consumer lock held. results are completed on another thread, so that
+    // what callers chained on them doesn't run under the lock
+    private void serveAsyncPulls() {
+        if(this.asyncPulls.isEmpty()) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        boolean visible = true;
+        Iterator<AsyncPull> it = this.asyncPulls.iterator();
+        while(it.hasNext()) {
+            AsyncPull pull = it.next();
+            ArrayList<Message> messages = new ArrayList<Message>();
+            while(visible && messages.size() < pull.max) {
+                InMemoryMessage msg = this.retrieveNext();
+                if(msg == null) {
+                    visible = false;
+                    break;
                 }
 
-                this.receiptHandles.put(receiptHandle, null);
-                msg.setReceiptHandle(receiptHandle);
-                msg.retrieve();
-                return msg;
+                messages.add(msg);
+            }
+
+            if(messages.isEmpty() && pull.deadline - now > 0) {
+                continue;   // keeps waiting
+            }
+
+            it.remove();
+            this.waitingConsumers.decrementAndGet();
+            QueueExecutors.ASYNC.execute(() -> pull.result.complete(messages));
+        }
+    }
+
+    // take the next visible message off the ready set and put it in flight - must be called with the consumer lock held.
+    // messages already received maxReceiveCount times are moved to the dead-letter queue on the way
+    private InMemoryMessage retrieveNext() {
+        if(this.freeSlotCount == 0) {
+            return null;    // max inflight message limit reached for this queue
+        }
+
+        InMemoryMessage msg = this.takeNext();
+        while(msg != null && this.maxReceiveCount > 0 && msg.getReceiveCount() >= this.maxReceiveCount && this.deadLetter(msg)) {
+            msg = this.takeNext();
+        }
+
+        if(msg == null) {
+            return null;    // no visible messages on this queue
+        }
+
+        // put the message in a free slot and issue it a receipt handle for that slot
+        int slot = this.freeSlots[--this.freeSlotCount];
+        this.inFlightSlots[slot] = msg;
+        msg.setReceiptHandle((++this.deliverySequence << SLOT_BITS) | slot);
+        msg.retrieve(this.visibilityTimeout);
+        this.visibilityTimer.schedule(msg, msg.getExpiryTime());
+        this.visibleCount.decrementAndGet();
+        this.inFlightCount++;
+        return msg;
+    }
+
+    // take the visible message that was published earliest off the ready set - null if there is none.
+    // must be called with the consumer lock held
+    private InMemoryMessage takeNext() {
+        if(this.spill != null && this.spill.size() > 0 && this.memoryCount.get() <= this.memoryThreshold / 2) {
+            this.pageIn();
+        }
+
+        // take the visible message that was published earliest - a redelivery, a message read back from the spill or
+        // a never-retrieved message in memory
+        InMemoryMessage msg = null;
+        long returnedID = idOf(this.returnedQueue.peek());
+        long pagedID = idOf(this.pagedIn.peek());
+        long readyID = this.peekReadyID();
+        if(readyID < 0) {
+            readyID = Long.MAX_VALUE;
+        }
+
+        if(returnedID < pagedID && returnedID < readyID) {
+            msg = this.returnedQueue.poll();
+        } else if(pagedID < readyID) {
+            msg = this.pagedIn.poll();
+            this.memoryCount.decrementAndGet();
+        } else if(readyID != Long.MAX_VALUE) {
+            // consumers only take from the ready queue under the consumer lock, so this is the message peeked above
+            msg = this.offHeapStore != null ? this.offHeapStore.poll() : this.readyQueue.poll();
+            if(this.spill != null) {
+                this.memoryCount.decrementAndGet();
+            }
+        }
+
+        return msg;
+    }
+
+    // move a visible message taken off the ready set to this queue's dead-letter queue, as a new message - returns false
+    // if it couldn't be pushed there (no such queue, or it is full), leaving the message to be delivered instead.
+    // must be called with the consumer lock held: the dead-letter queue may take its own consumer lock inside it
+    private boolean deadLetter(InMemoryMessage msg) {
+        InMemoryQueue target = this.queues.apply(this.attributes.getDeadLetterQueue());
+        if(target == null || target == this) {
+            return false;
+        }
+
+        InMemoryMessage moved = new InMemoryMessage(target.getVisibilityTimeout(), msg.getMessageContent());
+        if(!target.push(Collections.singletonList(moved))[0]) {
+            return false;
+        }
+
+        this.visibleCount.decrementAndGet();
+        this.messageCount.decrementAndGet();
+        this.byteCount.addAndGet(-msg.getSize());
+        this.signalProducers();
+        return true;
+    }
+
+    // ID of a message, for comparing the heads of the visible collections - Long.MAX_VALUE if there's no message
+    private static long idOf(InMemoryMessage msg) {
+        return msg == null ? Long.MAX_VALUE : msg.getMessageID();
+    }
+
+    // delete (hopefully processed) message from this queue - returns true if it was deleted
+    protected boolean delete(Long receiptHandle) {
+        this.consumerLock.lock();
+        try {
+            // a message whose timeout has run out can no longer be deleted with its old receipt handle
+            this.expireInFlight();
+            return this.deleteInFlight(receiptHandle);
+        } finally {
+            this.consumerLock.unlock();
+        }
+    }
+
+    // delete a batch of messages from this queue - results[i] is true if the message for receiptHandles[i] was deleted
+    protected boolean[] delete(List<Long> receiptHandles) {
+        boolean[] results = new boolean[receiptHandles.size()];
+
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
+
+            for(int i = 0; i < results.length; i++) {
+                results[i] = this.deleteInFlight(receiptHandles.get(i));
             }
+        } finally {
+            this.consumerLock.unlock();
+        }
+
+        return results;
+    }
+
+    // delete the in-flight message a receipt handle was issued for - must be called with the consumer lock held
+    private boolean deleteInFlight(Long receiptHandle) {
+        InMemoryMessage msg = this.inFlight(receiptHandle);
+        if(msg == null) {
+            return false;
+        }
+
+        this.releaseSlot(msg);
+        this.visibilityTimer.cancel(msg);
+        this.inFlightCount--;
+        this.messageCount.decrementAndGet();
+        this.byteCount.addAndGet(-msg.getSize());
+        this.signalProducers();
+        return true;
+    }
+
+    // the in-flight message a receipt handle was issued for - null if there's none. must be called with the consumer lock held
+    private InMemoryMessage inFlight(Long receiptHandle) {
+        // a message must be in visibility timeout and have a matching receipt handle
+        // - the slot encoded in the handle must hold a message that was issued this exact handle
+        if(receiptHandle == null || receiptHandle <= 0) {
+            return null;
+        }
+
+        long rh = receiptHandle;
+        int slot = (int)(rh & SLOT_MASK);
+        if(slot >= this.inFlightSlots.length) {
+            return null;   // not a handle issued by this queue
+        }
+
+        InMemoryMessage msg = this.inFlightSlots[slot];
+        if(msg != null && msg.getRawReceiptHandle() == rh) {
+            return msg;
         }
 
         return null;
     }
 
-    // delete (hopefully processed) message from this queue
-    protected synchronized void delete(Long receiptHandle) {
-         ListIterator li = this.messageQueue.listIterator();
+    // change the visibility timeout of a batch of in-flight messages (see InMemoryQueueService.changeVisibility()) -
+    // results[i] is true if the message for receiptHandles[i] was found in flight. a message is moved on the visibility
+    // timer in constant time; a timeout of 0 returns it to the ready set straight away, as if its timeout had run out
+    protected boolean[] changeVisibility(List<Long> receiptHandles, long timeout) {
+        boolean[] results = new boolean[receiptHandles.size()];
 
-        // iterate from end of message list
-        while(li.hasNext()) {
-            InMemoryMessage m = (InMemoryMessage)li.next();
+        this.consumerLock.lock();
+        try {
+            // a message whose timeout has run out can no longer be changed with its old receipt handle
+            this.expireInFlight();
 
-            // to be eligible for deletion, a message must be in visibility timeout and have a matching receipt handle
-            if(!m.visible() && m.getReceiptHandle().equals(receiptHandle)) {
-                li.remove();    // delete message
-                
-                // delete used receipt handle
-                if(this.receiptHandles.containsKey(receiptHandle)) {
-                    this.receiptHandles.remove(receiptHandle);
-                    return;
+            int returned = 0;
+            for(int i = 0; i < results.length; i++) {
+                InMemoryMessage msg = this.inFlight(receiptHandles.get(i));
+                if(msg == null) {
+                    continue;
                 }
+
+                if(timeout == 0) {
+                    this.visibilityTimer.cancel(msg);
+                    this.expiryHandler.accept(msg);
+                    returned++;
+                } else {
+                    msg.changeVisibility(timeout);
+                    this.visibilityTimer.schedule(msg, msg.getExpiryTime());
+                }
+
+                results[i] = true;
+            }
+
+            if(returned > 0) {
+                if(this.waitingConsumers.get() > 0) {
+                    this.messageAvailable.signalAll();
+                    this.serveAsyncPulls();
+                }
+
+                this.signalProducers();
+            }
+        } finally {
+            this.consumerLock.unlock();
+        }
+
+        return results;
+    }
+
+    // free the in-flight slot of a message - must be called with the consumer lock held, before the message is released
+    private void releaseSlot(InMemoryMessage msg) {
+        int slot = (int)(msg.getRawReceiptHandle() & SLOT_MASK);
+        this.inFlightSlots[slot] = null;
+        this.freeSlots[this.freeSlotCount++] = slot;
+    }
+
+    // move messages whose visibility timeout has run out back to the ready set, and wake up long polling
+    // consumers if there are any - must be called with the consumer lock held
+    private void expireInFlight() {
+        long now = QueueClock.now();
+        int returned = this.returnedQueue.size();
+        this.visibilityTimer.advance(now, this.expiryHandler);
+
+        if(this.returnedQueue.size() > returned) {
+            if(this.waitingConsumers.get() > 0) {
+                this.messageAvailable.signalAll();
+                this.serveAsyncPulls();
             }
+
+            // producers may be waiting on the in-flight limit
+            this.signalProducers();
+        }
+
+        if(this.retentionPeriod > 0) {
+            this.dropRetained(now);
+        }
+    }
+
+    // drop visible messages that have been on this queue for its retention period or longer - must be called with the
+    // consumer lock held. each visible collection is in publish order, so only their heads are looked at. messages in
+    // flight are dropped once they are visible again (they can still be deleted until then)
+    private void dropRetained(long now) {
+        long cutoff = now - this.retentionPeriod;
+        int dropped = 0;
+        while(true) {
+            InMemoryMessage msg = null;
+            if(!this.returnedQueue.isEmpty() && this.returnedQueue.peek().getTimeCreated() <= cutoff) {
+                msg = this.returnedQueue.poll();
+            } else if(!this.pagedIn.isEmpty() && this.pagedIn.peek().getTimeCreated() <= cutoff) {
+                msg = this.pagedIn.poll();
+                this.memoryCount.decrementAndGet();
+            } else if(this.peekReadyTimeCreated() <= cutoff) {
+                msg = this.offHeapStore != null ? this.offHeapStore.poll() : this.readyQueue.poll();
+                if(this.spill != null) {
+                    this.memoryCount.decrementAndGet();
+                }
+            } else if(dropped > 0 && this.spill != null && this.spill.size() > 0 && this.memoryCount.get() <= this.memoryThreshold / 2 && this.pageIn() > 0) {
+                continue;   // spilled messages are newer than those in memory - look at them once enough of those are gone
+            } else {
+                break;
+            }
+
+            this.visibleCount.decrementAndGet();
+            this.messageCount.decrementAndGet();
+            this.byteCount.addAndGet(-msg.getSize());
+            dropped++;
+        }
+
+        if(dropped > 0) {
+            this.signalProducers();
+        }
+    }
+
+    // expire in-flight messages on behalf of the visibility timer's background sweeper, and time out asynchronous long polls.
+    // skipped if a consumer holds the lock - consumers expire messages themselves on every operation
+    public void expire() {
+        if((this.inFlightCount == 0 && this.waitingConsumers.get() == 0 && this.retentionPeriod == 0) || !this.consumerLock.tryLock()) {
+            return;
+        }
+
+        try {
+            this.expireInFlight();
+            this.serveAsyncPulls();
+        } finally {
+            this.consumerLock.unlock();
         }
     }
 
     // get number of messages in visibility timeout on this queue
-    protected synchronized long getInFlightCount() {
-        long count = 0;
-        for (InMemoryMessage msg: this.messageQueue) {
-            if(!msg.visible()){
-                count++;
+    protected long getInFlightCount() {
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
+            return this.inFlightCount;
+        } finally {
+            this.consumerLock.unlock();
+        }
+    }
+
+    // get number of messages on this queue that are available for retrieval
+    protected long getVisibleCount() {
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
+            return this.visibleCount.get();
+        } finally {
+            this.consumerLock.unlock();
+        }
+    }
+
+    // snapshot of this queue's metrics
+    public QueueStats stats() {
+        long visible;
+        long inFlight;
+        long oldest = 0;
+
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
+            visible = this.visibleCount.get();
+            inFlight = this.inFlightCount;
+
+            // the oldest visible message is at the head of one of the visible collections (spilled messages are newer
+            // than those in memory)
+            long returnedID = idOf(this.returnedQueue.peek());
+            long pagedID = idOf(this.pagedIn.peek());
+            long readyID = this.peekReadyID();
+            if(readyID < 0) {
+                readyID = Long.MAX_VALUE;
+            }
+
+            long created = -1;
+            if(returnedID < pagedID && returnedID < readyID) {
+                created = this.returnedQueue.peek().getTimeCreated();
+            } else if(pagedID < readyID) {
+                created = this.pagedIn.peek().getTimeCreated();
+            } else if(readyID != Long.MAX_VALUE) {
+                created = this.offHeapStore != null ? this.offHeapStore.peekTimeCreated() : this.readyQueue.peek().getTimeCreated();
             }
+
+            if(created >= 0) {
+                oldest = Math.max(QueueClock.now() - created, 0);
+            }
+        } finally {
+            this.consumerLock.unlock();
         }
 
-        return count;
+        return this.metrics.snapshot(this.queueName, visible, inFlight, this.messageCount.get(), oldest);
     }
 
     // return message queue size
     protected int getMessageCount() {
-        return this.messageQueue.size();
+        return this.messageCount.get();
     }
 
     // get number of maximum inflight messages allowed on this queue
-    protected synchronized long getMaxInFlight() {
-        return this.MAX_INFLIGHT_MESSAGES;
+    protected long getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    // get the attributes this queue was created with
+    protected QueueAttributes getAttributes() {
+        return this.attributes;
+    }
+
+    // get the visibility timeout of messages on this queue (in milliseconds)
+    protected long getVisibilityTimeout() {
+        return this.visibilityTimeout;
     }
 
     // get number of maximum messages allowed on this queue
-    protected synchronized long getMaxMessages() {
-        return this.MAX_QUEUE_MESSAGES;
+    protected long getMaxMessages() {
+        return this.maxMessages;
+    }
+
+    // get number of messages on this queue spilled to disk (0 unless the queue is tiered)
+    protected int getSpilledCount() {
+        return this.spill == null ? 0 : this.spill.size();
     }
 
     // indicate if the queue has reached maximum number of messages
-    protected synchronized boolean full() {
-        if(this.messageQueue.size() < MAX_QUEUE_MESSAGES) {
+    protected boolean full() {
+        if(this.messageCount.get() < this.maxMessages) {
             return false;   // got space for more 
         }
 
         return true;    // queue full
     }
 
-    // utility method - generate a Long identifier to be used as the receipt handle candidate for retrieved message
-    private Long createReceiptHandle() {
-        Random r = new Random();
-        Long rhc = new Long(r.nextLong());
+    protected void printQueue() {
+        ArrayList<InMemoryMessage> messages = new ArrayList<InMemoryMessage>(this.messageCount.get());
 
-        if(rhc < 0) {
-            rhc = rhc * (-1);
-        }
+        this.consumerLock.lock();
+        try {
+            this.expireInFlight();
 
-        return rhc;
-    }
+            // print messages in publish order, as they would be on a single list
+            messages.addAll(this.returnedQueue);
+            messages.addAll(this.pagedIn);
+            messages.addAll(this.offHeapStore != null ? this.offHeapStore.messages() : this.readyQueue);
+            for(InMemoryMessage msg: this.inFlightSlots) {
+                if(msg != null) {
+                    messages.add(msg);
+                }
+            }
+        } finally {
+            this.consumerLock.unlock();
+        }
+        Collections.sort(messages, this.returnedQueue.comparator());
 
-    protected synchronized void printQueue() {
-        long count = 0;
         System.out.println("\nMESSAGES ON THIS QUEUE (NAME: " + queueName + ")");
         System.out.println("---------------------------------");
-        
-        for (InMemoryMessage msg: this.messageQueue) {
+
+        for (InMemoryMessage msg: messages) {
             msg.printMessage();
         }
+
+        int spilled = this.getSpilledCount();
+        if(spilled > 0) {
+            System.out.println("<" + spilled + " more messages spilled to disk>");
+        }
     }
-}
\ No newline at end of file
+}
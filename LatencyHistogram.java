@@ -0,0 +1,148 @@
+package com.QueueEmulator;
+
+import java.util.concurrent.atomic.*;
+
+// LatencyHistogram records latencies (in nanoseconds) for the load generator and queue metrics, HdrHistogram-style.
+// Buckets are log-linear: values below SUB_BUCKETS each get a bucket of their own, and above that every power of two
+// is split into SUB_BUCKETS/2 equal buckets, so a value is always counted within 1/64 (about 1.6%) of itself, from
+// nanoseconds up to hours, in a fixed array of under 4000 counters. Recording is a few shifts and an increment.
+// A histogram isn't thread-safe - each thread records into its own, and they are added together afterwards - or
+// threads record into a Striped histogram, which takes recordings from any thread without locking.
+
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    // enough buckets for any non-negative long
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+
+    // stripes of a Striped histogram - a power of two, enough that threads rarely share one
+    private static final int STRIPES = Math.max(1, Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 16) * 2 - 1));
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    // record a latency - negative values count as 0
+    protected void record(long nanos) {
+        nanos = Math.max(nanos, 0);
+        this.counts[index(nanos)]++;
+        this.count++;
+        this.sum += nanos;
+        this.max = Math.max(this.max, nanos);
+    }
+
+    // add the recordings of another histogram to this one
+    protected void add(LatencyHistogram other) {
+        for(int i = 0; i < BUCKETS; i++) {
+            this.counts[i] += other.counts[i];
+        }
+
+        this.count += other.count;
+        this.sum += other.sum;
+        this.max = Math.max(this.max, other.max);
+    }
+
+    // number of latencies recorded
+    protected long count() {
+        return this.count;
+    }
+
+    // mean latency (0 if nothing was recorded)
+    protected double mean() {
+        return this.count == 0 ? 0 : (double)this.sum / this.count;
+    }
+
+    // highest latency recorded
+    protected long max() {
+        return this.max;
+    }
+
+    // latency at a given percentile (0-100): the highest value of the bucket holding that recording, capped at the
+    // highest recorded value - 0 if nothing was recorded
+    protected long percentile(double percentile) {
+        if(this.count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(this.count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += this.counts[i];
+            if(seen >= rank) {
+                return Math.min(highestValue(i), this.max);
+            }
+        }
+
+        return this.max;
+    }
+
+    // bucket a value is counted in
+    private static int index(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int)value;
+        }
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF_SUB_BUCKETS + (int)(value >>> shift);
+    }
+
+    // highest value counted in a bucket
+    private static long highestValue(int index) {
+        if(index < SUB_BUCKETS) {
+            return index;
+        }
+
+        int shift = index / HALF_SUB_BUCKETS - 1;
+        long subBucket = index - shift * HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    // a histogram any number of threads can record into at once, for the queue metrics.
+    // Each thread counts into one of STRIPES arrays of atomic counters (picked by thread ID, and allocated on first use),
+    // so threads don't contend on the same counters - recording takes no lock. snapshot() adds the stripes up.
+    static class Striped {
+        private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        // record a latency - negative values count as 0
+        protected void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+
+            int stripe = (int)Thread.currentThread().getId() & (STRIPES - 1);
+            AtomicLongArray counts = this.stripes.get(stripe);
+            if(counts == null) {
+                this.stripes.compareAndSet(stripe, null, new AtomicLongArray(BUCKETS));
+                counts = this.stripes.get(stripe);
+            }
+
+            counts.incrementAndGet(index(nanos));
+            this.sum.add(nanos);
+            this.max.accumulate(nanos);
+        }
+
+        // copy of the latencies recorded so far - recordings made while it is taken may or may not be included
+        protected LatencyHistogram snapshot() {
+            LatencyHistogram h = new LatencyHistogram();
+            for(int s = 0; s < STRIPES; s++) {
+                AtomicLongArray counts = this.stripes.get(s);
+                if(counts == null) {
+                    continue;
+                }
+
+                for(int i = 0; i < BUCKETS; i++) {
+                    long n = counts.get(i);
+                    h.counts[i] += n;
+                    h.count += n;
+                }
+            }
+
+            h.sum = this.sum.sum();
+            h.max = this.max.get();
+            return h;
+        }
+    }
+}
@@ -1,13 +1,28 @@
 
 package com.QueueEmulator;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
 // interface defining public API of a Message: once received, clients 
 // will be able to retrieve message content and a receipt handle. 
+// Content pushed as a String is returned as a String by getMessageContent(), and content pushed as bytes as a
+// read-only ByteBuffer - getPayload() returns either as bytes (a String as its UTF-8 encoding).
 
 public interface Message {
     // return message content
     public Object getMessageContent();
 
+    // return message content as bytes - a read-only buffer, positioned at the start of the content
+    public default ByteBuffer getPayload() {
+        Object content = this.getMessageContent();
+        if(content instanceof ByteBuffer) {
+            return ((ByteBuffer)content).asReadOnlyBuffer();
+        }
+
+        return ByteBuffer.wrap(String.valueOf(content).getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
     // return message receipt handle
     public Long getReceiptHandle();
 }
\ No newline at end of file
@@ -0,0 +1,11 @@
+package com.QueueEmulator;
+
+// handler for messages received by a subscription (see QueueService.subscribe()).
+// A message is deleted once its handler returns. If the handler throws, the message is left in flight and is
+// redelivered when its visibility timeout runs out.
+
+@FunctionalInterface
+public interface MessageHandler {
+    // handle a received message
+    public void handle(Message msg) throws Exception;
+}
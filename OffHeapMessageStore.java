@@ -0,0 +1,223 @@
+package com.QueueEmulator;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// OffHeapMessageStore holds the never-retrieved messages of an InMemoryQueue in direct memory, for queues of an
+// InMemoryQueueService in OFF_HEAP storage mode. A deep queue then costs the garbage collector a handful of chunk
+// buffers rather than several objects per message - messages only become objects again once they are received.
+//
+// Messages are received in the order they were published, so the store is a FIFO of records packed into fixed-size
+// chunks of direct memory: offer() appends at the tail chunk, poll() reads from the head chunk, and a chunk is freed
+// as soon as its last record has been read. Freed chunks go on a free list and are reused for new tail chunks (up to
+// MAX_FREE_CHUNKS are kept), so a queue that is steadily filled and drained allocates no new memory.
+// A message too large for a chunk gets a chunk of its own, which isn't reused.
+//
+// Record layout (the byte order is ByteBuffer's default, big-endian):
+//     int length | byte flags | long message ID | long time created | long visibility timeout | payload
+// A chunk's limit is set to the end of its last record once the tail moves on to the next chunk.
+//
+// Producers and consumers share the store's monitor, held for the copy of one record.
+
+class OffHeapMessageStore {
+    // size of a chunk of direct memory
+    private static final int CHUNK_SIZE = 1 << 20;
+
+    // most freed chunks kept for reuse - beyond that, they are left to the garbage collector
+    private static final int MAX_FREE_CHUNKS = 4;
+
+    // record header fields
+    private static final int RECORD_LENGTH = 0;
+    private static final int RECORD_FLAGS = 4;
+    private static final int RECORD_ID = 5;
+    private static final int RECORD_CREATED = 13;
+    private static final int RECORD_TIMEOUT = 21;
+    private static final int HEADER_SIZE = 29;
+
+    // record flags
+    private static final byte FLAG_BINARY = 1;     // payload is binary content, not a UTF-8 encoded String
+
+    // chunks in use, from the one being read (head) to the one being written (tail)
+    private final ArrayDeque<ByteBuffer> chunks = new ArrayDeque<ByteBuffer>();
+    private final ArrayDeque<ByteBuffer> freeChunks = new ArrayDeque<ByteBuffer>();
+
+    private int readPosition = 0;       // in the head chunk
+    private int writePosition = 0;      // in the tail chunk
+    private int count = 0;
+    private long allocatedBytes = 0;
+
+    // append a message - the message object itself isn't kept
+    protected synchronized void offer(InMemoryMessage msg) {
+        Object content = msg.getMessageContent();
+        byte flags = 0;
+        ByteBuffer payload;
+        if(content instanceof ByteBuffer) {
+            flags = FLAG_BINARY;
+            payload = (ByteBuffer)content;
+        } else {
+            payload = ByteBuffer.wrap(String.valueOf(content).getBytes(StandardCharsets.UTF_8));
+        }
+
+        int length = payload.remaining();
+        ByteBuffer chunk = this.tailChunk(HEADER_SIZE + length);
+        int position = this.writePosition;
+        chunk.putInt(position + RECORD_LENGTH, length);
+        chunk.put(position + RECORD_FLAGS, flags);
+        chunk.putLong(position + RECORD_ID, msg.getMessageID());
+        chunk.putLong(position + RECORD_CREATED, msg.getTimeCreated());
+        chunk.putLong(position + RECORD_TIMEOUT, msg.getVisibilityTimeout());
+        chunk.put(position + HEADER_SIZE, payload, payload.position(), length);
+
+        this.writePosition = position + HEADER_SIZE + length;
+        this.count++;
+    }
+
+    // ID of the message at the head of the store - -1 if the store is empty
+    protected synchronized long peekID() {
+        if(this.count == 0) {
+            return -1;
+        }
+
+        return this.headChunk().getLong(this.readPosition + RECORD_ID);
+    }
+
+    // time the message at the head of the store was created (in ms) - 0 if the store is empty
+    protected synchronized long peekTimeCreated() {
+        if(this.count == 0) {
+            return 0;
+        }
+
+        return this.headChunk().getLong(this.readPosition + RECORD_CREATED);
+    }
+
+    // take the message at the head of the store, as a message object - null if the store is empty
+    protected synchronized InMemoryMessage poll() {
+        if(this.count == 0) {
+            return null;
+        }
+
+        ByteBuffer chunk = this.headChunk();
+        InMemoryMessage msg = this.read(chunk, this.readPosition);
+        this.readPosition += HEADER_SIZE + chunk.getInt(this.readPosition + RECORD_LENGTH);
+        this.count--;
+
+        if(this.count == 0 && this.chunks.size() == 1) {
+            // empty - start over at the front of the only chunk left
+            this.readPosition = 0;
+            this.writePosition = 0;
+        }
+
+        return msg;
+    }
+
+    // copies of every message in the store, in order
+    protected synchronized List<InMemoryMessage> messages() {
+        ArrayList<InMemoryMessage> messages = new ArrayList<InMemoryMessage>(this.count);
+        int position = this.readPosition;
+        Iterator<ByteBuffer> it = this.chunks.iterator();
+        ByteBuffer chunk = it.hasNext() ? it.next() : null;
+        while(messages.size() < this.count) {
+            if(position >= chunk.limit()) {
+                chunk = it.next();
+                position = 0;
+                continue;
+            }
+
+            messages.add(this.read(chunk, position));
+            position += HEADER_SIZE + chunk.getInt(position + RECORD_LENGTH);
+        }
+
+        return messages;
+    }
+
+    // number of messages in the store
+    protected synchronized int size() {
+        return this.count;
+    }
+
+    // direct memory held by the store (in bytes), including free chunks kept for reuse
+    protected synchronized long getAllocatedBytes() {
+        return this.allocatedBytes;
+    }
+
+    // drop every message and chunk - the memory is returned once the garbage collector frees the chunk buffers
+    protected synchronized void clear() {
+        this.chunks.clear();
+        this.freeChunks.clear();
+        this.readPosition = 0;
+        this.writePosition = 0;
+        this.count = 0;
+        this.allocatedBytes = 0;
+    }
+
+    // chunk holding the head record, moving past chunks that have been read to the end (which are freed)
+    private ByteBuffer headChunk() {
+        ByteBuffer chunk = this.chunks.peekFirst();
+        while(this.readPosition >= chunk.limit()) {
+            this.free(this.chunks.pollFirst());
+            this.readPosition = 0;
+            chunk = this.chunks.peekFirst();
+        }
+
+        return chunk;
+    }
+
+    // tail chunk with room for a record of a given size, moving on to a new chunk if the current one is full
+    private ByteBuffer tailChunk(int recordSize) {
+        ByteBuffer chunk = this.chunks.peekLast();
+        if(chunk != null && chunk.capacity() - this.writePosition >= recordSize) {
+            return chunk;
+        }
+
+        if(chunk != null) {
+            chunk.limit(this.writePosition);   // readers move on to the next chunk here
+        }
+
+        ByteBuffer next;
+        if(recordSize > CHUNK_SIZE) {
+            next = this.allocate(recordSize);
+        } else if(!this.freeChunks.isEmpty()) {
+            next = this.freeChunks.pollFirst();
+            next.clear();
+        } else {
+            next = this.allocate(CHUNK_SIZE);
+        }
+
+        this.chunks.addLast(next);
+        this.writePosition = 0;
+        return next;
+    }
+
+    private ByteBuffer allocate(int size) {
+        this.allocatedBytes += size;
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    // free a chunk that has been read to the end - standard chunks are kept for reuse, up to MAX_FREE_CHUNKS
+    private void free(ByteBuffer chunk) {
+        if(chunk.capacity() == CHUNK_SIZE && this.freeChunks.size() < MAX_FREE_CHUNKS) {
+            this.freeChunks.addLast(chunk);
+        } else {
+            this.allocatedBytes -= chunk.capacity();
+        }
+    }
+
+    // the message in a record - its content is copied onto the heap, as the chunk will be reused
+    private InMemoryMessage read(ByteBuffer chunk, int position) {
+        int length = chunk.getInt(position + RECORD_LENGTH);
+        byte[] payload = new byte[length];
+        chunk.get(position + HEADER_SIZE, payload);
+
+        Object content;
+        if((chunk.get(position + RECORD_FLAGS) & FLAG_BINARY) != 0) {
+            content = ByteBuffer.wrap(payload).asReadOnlyBuffer();
+        } else {
+            content = new String(payload, StandardCharsets.UTF_8);
+        }
+
+        InMemoryMessage msg = new InMemoryMessage(chunk.getLong(position + RECORD_TIMEOUT), content, chunk.getLong(position + RECORD_CREATED));
+        msg.setMessageID(chunk.getLong(position + RECORD_ID));
+        return msg;
+    }
+}
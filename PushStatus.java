@@ -0,0 +1,21 @@
+package com.QueueEmulator;
+
+// outcome of a push made with QueueService.push(message, queueName, backpressure, waitTime) - unlike push()'s false,
+// it tells apart the reasons a push can fail, so producers can tell a full queue (worth retrying later) from a message
+// that will never be accepted.
+
+public enum PushStatus {
+    // the message was published
+    OK,
+    // the message is null or empty
+    INVALID_MESSAGE,
+    // there's no such queue
+    NO_SUCH_QUEUE,
+    // the message is larger than the queue's max. message size
+    MESSAGE_TOO_LARGE,
+    // the queue is at one of its limits (message count, bytes or messages in flight), and didn't make room in the time
+    // the producer was willing to wait
+    QUEUE_FULL,
+    // the message couldn't be published for another reason (e.g. an I/O error)
+    FAILED
+}
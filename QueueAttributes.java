@@ -0,0 +1,182 @@
+package com.QueueEmulator;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+// QueueAttributes are the settings of a queue, given when it is created (see createQueue(queueName, attributes) on
+// InMemoryQueueService and FileQueueService) - modelled on the SQS queue attributes of the same names:
+// - visibility timeout: how long a received message stays invisible before it is delivered again, unless deleted or
+//   changed with changeVisibility() (in milliseconds)
+// - max in flight: most messages received but not deleted at a time (up to MAX_IN_FLIGHT)
+// - max messages: most messages on the queue at a time, in flight or not - 0 leaves it to the service (in-memory
+//   queues take 100000, or any number if they spill to disk; file queues are only bounded by disk space)
+// - retention period: how long a message is kept before it is dropped, whether or not it has been received - 0 keeps
+//   messages until they are deleted (in milliseconds)
+// - redrive policy: a dead-letter queue on the same service, and the most times a message is received before it is
+//   moved there instead of being delivered again (max receive count) - 0 delivers messages any number of times.
+//   A dead-lettered message is pushed onto the dead-letter queue as a new message; QueueService.redrive() moves
+//   messages back. A queue can't be its own dead-letter queue, directly or through other queues' redrive policies.
+//
+// File queues keep their attributes in an "attributes" file in the queue directory, so every process opening the
+// queue applies the same ones.
+
+public class QueueAttributes {
+    // visibility timeout of a queue created without attributes (in milliseconds)
+    public static final long DEFAULT_VISIBILITY_TIMEOUT = 5000;
+
+    // longest visibility timeout of a queue or message (in milliseconds) - as SQS
+    public static final long MAX_VISIBILITY_TIMEOUT = TimeUnit.HOURS.toMillis(12);
+
+    // most messages that can be in flight on a queue - the size of a queue's in-flight slot table
+    public static final int MAX_IN_FLIGHT = 20000;
+
+    // attribute names in a file queue's attributes file
+    private static final String VISIBILITY_TIMEOUT = "visibilityTimeout";
+    private static final String MAX_IN_FLIGHT_MESSAGES = "maxInFlight";
+    private static final String MAX_MESSAGES = "maxMessages";
+    private static final String RETENTION_PERIOD = "retentionPeriod";
+    private static final String DEAD_LETTER_QUEUE = "deadLetterQueue";
+    private static final String MAX_RECEIVE_COUNT = "maxReceiveCount";
+
+    private long visibilityTimeout = DEFAULT_VISIBILITY_TIMEOUT;
+    private int maxInFlight = MAX_IN_FLIGHT;
+    private long maxMessages = 0;
+    private long retentionPeriod = 0;
+    private String deadLetterQueue = null;
+    private int maxReceiveCount = 0;
+
+    // attributes with the defaults of a queue created without any
+    public QueueAttributes() {
+    }
+
+    // a copy of given attributes
+    public QueueAttributes(QueueAttributes other) {
+        this.visibilityTimeout = other.visibilityTimeout;
+        this.maxInFlight = other.maxInFlight;
+        this.maxMessages = other.maxMessages;
+        this.retentionPeriod = other.retentionPeriod;
+        this.deadLetterQueue = other.deadLetterQueue;
+        this.maxReceiveCount = other.maxReceiveCount;
+    }
+
+    public long getVisibilityTimeout() {
+        return this.visibilityTimeout;
+    }
+
+    public QueueAttributes setVisibilityTimeout(long visibilityTimeout) {
+        this.visibilityTimeout = visibilityTimeout;
+        return this;
+    }
+
+    public int getMaxInFlight() {
+        return this.maxInFlight;
+    }
+
+    public QueueAttributes setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    public long getMaxMessages() {
+        return this.maxMessages;
+    }
+
+    public QueueAttributes setMaxMessages(long maxMessages) {
+        this.maxMessages = maxMessages;
+        return this;
+    }
+
+    public long getRetentionPeriod() {
+        return this.retentionPeriod;
+    }
+
+    public QueueAttributes setRetentionPeriod(long retentionPeriod) {
+        this.retentionPeriod = retentionPeriod;
+        return this;
+    }
+
+    public String getDeadLetterQueue() {
+        return this.deadLetterQueue;
+    }
+
+    public int getMaxReceiveCount() {
+        return this.maxReceiveCount;
+    }
+
+    // move messages received maxReceiveCount times to a given dead-letter queue - a null queue (or a max receive count
+    // of 0) removes the policy
+    public QueueAttributes setRedrivePolicy(String deadLetterQueue, int maxReceiveCount) {
+        if(deadLetterQueue == null || maxReceiveCount == 0) {
+            this.deadLetterQueue = null;
+            this.maxReceiveCount = 0;
+        } else {
+            this.deadLetterQueue = deadLetterQueue.trim();
+            this.maxReceiveCount = maxReceiveCount;
+        }
+        return this;
+    }
+
+    // indicate if these attributes are in range
+    protected boolean valid() {
+        return this.visibilityTimeout >= 0 && this.visibilityTimeout <= MAX_VISIBILITY_TIMEOUT && this.maxInFlight >= 1 && this.maxInFlight <= MAX_IN_FLIGHT
+            && this.maxMessages >= 0 && this.retentionPeriod >= 0
+            && this.maxReceiveCount >= 0 && (this.maxReceiveCount == 0 || (this.deadLetterQueue != null && !this.deadLetterQueue.equals("")));
+    }
+
+    // write these attributes to a file, replacing it in one step
+    protected void store(File file) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(VISIBILITY_TIMEOUT, Long.toString(this.visibilityTimeout));
+        p.setProperty(MAX_IN_FLIGHT_MESSAGES, Integer.toString(this.maxInFlight));
+        p.setProperty(MAX_MESSAGES, Long.toString(this.maxMessages));
+        p.setProperty(RETENTION_PERIOD, Long.toString(this.retentionPeriod));
+        if(this.deadLetterQueue != null) {
+            p.setProperty(DEAD_LETTER_QUEUE, this.deadLetterQueue);
+            p.setProperty(MAX_RECEIVE_COUNT, Integer.toString(this.maxReceiveCount));
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            p.store(out, "queue attributes");
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // read attributes from a file - attributes it doesn't give keep their defaults, and so does everything if there's
+    // no such file. throws IOException if the file can't be read or holds attributes out of range
+    protected static QueueAttributes load(File file) throws IOException {
+        QueueAttributes attributes = new QueueAttributes();
+        if(!file.exists()) {
+            return attributes;
+        }
+
+        Properties p = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            p.load(in);
+        }
+
+        try {
+            attributes.visibilityTimeout = Long.parseLong(p.getProperty(VISIBILITY_TIMEOUT, Long.toString(attributes.visibilityTimeout)));
+            attributes.maxInFlight = Integer.parseInt(p.getProperty(MAX_IN_FLIGHT_MESSAGES, Integer.toString(attributes.maxInFlight)));
+            attributes.maxMessages = Long.parseLong(p.getProperty(MAX_MESSAGES, Long.toString(attributes.maxMessages)));
+            attributes.retentionPeriod = Long.parseLong(p.getProperty(RETENTION_PERIOD, Long.toString(attributes.retentionPeriod)));
+            attributes.setRedrivePolicy(p.getProperty(DEAD_LETTER_QUEUE), Integer.parseInt(p.getProperty(MAX_RECEIVE_COUNT, "0")));
+        } catch(NumberFormatException e) {
+            throw new IOException("Invalid queue attributes in " + file + ": " + e.getMessage());
+        }
+
+        if(!attributes.valid()) {
+            throw new IOException("Queue attributes out of range in " + file);
+        }
+
+        return attributes;
+    }
+
+    public String toString() {
+        return "visibilityTimeout=" + this.visibilityTimeout + "ms maxInFlight=" + this.maxInFlight + " maxMessages=" + this.maxMessages
+            + " retentionPeriod=" + this.retentionPeriod + "ms"
+            + (this.deadLetterQueue != null ? " deadLetterQueue=" + this.deadLetterQueue + " maxReceiveCount=" + this.maxReceiveCount : "");
+    }
+}
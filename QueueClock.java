@@ -0,0 +1,23 @@
+package com.QueueEmulator;
+
+// shared clock for the queue services.
+// Message timestamps and visibility timeouts only need millisecond precision, so instead of every message
+// operation allocating a Date, they all read this clock - a System.nanoTime() call and some arithmetic,
+// which allocates nothing.
+// The clock is monotonic (wall clock adjustments can't make an in-flight message expire early or late), and
+// it is anchored to the wall clock when the class loads, so it can still be compared with times written to
+// disk by other processes.
+
+final class QueueClock {
+    // wall clock time and nanoTime at which this clock started - all readings are relative to these
+    private static final long START_MILLIS = System.currentTimeMillis();
+    private static final long START_NANOS = System.nanoTime();
+
+    private QueueClock() {
+    }
+
+    // current time in milliseconds
+    static long now() {
+        return START_MILLIS + (System.nanoTime() - START_NANOS) / 1000000;
+    }
+}
@@ -0,0 +1,46 @@
+package com.QueueEmulator;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// threads for work the queue services hand off: blocking calls made on behalf of the asynchronous API, and completion
+// of asynchronous results away from threads holding queue locks.
+// Virtual threads are used where the JVM has them (Java 21 on) - the build targets Java 17, so they are looked up
+// reflectively - and platform daemon threads otherwise.
+
+final class QueueExecutors {
+    // runs the blocking calls behind QueueService's default asynchronous methods, and completes asynchronous results
+    static final ExecutorService ASYNC = newAsyncExecutor();
+
+    private QueueExecutors() {
+    }
+
+    // return an executor starting a virtual thread per task - null if the JVM has no virtual threads
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException e) {
+            // no virtual threads before Java 21
+            return null;
+        }
+    }
+
+    // return a factory of named daemon threads
+    static ThreadFactory daemonThreads(String name) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    private static ExecutorService newAsyncExecutor() {
+        ExecutorService executor = newVirtualThreadExecutor();
+        if(executor == null) {
+            executor = Executors.newCachedThreadPool(daemonThreads("QueueServiceAsync"));
+        }
+
+        return executor;
+    }
+}
@@ -0,0 +1,150 @@
+package com.QueueEmulator;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+// QueueLock is the cross-process lock on a file queue directory.
+// Processes are excluded by an OS-level lock (FileChannel.lock) on the queue's ".lock" file. The OS drops that lock when
+// its holder exits, however it exits, so a crashed process can no longer leave a queue locked.
+// OS file locks are held per process rather than per thread, so threads of the same process are excluded by a
+// ReentrantLock first - there is one QueueLock per queue directory per process, shared by every FileQueue opened on it.
+//
+// A process waiting for another process spins on tryLock() briefly (the lock is usually held for microseconds), then
+// parks between attempts with exponential backoff, capped at MAX_PARK_NANOS.
+
+class QueueLock {
+    // number of immediate retries before a waiting thread starts parking
+    private static final int SPIN_TRIES = 64;
+
+    // first and longest park between retries (in nanoseconds)
+    private static final long MIN_PARK_NANOS = 10000;
+    private static final long MAX_PARK_NANOS = 1000000;
+
+    // queue locks of this process, by canonical queue directory path
+    private static final ConcurrentHashMap<String,QueueLock> locks = new ConcurrentHashMap<String,QueueLock>();
+
+    // the lock file
+    private final Path path;
+
+    // serialises threads of this process
+    private final ReentrantLock threadLock = new ReentrantLock();
+
+    // open lock file and the OS lock held on it (only touched by the thread holding threadLock)
+    private FileChannel channel;
+    private FileLock fileLock;
+
+    private QueueLock(Path path) {
+        this.path = path;
+    }
+
+    // return the lock on a given queue directory
+    static QueueLock forDirectory(File dir) throws IOException {
+        String key = dir.getCanonicalPath();
+        QueueLock lock = locks.get(key);
+        if(lock == null) {
+            File f = new File(dir, ".lock");
+            if(f.isDirectory()) {
+                // left behind by an older version, which locked queues by creating this directory
+                f.delete();
+            }
+
+            QueueLock created = new QueueLock(f.toPath());
+            lock = locks.putIfAbsent(key, created);
+            if(lock == null) {
+                lock = created;
+            }
+        }
+
+        return lock;
+    }
+
+    // close the lock file of a deleted queue directory - the next lock() opens it again, so a queue created again in its
+    // place is locked through its own lock file. must not be called holding the lock
+    static void release(File dir) {
+        QueueLock lock;
+        try {
+            lock = locks.get(dir.getCanonicalPath());
+        } catch(IOException e) {
+            return;
+        }
+
+        if(lock != null) {
+            lock.threadLock.lock();
+            try {
+                if(lock.channel != null) {
+                    lock.channel.close();
+                }
+            } catch(IOException e) {
+                // nothing left to do with it
+            } finally {
+                lock.threadLock.unlock();
+            }
+        }
+    }
+
+    // obtain the lock, waiting as long as it takes
+    protected void lock() throws IOException, InterruptedException {
+        this.threadLock.lockInterruptibly();
+        try {
+            long park = MIN_PARK_NANOS;
+            for(int tries = 0; !this.tryFileLock(); tries++) {
+                if(Thread.interrupted()) {
+                    throw new InterruptedException("Interrupted while waiting for lock " + this.path);
+                }
+
+                if(tries < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(park);
+                    park = Math.min(park * 2, MAX_PARK_NANOS);
+                }
+            }
+        } catch(IOException | InterruptedException e) {
+            this.threadLock.unlock();
+            throw e;
+        }
+    }
+
+    // obtain the lock only if neither this nor another process holds it - never waits
+    protected boolean tryLock() {
+        if(!this.threadLock.tryLock()) {
+            return false;
+        }
+
+        try {
+            if(this.tryFileLock()) {
+                return true;
+            }
+        } catch(IOException e) {
+            // treat as held by someone else
+        }
+
+        this.threadLock.unlock();
+        return false;
+    }
+
+    // release the lock
+    protected void unlock() {
+        try {
+            this.fileLock.release();
+        } catch(IOException e) {
+            // the OS lock went with its channel
+        } finally {
+            this.fileLock = null;
+            this.threadLock.unlock();
+        }
+    }
+
+    // try once for the OS lock, (re)opening the lock file if needed - an interrupt closes a FileChannel
+    private boolean tryFileLock() throws IOException {
+        if(this.channel == null || !this.channel.isOpen()) {
+            this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        this.fileLock = this.channel.tryLock();
+        return this.fileLock != null;
+    }
+}
@@ -0,0 +1,280 @@
+package com.QueueEmulator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Cleaner;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+// QueueMetrics records the operations on a queue, for QueueStats snapshots and the queue's JMX MBean.
+// Recording is on the hot path of every push, pull and delete, so it takes no locks: counts go into LongAdders and
+// latencies into striped histograms, both of which spread concurrent updates over separate cells. Everything is
+// added up only when a snapshot is taken.
+// Message counts and the age of the oldest message aren't recorded here - the queue reads them off its own state when
+// a snapshot is taken (see the Source interface).
+
+class QueueMetrics {
+
+    // a queue that can be asked for a snapshot of its metrics
+    interface Source {
+        public QueueStats stats();
+    }
+
+    // counts events, and keeps a one minute exponentially weighted moving average of their rate (like the Unix load
+    // average), starting from the rate over the first tick. Marking is a LongAdder increment - the average is only
+    // brought up to date when it is read.
+    static class Meter {
+        // the average is updated once per TICK_NANOS, and decays by ALPHA each tick
+        private static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+        private static final double ALPHA = 1 - Math.exp(-5.0 / 60);
+
+        private final LongAdder count = new LongAdder();
+
+        // guarded by this
+        private long lastTick = System.nanoTime();
+        private long counted = 0;
+        private double rate = 0;
+        private boolean started = false;
+
+        // record n events
+        protected void mark(long n) {
+            this.count.add(n);
+        }
+
+        // total events recorded
+        protected long count() {
+            return this.count.sum();
+        }
+
+        // events per second, averaged over about the last minute
+        protected synchronized double rate() {
+            long ticks = (System.nanoTime() - this.lastTick) / TICK_NANOS;
+            if(ticks > 0) {
+                // events since the last update are spread evenly over the ticks that went by
+                long total = this.count.sum();
+                double instantRate = (total - this.counted) / (ticks * (TICK_NANOS / 1e9));
+                if(!this.started) {
+                    this.rate = instantRate;
+                    this.started = true;
+                } else {
+                    for(long i = 0; i < Math.min(ticks, 100); i++) {
+                        this.rate += ALPHA * (instantRate - this.rate);
+                    }
+                }
+
+                this.counted = total;
+                this.lastTick += ticks * TICK_NANOS;
+            }
+
+            return this.rate;
+        }
+    }
+
+    // numbers the queue services of this process, to tell their MBeans apart
+    private static final AtomicInteger serviceCount = new AtomicInteger();
+
+    private final Meter pushes = new Meter();
+    private final Meter pulls = new Meter();
+    private final Meter deletes = new Meter();
+    private final LongAdder emptyReceives = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LatencyHistogram.Striped pushLatency = new LatencyHistogram.Striped();
+    private final LatencyHistogram.Striped pullLatency = new LatencyHistogram.Striped();
+    private final LatencyHistogram.Striped deleteLatency = new LatencyHistogram.Striped();
+
+    // unregisters the MBeans of queues dropped without being deleted, once they have been collected
+    private static final Cleaner cleaner = Cleaner.create();
+
+    // unregisters this queue's MBean, straight away or once the queue is collected - null if it isn't registered
+    private volatile Cleaner.Cleanable registration;
+
+    // return a number for a new queue service, unique in this process
+    static int nextServiceNumber() {
+        return serviceCount.incrementAndGet();
+    }
+
+    // number of entries of a batch result that succeeded
+    static int count(boolean[] results) {
+        int n = 0;
+        for(boolean result: results) {
+            if(result) {
+                n++;
+            }
+        }
+
+        return n;
+    }
+
+    // record a push call that published a number of messages
+    protected void pushed(int messages, long nanos) {
+        this.pushes.mark(messages);
+        this.pushLatency.record(nanos);
+    }
+
+    // record a pull call that received a number of messages - a negative time isn't recorded (used for long polls,
+    // which take as long as they wait)
+    protected void pulled(int messages, long nanos) {
+        if(messages == 0) {
+            this.emptyReceives.increment();
+        } else {
+            this.pulls.mark(messages);
+        }
+
+        if(nanos >= 0) {
+            this.pullLatency.record(nanos);
+        }
+    }
+
+    // record a delete call that deleted a number of messages
+    protected void deleted(int messages, long nanos) {
+        this.deletes.mark(messages);
+        this.deleteLatency.record(nanos);
+    }
+
+    // record messages coming out of visibility timeout
+    protected void expired(int messages) {
+        this.expirations.add(messages);
+    }
+
+    // snapshot of these metrics, along with message counts read off the queue
+    protected QueueStats snapshot(String queueName, long visible, long inFlight, long total, long oldestMessageAge) {
+        return new QueueStats(queueName, visible, inFlight, total, oldestMessageAge,
+            this.pushes.count(), this.pulls.count(), this.deletes.count(), this.emptyReceives.sum(), this.expirations.sum(),
+            this.pushes.rate(), this.pulls.rate(), this.deletes.rate(),
+            new QueueStats.Latency(this.pushLatency.snapshot()), new QueueStats.Latency(this.pullLatency.snapshot()),
+            new QueueStats.Latency(this.deleteLatency.snapshot()));
+    }
+
+    // register the MBean of a queue with the platform MBean server. The MBean only holds the queue's name and a weak
+    // reference to the queue, so a queue dropped without being deleted can still be collected (along with these
+    // metrics) - its MBean is then unregistered by the cleaner.
+    protected void register(String serviceType, int serviceNumber, String queueName, Source source) {
+        try {
+            ObjectName name = new ObjectName("com.QueueEmulator:type=" + serviceType + ",service=" + serviceNumber + ",queue=" + ObjectName.quote(queueName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(new View(queueName, source), QueueMetricsMXBean.class, true), name);
+            this.registration = cleaner.register(source, () -> QueueMetrics.unregister(name));
+        } catch(JMException e) {
+            System.err.println("Caught JMException while registering metrics of queue <" + queueName + ">: " + e.getMessage());
+        }
+    }
+
+    // unregister the MBean of a queue, if it has one
+    protected void unregister() {
+        Cleaner.Cleanable registration = this.registration;
+        this.registration = null;
+        if(registration != null) {
+            registration.clean();
+        }
+    }
+
+    // run by the cleaner - must not refer to the queue or its metrics
+    private static void unregister(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch(JMException e) {
+            // already gone
+        }
+    }
+
+    // the MBean of a queue - reads go to a snapshot, refreshed at most every REFRESH_INTERVAL ms, so that reading all
+    // of its attributes doesn't add up the histograms once per attribute. Static, so the MBean server doesn't hold on
+    // to the queue's metrics.
+    private static class View implements QueueMetricsMXBean {
+        private static final long REFRESH_INTERVAL = 1000;
+
+        private final String queueName;
+        private final WeakReference<Source> source;
+        private QueueStats stats;
+        private long statsTime;
+
+        private View(String queueName, Source source) {
+            this.queueName = queueName;
+            this.source = new WeakReference<Source>(source);
+        }
+
+        private synchronized QueueStats current() {
+            long now = QueueClock.now();
+            if(this.stats == null || now - this.statsTime >= REFRESH_INTERVAL) {
+                Source s = this.source.get();
+                if(s == null) {
+                    // the queue is gone, and its MBean about to be unregistered - the last snapshot stands
+                    if(this.stats == null) {
+                        QueueStats.Latency none = new QueueStats.Latency(new LatencyHistogram());
+                        this.stats = new QueueStats(this.queueName, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, none, none, none);
+                    }
+                } else {
+                    this.stats = s.stats();
+                }
+
+                this.statsTime = now;
+            }
+
+            return this.stats;
+        }
+
+        public String getQueueName() {
+            return this.queueName;
+        }
+
+        public long getVisibleMessages() {
+            return this.current().getVisibleMessages();
+        }
+
+        public long getInFlightMessages() {
+            return this.current().getInFlightMessages();
+        }
+
+        public long getTotalMessages() {
+            return this.current().getTotalMessages();
+        }
+
+        public long getOldestMessageAge() {
+            return this.current().getOldestMessageAge();
+        }
+
+        public long getPushCount() {
+            return this.current().getPushCount();
+        }
+
+        public long getPullCount() {
+            return this.current().getPullCount();
+        }
+
+        public long getDeleteCount() {
+            return this.current().getDeleteCount();
+        }
+
+        public long getEmptyReceiveCount() {
+            return this.current().getEmptyReceiveCount();
+        }
+
+        public long getExpiredCount() {
+            return this.current().getExpiredCount();
+        }
+
+        public double getPushRate() {
+            return this.current().getPushRate();
+        }
+
+        public double getPullRate() {
+            return this.current().getPullRate();
+        }
+
+        public double getDeleteRate() {
+            return this.current().getDeleteRate();
+        }
+
+        public QueueStats.Latency getPushLatency() {
+            return this.current().getPushLatency();
+        }
+
+        public QueueStats.Latency getPullLatency() {
+            return this.current().getPullLatency();
+        }
+
+        public QueueStats.Latency getDeleteLatency() {
+            return this.current().getDeleteLatency();
+        }
+    }
+}
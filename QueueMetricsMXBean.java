@@ -0,0 +1,39 @@
+package com.QueueEmulator;
+
+// JMX view of the metrics of a queue - registered for every queue as
+//     com.QueueEmulator:type=<service class>,service=<service number>,queue=<queue name>
+// Attributes are those of QueueStats (latencies appear as composite attributes), refreshed at most once a second.
+
+public interface QueueMetricsMXBean {
+    public String getQueueName();
+
+    public long getVisibleMessages();
+
+    public long getInFlightMessages();
+
+    public long getTotalMessages();
+
+    public long getOldestMessageAge();
+
+    public long getPushCount();
+
+    public long getPullCount();
+
+    public long getDeleteCount();
+
+    public long getEmptyReceiveCount();
+
+    public long getExpiredCount();
+
+    public double getPushRate();
+
+    public double getPullRate();
+
+    public double getDeleteRate();
+
+    public QueueStats.Latency getPushLatency();
+
+    public QueueStats.Latency getPullLatency();
+
+    public QueueStats.Latency getDeleteLatency();
+}
@@ -1,5 +1,9 @@
 package com.QueueEmulator;
 
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
 public interface QueueService {
   // Interface defining message queue service public API
   // - push
@@ -9,6 +13,28 @@ public interface QueueService {
   // - delete
   //   deletes a message from the queue that was received by pull().
   //
+  // Each operation also has a batch form (modelled on SQS SendMessageBatch, ReceiveMessage with
+  // MaxNumberOfMessages and DeleteMessageBatch) which pays for queue lookup and locking once per batch.
+  // Batch results are per entry: result[i] is the outcome for entry i of the request.
+  // Batch pull can also long poll (like SQS WaitTimeSeconds): it waits up to a given time for a message
+  // to become visible instead of returning empty straight away.
+  // Messages can also be pushed as bytes (pushPayload), for binary payloads - see Message.getPayload().
+  // Pushes onto a queue at one of its limits fail straight away - producers can instead choose to wait for room or be
+  // slowed down as the queue fills (see Backpressure), and be told why a push failed (see PushStatus).
+  // Each queue's metrics (message counts, operation rates and latencies) can be read as a snapshot with
+  // getQueueStats(), and are also published as JMX MBeans - see QueueMetrics.
+  // Instead of running their own pull/delete loop, consumers can subscribe a handler to a queue (see Subscription).
+  // A consumer can change the visibility timeout of a message it has received (changeVisibility, like SQS
+  // ChangeMessageVisibility): extending it while a slow handler is still at work, like a heartbeat, or setting it to 0 to
+  // give the message back straight away. Queues are created with attributes of their own (see QueueAttributes).
+  // A queue's redrive policy moves messages that keep failing to a dead-letter queue once they have been received a
+  // given number of times, so they stop being redelivered ahead of other messages - redrive moves them back once fixed.
+  // push, pull and delete also have asynchronous forms (pushAsync, pullAsync, deleteAsync), which return a
+  // CompletableFuture without blocking the caller. These defaults run the blocking call on another thread -
+  // implementations override them to complete without tying up a thread per call.
+  // Dependent stages attached to a returned future without an executor may run on a queue service thread, so
+  // slow work should be attached with the *Async variants of CompletableFuture's methods.
+  //
 
   // push a given message onto a specified queue
   public boolean push(String message, String queueName);
@@ -19,4 +45,181 @@ public interface QueueService {
   // delete received message from a specified queue
   public void delete(Long receiptHandle, String queueName);
 
+  // push a message with binary content onto a specified queue - the bytes between the payload's position and limit
+  // are pushed, and the buffer itself is left unchanged. services that can't store bytes return false.
+  public default boolean pushPayload(ByteBuffer payload, String queueName) {
+    return false;
+  }
+
+  // push a given message onto a specified queue, applying backpressure while the queue is at or near one of its limits,
+  // for up to waitTime (in milliseconds) - returns the outcome. services without limits push straight away.
+  public default PushStatus push(String message, String queueName, Backpressure backpressure, long waitTime) {
+    return this.push(message, queueName) ? PushStatus.OK : PushStatus.FAILED;
+  }
+
+  // as push(message, queueName, backpressure, waitTime), for a message with binary content
+  public default PushStatus pushPayload(ByteBuffer payload, String queueName, Backpressure backpressure, long waitTime) {
+    return this.pushPayload(payload, queueName) ? PushStatus.OK : PushStatus.FAILED;
+  }
+
+  // return a snapshot of the metrics of a specified queue - null if there's no such queue, or the service keeps no metrics
+  public default QueueStats getQueueStats(String queueName) {
+    return null;
+  }
+
+  // push a given message onto a specified queue without blocking - completes with the result of push()
+  public default CompletableFuture<Boolean> pushAsync(String message, String queueName) {
+    return CompletableFuture.supplyAsync(() -> this.push(message, queueName), QueueExecutors.ASYNC);
+  }
+
+  // receive a message from a specified queue without blocking - completes with the result of pull()
+  public default CompletableFuture<Message> pullAsync(String queueName) {
+    return this.pullAsync(queueName, 1, 0).thenApply(messages -> messages.isEmpty() ? null : messages.get(0));
+  }
+
+  // receive up to maxMessages messages from a specified queue without blocking, long polling up to waitTime (in
+  // milliseconds) - completes with the result of pull(queueName, maxMessages, waitTime)
+  public default CompletableFuture<List<Message>> pullAsync(String queueName, int maxMessages, long waitTime) {
+    return CompletableFuture.supplyAsync(() -> this.pull(queueName, maxMessages, waitTime), QueueExecutors.ASYNC);
+  }
+
+  // delete a received message from a specified queue without blocking - completes with true if the message was deleted
+  public default CompletableFuture<Boolean> deleteAsync(Long receiptHandle, String queueName) {
+    return CompletableFuture.supplyAsync(() -> this.deleteBatch(Collections.singletonList(receiptHandle), queueName)[0], QueueExecutors.ASYNC);
+  }
+
+  // run a handler on every message received from a specified queue, on up to concurrency messages at a time -
+  // each message is deleted once its handler returns. returns null if the arguments are invalid.
+  public default Subscription subscribe(String queueName, MessageHandler handler, int concurrency) {
+    if(queueName == null || queueName.trim().equals("") || handler == null || concurrency < 1) {
+      return null;
+    }
+
+    return new Subscription(this, queueName.trim(), handler, concurrency);
+  }
+
+  // push a batch of messages onto a specified queue - returns true for each message published successfully
+  public default boolean[] pushBatch(List<String> messages, String queueName) {
+    boolean[] results = new boolean[messages == null ? 0 : messages.size()];
+    for(int i = 0; i < results.length; i++) {
+      results[i] = this.push(messages.get(i), queueName);
+    }
+
+    return results;
+  }
+
+  // receive up to maxMessages messages from specified queue - returns an empty list if none are visible
+  public default List<Message> pull(String queueName, int maxMessages) {
+    List<Message> messages = new ArrayList<Message>();
+    for(int i = 0; i < maxMessages; i++) {
+      Message msg = this.pull(queueName);
+      if(msg == null) {
+        break;
+      }
+
+      messages.add(msg);
+    }
+
+    return messages;
+  }
+
+  // receive up to maxMessages messages from specified queue, waiting up to waitTime (in milliseconds) for at
+  // least one to become visible. Returns as soon as any message is received, or an empty list once waitTime is up.
+  // this default re-polls at a short interval - implementations override it to wait for a push or visibility timeout instead.
+  public default List<Message> pull(String queueName, int maxMessages, long waitTime) {
+    long deadline = System.currentTimeMillis() + waitTime;
+    List<Message> messages = this.pull(queueName, maxMessages);
+
+    while(messages.isEmpty() && maxMessages > 0) {
+      long remaining = deadline - System.currentTimeMillis();
+      if(remaining <= 0) {
+        break;
+      }
+
+      try {
+        Thread.sleep(Math.min(remaining, 50));
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+
+      messages = this.pull(queueName, maxMessages);
+    }
+
+    return messages;
+  }
+
+  // change the visibility timeout of a received message: unless deleted first, it becomes visible again timeout ms from
+  // now (0 makes it visible straight away). returns false if the receipt handle doesn't match a message in flight, or the
+  // timeout is out of range (see QueueAttributes.MAX_VISIBILITY_TIMEOUT). services without visibility timeouts return false.
+  public default boolean changeVisibility(Long receiptHandle, String queueName, long timeout) {
+    return false;
+  }
+
+  // change the visibility timeout of a batch of received messages to the same timeout - returns true for each message
+  // whose timeout was changed
+  public default boolean[] changeVisibilityBatch(List<Long> receiptHandles, String queueName, long timeout) {
+    boolean[] results = new boolean[receiptHandles == null ? 0 : receiptHandles.size()];
+    for(int i = 0; i < results.length; i++) {
+      results[i] = this.changeVisibility(receiptHandles.get(i), queueName, timeout);
+    }
+
+    return results;
+  }
+
+  // move up to maxMessages messages from a dead-letter queue back onto a specified queue (like an SQS message move task),
+  // in the order they are received from the dead-letter queue - returns the number moved. each message is received,
+  // pushed and then deleted, so one is never lost: if the push fails (the queue is full, say), the message is made
+  // visible again on the dead-letter queue and the move stops there.
+  public default int redrive(String deadLetterQueue, String queueName, int maxMessages) {
+    int moved = 0;
+    while(moved < maxMessages) {
+      List<Message> messages = this.pull(deadLetterQueue, Math.min(maxMessages - moved, 10));
+      if(messages.isEmpty()) {
+        break;
+      }
+
+      // keep the messages hidden for as long as moving them might take
+      ArrayList<Long> handles = new ArrayList<Long>(messages.size());
+      for(Message msg: messages) {
+        handles.add(msg.getReceiptHandle());
+      }
+      this.changeVisibilityBatch(handles, deadLetterQueue, QueueAttributes.MAX_VISIBILITY_TIMEOUT);
+
+      int pushed = 0;
+      while(pushed < messages.size()) {
+        Object content = messages.get(pushed).getMessageContent();
+        boolean ok = (content instanceof ByteBuffer) ? this.pushPayload((ByteBuffer)content, queueName) : this.push(String.valueOf(content), queueName);
+        if(!ok) {
+          break;
+        }
+
+        pushed++;
+      }
+
+      this.deleteBatch(handles.subList(0, pushed), deadLetterQueue);
+      moved += pushed;
+      if(pushed < messages.size()) {
+        this.changeVisibilityBatch(handles.subList(pushed, handles.size()), deadLetterQueue, 0);
+        break;
+      }
+    }
+
+    return moved;
+  }
+
+  // delete a batch of received messages from a specified queue - returns true for each message deleted.
+  // this default can't tell whether a single delete() found its message, so it reports every attempted entry.
+  public default boolean[] deleteBatch(List<Long> receiptHandles, String queueName) {
+    boolean[] results = new boolean[receiptHandles == null ? 0 : receiptHandles.size()];
+    for(int i = 0; i < results.length; i++) {
+      if(receiptHandles.get(i) != null) {
+        this.delete(receiptHandles.get(i), queueName);
+        results[i] = true;
+      }
+    }
+
+    return results;
+  }
+
 }
@@ -0,0 +1,172 @@
+package com.QueueEmulator;
+
+// QueueStats is a snapshot of the metrics of a queue, as returned by QueueService.getQueueStats() and published through
+// JMX (see QueueMetrics).
+// - message counts: visible (waiting to be received), in flight (received but not deleted) and total
+// - age of the oldest visible message (in milliseconds - 0 if none is waiting)
+// - operation counts since the queue was created (or opened, for a file queue): messages pushed, received and deleted,
+//   receives that found no message, and messages whose visibility timeout ran out
+// - operation rates: messages per second pushed, received and deleted, averaged over about the last minute
+// - operation latencies: latency distributions of push, pull and delete calls (in nanoseconds)
+
+public class QueueStats {
+
+    // summary of the latency distribution of an operation (in nanoseconds)
+    public static class Latency {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        Latency(LatencyHistogram h) {
+            this.count = h.count();
+            this.mean = h.mean();
+            this.p50 = h.percentile(50);
+            this.p99 = h.percentile(99);
+            this.p999 = h.percentile(99.9);
+            this.max = h.max();
+        }
+
+        public long getCount() {
+            return this.count;
+        }
+
+        public double getMean() {
+            return this.mean;
+        }
+
+        public long getP50() {
+            return this.p50;
+        }
+
+        public long getP99() {
+            return this.p99;
+        }
+
+        public long getP999() {
+            return this.p999;
+        }
+
+        public long getMax() {
+            return this.max;
+        }
+
+        public String toString() {
+            return String.format("count=%d mean=%.0fns p50=%dns p99=%dns p99.9=%dns max=%dns", this.count, this.mean, this.p50, this.p99, this.p999, this.max);
+        }
+    }
+
+    private final String queueName;
+    private final long visibleMessages;
+    private final long inFlightMessages;
+    private final long totalMessages;
+    private final long oldestMessageAge;
+    private final long pushCount;
+    private final long pullCount;
+    private final long deleteCount;
+    private final long emptyReceiveCount;
+    private final long expiredCount;
+    private final double pushRate;
+    private final double pullRate;
+    private final double deleteRate;
+    private final Latency pushLatency;
+    private final Latency pullLatency;
+    private final Latency deleteLatency;
+
+    QueueStats(String queueName, long visibleMessages, long inFlightMessages, long totalMessages, long oldestMessageAge,
+               long pushCount, long pullCount, long deleteCount, long emptyReceiveCount, long expiredCount,
+               double pushRate, double pullRate, double deleteRate, Latency pushLatency, Latency pullLatency, Latency deleteLatency) {
+        this.queueName = queueName;
+        this.visibleMessages = visibleMessages;
+        this.inFlightMessages = inFlightMessages;
+        this.totalMessages = totalMessages;
+        this.oldestMessageAge = oldestMessageAge;
+        this.pushCount = pushCount;
+        this.pullCount = pullCount;
+        this.deleteCount = deleteCount;
+        this.emptyReceiveCount = emptyReceiveCount;
+        this.expiredCount = expiredCount;
+        this.pushRate = pushRate;
+        this.pullRate = pullRate;
+        this.deleteRate = deleteRate;
+        this.pushLatency = pushLatency;
+        this.pullLatency = pullLatency;
+        this.deleteLatency = deleteLatency;
+    }
+
+    public String getQueueName() {
+        return this.queueName;
+    }
+
+    public long getVisibleMessages() {
+        return this.visibleMessages;
+    }
+
+    public long getInFlightMessages() {
+        return this.inFlightMessages;
+    }
+
+    public long getTotalMessages() {
+        return this.totalMessages;
+    }
+
+    public long getOldestMessageAge() {
+        return this.oldestMessageAge;
+    }
+
+    public long getPushCount() {
+        return this.pushCount;
+    }
+
+    public long getPullCount() {
+        return this.pullCount;
+    }
+
+    public long getDeleteCount() {
+        return this.deleteCount;
+    }
+
+    public long getEmptyReceiveCount() {
+        return this.emptyReceiveCount;
+    }
+
+    public long getExpiredCount() {
+        return this.expiredCount;
+    }
+
+    public double getPushRate() {
+        return this.pushRate;
+    }
+
+    public double getPullRate() {
+        return this.pullRate;
+    }
+
+    public double getDeleteRate() {
+        return this.deleteRate;
+    }
+
+    public Latency getPushLatency() {
+        return this.pushLatency;
+    }
+
+    public Latency getPullLatency() {
+        return this.pullLatency;
+    }
+
+    public Latency getDeleteLatency() {
+        return this.deleteLatency;
+    }
+
+    public String toString() {
+        return "Queue <" + this.queueName + ">: " + this.visibleMessages + " visible, " + this.inFlightMessages + " in flight, "
+            + this.totalMessages + " total, oldest " + this.oldestMessageAge + "ms"
+            + String.format("\n  pushed %d (%.1f/s), received %d (%.1f/s), deleted %d (%.1f/s), empty receives %d, expired %d",
+                this.pushCount, this.pushRate, this.pullCount, this.pullRate, this.deleteCount, this.deleteRate, this.emptyReceiveCount, this.expiredCount)
+            + "\n  push:   " + this.pushLatency
+            + "\n  pull:   " + this.pullLatency
+            + "\n  delete: " + this.deleteLatency;
+    }
+}
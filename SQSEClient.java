@@ -1,98 +1,310 @@
-
 package com.QueueEmulator;
 
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-// SQS Emulator test client class
+// SQS Emulator load generator.
+// Runs producers and consumers against a queue service for a fixed time, then reports throughput and latency
+// percentiles for push, pull and delete, and for end-to-end delivery (from a message being due to be pushed to it
+// being pulled). Runs with the same options against both services compare them under the same workload.
+//
+// usage: java com.QueueEmulator.SQSEClient [options]
+//   --service memory|offheap|file     queue service to load - offheap is the in-memory service in OFF_HEAP storage mode (memory)
+//   --root <dir>                      root directory of a file queue service, or of spilled in-memory queues (a temporary
+//                                     directory, removed afterwards)
+//   --spill <messages>                in-memory queues keep this many waiting messages in memory and spill the rest to disk
+//                                     (0 - no spilling)
+//   --durability NONE|INTERVAL|SYNC   durability of file queues (NONE)
+//   --producers <n>                   producer threads (4)
+//   --consumers <n>                   consumer threads (4)
+//   --queues <n>                      queues the load is spread over (1)
+//   --payload <bytes>                 message size (256) - each message starts with its timestamp
+//   --rate <messages/s>               target push rate across all producers - 0 runs closed loop (0)
+//   --duration <s>                    measured time (10)
+//   --warmup <s>                      time run before measuring starts (2)
+//
+// In closed loop, producers push as fast as the service takes messages. At a target rate, push and end-to-end latencies
+// are timed from when each message was due rather than when it was actually pushed - a service that falls behind the
+// rate shows up in the latencies, instead of quietly slowing the producers down (coordinated omission).
+// Latencies are recorded in per-thread histograms (see LatencyHistogram), added together for the report.
 
 public class SQSEClient {
-    public static void main(String[] args) throws InterruptedException {
-        // create new IMqueue via IMQService instance
-        System.out.println("\nCreating an InMemoryQueueService and adding some messages..");
-        InMemoryQueueService iqs1 = new InMemoryQueueService();
-        String QUEUE_01 = "Queue_01";
-        boolean created = iqs1.createQueue(QUEUE_01);
-
-        if(created) {
-            System.out.println("Created: Queue ID <" + QUEUE_01 + ">)\n");
-        } else {
-            System.out.println("Failed to create queue.");
-            return;
-        }
-
-        // push message(s) onto it
-        iqs1.push("First Message", QUEUE_01);
-        // Thread.sleep(1000);
-        iqs1.push("Second Message", QUEUE_01);
-        // Thread.sleep(1000);
-        iqs1.push("Third Message", QUEUE_01);
-        // Thread.sleep(1000);
-        iqs1.push("Fourth Message", QUEUE_01);
-        // Thread.sleep(1000);
-        iqs1.push("Fifth Message", QUEUE_01);
-        // Thread.sleep(1000);
-        iqs1.push("Sixth Message", QUEUE_01);
-        // Thread.sleep(1000);
-
-        iqs1.printQueueService();
-        iqs1.printQueue(QUEUE_01);
-        
-        // retrieve messages from it
-        System.out.println("\nRetrieving messages..");
-        Message msg1 = iqs1.pull(QUEUE_01);
-        Message msg2 = iqs1.pull(QUEUE_01);
-        iqs1.printQueue(QUEUE_01);
-
-        System.out.println("\nDeleting retrieved messages..");
-        iqs1.delete(msg1.getReceiptHandle(), QUEUE_01);
-        iqs1.delete(msg2.getReceiptHandle(), QUEUE_01);
-        iqs1.printQueue(QUEUE_01);
-
-        Thread backgroundThread = new Thread(new Runnable() {
-            public void run() {
-                try {
-                    // retrieve some more messages from it
-                    System.out.println("\n\tRetrieving a few more messages (secondary thread)");
-                    Message msg3 = iqs1.pull(QUEUE_01);
-                    Message msg4 = iqs1.pull(QUEUE_01);
-                    iqs1.printQueue(QUEUE_01);
-
-                    System.out.println("\n\tWait and retrieve another message (secondary thread)");
-                    Thread.sleep(4000);
-                    Message msg5 = iqs1.pull(QUEUE_01);
-                    System.out.println("\tRetrieved message: <" + msg5.getMessageContent() + " / RH: " + msg5.getReceiptHandle() + "> (secondary thread)");
-
-                    System.out.println("\n\tSleeping a bit - to get messages back to visibility (secondary thread)");
-                    Thread.sleep(6000);
-                    iqs1.printQueue(QUEUE_01);
-                } catch (InterruptedException e) {
-                    System.err.println("Caught InterruptedException: " + e.getMessage());
+    // consumers back off this long after pulling from an empty queue (in nanoseconds)
+    private static final long EMPTY_PULL_PAUSE = 50000;
+
+    // options
+    private String serviceType = "memory";
+    private String root = null;
+    private int spillThreshold = 0;
+    private FileQueueService.Durability durability = FileQueueService.Durability.NONE;
+    private int producerCount = 4;
+    private int consumerCount = 4;
+    private int queueCount = 1;
+    private int payloadSize = 256;
+    private long rate = 0;
+    private long duration = 10;
+    private long warmup = 2;
+
+    // run state, shared with the workers
+    private QueueService service;
+    private String[] queueNames;
+    private volatile boolean running = true;
+    private volatile boolean recording = false;
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        SQSEClient client = new SQSEClient();
+        if(!client.parse(args)) {
+            System.err.println("usage: java com.QueueEmulator.SQSEClient [--service memory|offheap|file] [--root dir] [--spill messages] [--durability NONE|INTERVAL|SYNC]");
+            System.err.println("       [--producers n] [--consumers n] [--queues n] [--payload bytes] [--rate messages/s] [--duration s] [--warmup s]");
+            System.exit(1);
+        }
+
+        client.run();
+    }
+
+    // read options from the command line - returns false if they're invalid
+    private boolean parse(String[] args) {
+        try {
+            for(int i = 0; i < args.length; i += 2) {
+                if(i + 1 >= args.length) {
+                    return false;
+                }
+
+                String option = args[i];
+                String value = args[i + 1];
+                if(option.equals("--service")) {
+                    this.serviceType = value;
+                } else if(option.equals("--root")) {
+                    this.root = value;
+                } else if(option.equals("--spill")) {
+                    this.spillThreshold = Integer.parseInt(value);
+                } else if(option.equals("--durability")) {
+                    this.durability = FileQueueService.Durability.valueOf(value.toUpperCase());
+                } else if(option.equals("--producers")) {
+                    this.producerCount = Integer.parseInt(value);
+                } else if(option.equals("--consumers")) {
+                    this.consumerCount = Integer.parseInt(value);
+                } else if(option.equals("--queues")) {
+                    this.queueCount = Integer.parseInt(value);
+                } else if(option.equals("--payload")) {
+                    this.payloadSize = Integer.parseInt(value);
+                } else if(option.equals("--rate")) {
+                    this.rate = Long.parseLong(value);
+                } else if(option.equals("--duration")) {
+                    this.duration = Long.parseLong(value);
+                } else if(option.equals("--warmup")) {
+                    this.warmup = Long.parseLong(value);
+                } else {
+                    return false;
                 }
             }
-        });
-        backgroundThread.start();        
+        } catch(IllegalArgumentException e) {
+            // NumberFormatException, or an unknown durability
+            return false;
+        }
+
+        return (this.serviceType.equals("memory") || this.serviceType.equals("offheap") || this.serviceType.equals("file")) && this.spillThreshold >= 0 && this.producerCount >= 0 && this.consumerCount >= 0
+            && this.queueCount > 0 && this.payloadSize > 0 && this.rate >= 0 && this.duration > 0 && this.warmup >= 0;
+    }
 
-        // delete queue
-        String QUEUE_02 = "Queue_02";
-        created = iqs1.createQueue(QUEUE_02);
+    // set up the queues, run the load and print the report
+    private void run() throws InterruptedException, IOException {
+        Path tempRoot = null;
+        this.queueNames = new String[this.queueCount];
+        for(int i = 0; i < this.queueCount; i++) {
+            this.queueNames[i] = String.format("LoadTest_%02d", i + 1);
+        }
 
-        if(created) {
-            System.out.println("Created: Queue ID <" + QUEUE_02 + ">)\n");
-        } else {
-            System.out.println("Failed to create queue.");
-            return;
+        if(this.root == null && (this.serviceType.equals("file") || this.spillThreshold > 0)) {
+            tempRoot = Files.createTempDirectory("SQSEClient");
+            this.root = tempRoot.toString();
         }
 
-        System.out.println("\nDeleting queue..");
-        boolean deleted = iqs1.deleteQueue(QUEUE_02);
-        if(deleted) {
-            System.out.println("Queue deleted successfully.");
+        if(this.serviceType.equals("memory") || this.serviceType.equals("offheap")) {
+            InMemoryQueueService.Storage storage = this.serviceType.equals("offheap") ? InMemoryQueueService.Storage.OFF_HEAP : InMemoryQueueService.Storage.HEAP;
+            InMemoryQueueService iqs;
+            if(this.spillThreshold > 0) {
+                iqs = new InMemoryQueueService(storage, this.root, this.spillThreshold);
+            } else {
+                iqs = new InMemoryQueueService(storage);
+            }
+
+            for(String queueName: this.queueNames) {
+                iqs.createQueue(queueName);
+            }
+
+            this.service = iqs;
         } else {
-            System.out.println("Failed to delete queue.");
+            FileQueueService fqs = new FileQueueService(this.root, this.durability, 100);
+            for(String queueName: this.queueNames) {
+                fqs.createQueue(queueName);
+            }
+
+            this.service = fqs;
+        }
+
+        List<Producer> producers = new ArrayList<Producer>();
+        List<Consumer> consumers = new ArrayList<Consumer>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < this.producerCount; i++) {
+            Producer p = new Producer(i);
+            producers.add(p);
+            threads.add(new Thread(p, "Producer-" + i));
+        }
+
+        for(int i = 0; i < this.consumerCount; i++) {
+            Consumer c = new Consumer(i);
+            consumers.add(c);
+            threads.add(new Thread(c, "Consumer-" + i));
+        }
+
+        System.out.println("Loading " + this.serviceType + " queue service: " + this.producerCount + " producers, " + this.consumerCount + " consumers, "
+            + this.queueCount + " queue(s), " + this.payloadSize + " byte messages, " + (this.rate == 0 ? "closed loop" : this.rate + " messages/s")
+            + ", " + this.warmup + "s warmup + " + this.duration + "s");
+
+        for(Thread t: threads) {
+            t.start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.warmup));
+        this.recording = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(this.duration));
+        this.recording = false;
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        this.running = false;
+        for(Thread t: threads) {
+            t.join();
+        }
+
+        // add up the workers' recordings
+        LatencyHistogram push = new LatencyHistogram();
+        LatencyHistogram pull = new LatencyHistogram();
+        LatencyHistogram delete = new LatencyHistogram();
+        LatencyHistogram endToEnd = new LatencyHistogram();
+        long failedPushes = 0;
+        long emptyPulls = 0;
+        for(Producer p: producers) {
+            push.add(p.push);
+            failedPushes += p.failed;
+        }
+
+        for(Consumer c: consumers) {
+            pull.add(c.pull);
+            delete.add(c.delete);
+            endToEnd.add(c.endToEnd);
+            emptyPulls += c.empty;
         }
 
-        System.out.println("\nTrying to print deleted queue");
-        iqs1.printQueue(QUEUE_02);
+        System.out.println();
+        System.out.println(String.format("%-12s %10s %12s %10s %10s %10s %10s %10s", "operation", "count", "ops/s", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)"));
+        report("push", push, elapsed);
+        report("pull", pull, elapsed);
+        report("delete", delete, elapsed);
+        report("end-to-end", endToEnd, elapsed);
+        System.out.println();
+        System.out.println("failed pushes: " + failedPushes + ", empty pulls: " + emptyPulls);
+
+        if(tempRoot != null) {
+            Files.walk(tempRoot).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    // print a line of the report
+    private static void report(String operation, LatencyHistogram h, double elapsed) {
+        System.out.println(String.format("%-12s %10d %12.0f %10.1f %10.1f %10.1f %10.1f %10.1f", operation, h.count(), h.count() / elapsed,
+            h.mean() / 1000, h.percentile(50) / 1000.0, h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+    }
+
+    // pushes messages, round robin over the queues
+    private class Producer implements Runnable {
+        private final int id;
+        private final LatencyHistogram push = new LatencyHistogram();
+        private long failed = 0;
+
+        Producer(int id) {
+            this.id = id;
+        }
+
+        public void run() {
+            // the rest of each message after its timestamp
+            char[] filler = new char[Math.max(SQSEClient.this.payloadSize - 20, 1)];
+            Arrays.fill(filler, 'x');
+            filler[0] = ':';
+            String padding = new String(filler);
+
+            // time between pushes at the target rate, spread over the producers (in nanoseconds)
+            long interval = SQSEClient.this.rate == 0 ? 0 : TimeUnit.SECONDS.toNanos(SQSEClient.this.producerCount) / SQSEClient.this.rate;
+            long due = System.nanoTime();
+
+            for(long n = this.id; SQSEClient.this.running; n++) {
+                if(interval > 0) {
+                    due += interval;
+                    long wait = due - System.nanoTime();
+                    if(wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    due = System.nanoTime();
+                }
+
+                String queueName = SQSEClient.this.queueNames[(int)(n % SQSEClient.this.queueCount)];
+                boolean pushed = SQSEClient.this.service.push(due + padding, queueName);
+                long end = System.nanoTime();
+
+                if(SQSEClient.this.recording) {
+                    if(pushed) {
+                        this.push.record(end - due);
+                    } else {
+                        this.failed++;
+                    }
+                }
+            }
+        }
+    }
+
+    // pulls and deletes messages, round robin over the queues
+    private class Consumer implements Runnable {
+        private final int id;
+        private final LatencyHistogram pull = new LatencyHistogram();
+        private final LatencyHistogram delete = new LatencyHistogram();
+        private final LatencyHistogram endToEnd = new LatencyHistogram();
+        private long empty = 0;
+
+        Consumer(int id) {
+            this.id = id;
+        }
+
+        public void run() {
+            for(long n = this.id; SQSEClient.this.running; n++) {
+                String queueName = SQSEClient.this.queueNames[(int)(n % SQSEClient.this.queueCount)];
+                long start = System.nanoTime();
+                Message msg = SQSEClient.this.service.pull(queueName);
+                long pulled = System.nanoTime();
+
+                if(msg == null) {
+                    if(SQSEClient.this.recording) {
+                        this.empty++;
+                    }
+
+                    LockSupport.parkNanos(EMPTY_PULL_PAUSE);
+                    continue;
+                }
+
+                SQSEClient.this.service.delete(msg.getReceiptHandle(), queueName);
+                long deleted = System.nanoTime();
+
+                if(SQSEClient.this.recording) {
+                    String content = String.valueOf(msg.getMessageContent());
+                    this.pull.record(pulled - start);
+                    this.delete.record(deleted - pulled);
+                    this.endToEnd.record(pulled - Long.parseLong(content, 0, content.indexOf(':'), 10));
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
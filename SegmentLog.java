@@ -0,0 +1,539 @@
+package com.QueueEmulator;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32C;
+
+// SegmentLog is an append-only log of binary message records, kept in a directory as a series of segment files
+// ("00000000000000000000.log", "00000000000000000001.log", ...). Appends go to the last segment, and a new segment
+// is started when the next record would take the current one past SEGMENT_SIZE.
+//
+// Records are addressed by position: (segment number << 32) | byte offset of the record within its segment.
+// Each record is a fixed RECORD_HEADER byte header followed by the payload:
+//
+//     0  int    payload length
+//     4  int    CRC32C of the length, bytes 8-19 and the payload
+//     8  byte   record format version (RECORD_VERSION)
+//     9  byte   flags - FLAG_RELOCATED, FLAG_BINARY (readers reject records with flags they don't know)
+//     10 short  reserved, 0
+//     12 long   time the message was pushed (ms)
+//     20 int    number of times the message has been received
+//     24 long   time the message was last received (ms)
+//     32        payload bytes
+//
+// The receive count and time are fixed-width and left out of the checksum, so they can be updated in place
+// (updateReceived()) without rewriting the record. Everything else in a record is written once.
+// A record can be validated, or skipped over (skip()), from its header alone - no payload parsing is needed to
+// scan a log. A record that fails validation is reported with a CorruptRecordException, and resync() finds the next
+// valid record after it.
+// Records are read through a read-only mapping of their segment, and a record's payload is a slice of that mapping
+// rather than a copy - except for records near the end of a growing segment, which are copied from the file until
+// the segment has grown enough to be worth mapping again (see region()).
+//
+// Segments are only ever removed from the front of a log (see dropBefore()), once nothing refers to them.
+//
+// A SegmentLog does not keep track of where its tail is or of what has been read - the caller records those positions
+// durably (FileQueue keeps them in its offset file), so bytes left past the tail by an interrupted append are simply
+// overwritten by the next one. Callers must also serialise appends and reads, across threads and processes - force()
+// is the exception, and may run alongside them.
+
+class SegmentLog {
+    // size at which a segment is rolled over (a single record larger than this gets a segment of its own)
+    protected static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // record header layout (see above)
+    protected static final int RECORD_HEADER = 32;
+    private static final int HEADER_LENGTH = 0;
+    private static final int HEADER_CRC = 4;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_FLAGS = 9;
+    private static final int HEADER_RESERVED = 10;
+    private static final int HEADER_PUSHED = 12;
+    private static final int HEADER_RECEIVE_COUNT = 20;
+    private static final int HEADER_RECEIVED = 24;
+
+    // checksummed part of the header, after the length
+    private static final int CHECKED_START = HEADER_VERSION;
+    private static final int CHECKED_END = HEADER_RECEIVE_COUNT;
+
+    // current record format version, and the flags it defines
+    protected static final byte RECORD_VERSION = 1;
+    protected static final byte FLAG_RELOCATED = 0x01;     // a copy of an earlier record, moved by compaction
+    protected static final byte FLAG_BINARY = 0x02;        // payload was pushed as bytes, rather than as a String
+    private static final int KNOWN_FLAGS = FLAG_RELOCATED | FLAG_BINARY;
+
+    // directory holding the segment files of this log
+    private final File dir;
+
+    // open segment files of this log, by segment number - kept open for the life of the log (and reopened if an
+    // interrupt closed them)
+    private final ConcurrentHashMap<Integer,FileChannel> channels = new ConcurrentHashMap<Integer,FileChannel>();
+
+    // read-only mappings of segments, by segment number - a mapping is replaced by a longer one once the segment has
+    // doubled in size past it (see region()). slices handed out keep their mapping alive for as long as they're held
+    private final ConcurrentHashMap<Integer,MappedByteBuffer> mappings = new ConcurrentHashMap<Integer,MappedByteBuffer>();
+
+    // first segment that may have writes not yet forced to disk
+    private int forcedSegment = 0;
+
+    // first segment of the log - everything before it has been dropped
+    private volatile int firstSegment = 0;
+
+    // thrown when the record at a position fails validation (bad length, checksum or format)
+    static class CorruptRecordException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        protected CorruptRecordException(String message) {
+            super(message);
+        }
+    }
+
+    // a record read from the log
+    static class Record {
+        // position of this record, and of the record following it
+        protected final long position;
+        protected final long next;
+        protected final byte flags;
+        protected final long pushedTime;
+        protected final int receiveCount;
+        protected final long receivedTime;
+        protected final ByteBuffer payload;   // read-only
+
+        protected Record(long position, long next, byte flags, long pushedTime, int receiveCount, long receivedTime, ByteBuffer payload) {
+            this.position = position;
+            this.next = next;
+            this.flags = flags;
+            this.pushedTime = pushedTime;
+            this.receiveCount = receiveCount;
+            this.receivedTime = receivedTime;
+            this.payload = payload;
+        }
+
+        // indicate if this record is a copy moved by compaction, rather than a message pushed onto the log
+        protected boolean relocated() {
+            return (this.flags & FLAG_RELOCATED) != 0;
+        }
+
+        // indicate if this record's payload was pushed as bytes, rather than as a String
+        protected boolean binary() {
+            return (this.flags & FLAG_BINARY) != 0;
+        }
+    }
+
+    protected SegmentLog(File dir) {
+        this.dir = dir;
+    }
+
+    // position of a given byte offset in a given segment
+    protected static long position(int segment, long offset) {
+        return ((long)segment << 32) | offset;
+    }
+
+    protected static int segmentOf(long position) {
+        return (int)(position >>> 32);
+    }
+
+    protected static long offsetOf(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    // append records at tail in as few writes as possible (one per segment written to) - returns the new tail.
+    // each record holds the bytes between its payload's position and limit, and has flags[i] set (if flags isn't null).
+    // positions[i], if positions isn't null, is set to the position payloads[i] was written at.
+    protected long append(long tail, List<ByteBuffer> payloads, byte[] flags, long[] positions) throws IOException {
+        return this.append(tail, payloads, flags, null, positions);
+    }
+
+    // append copies of records at tail, flagged FLAG_RELOCATED and keeping their times and receive counts - returns the
+    // new tail. positions[i] is set to the position the copy of records[i] was written at.
+    protected long relocate(long tail, List<Record> records, long[] positions) throws IOException {
+        ArrayList<ByteBuffer> payloads = new ArrayList<ByteBuffer>(records.size());
+        byte[] flags = new byte[records.size()];
+        for(int i = 0; i < flags.length; i++) {
+            payloads.add(records.get(i).payload);
+            flags[i] = (byte)(records.get(i).flags | FLAG_RELOCATED);
+        }
+
+        return this.append(tail, payloads, flags, records, positions);
+    }
+
+    // append records - new ones if sources is null, otherwise copies of sources
+    private long append(long tail, List<ByteBuffer> payloads, byte[] flags, List<Record> sources, long[] positions) throws IOException {
+        long now = QueueClock.now();
+        CRC32C crc = new CRC32C();
+        int segment = segmentOf(tail);
+        long offset = offsetOf(tail);
+
+        int i = 0;
+        while(i < payloads.size()) {
+            // take as many records as fit in the current segment
+            long size = 0;
+            int j = i;
+            while(j < payloads.size()) {
+                long recordSize = RECORD_HEADER + payloads.get(j).remaining();
+                if(offset + size + recordSize > SEGMENT_SIZE && offset + size > 0) {
+                    break;
+                }
+
+                size += recordSize;
+                j++;
+            }
+
+            if(j == i) {
+                // next record doesn't fit - end the segment at the tail (dropping anything an interrupted append left
+                // past it, so readers can tell where the segment ends) and carry on in a new one
+                this.channel(segment).truncate(offset);
+                segment++;
+                offset = 0;
+                continue;
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate((int)size);
+            for(int k = i; k < j; k++) {
+                int start = buf.position();
+                if(positions != null) {
+                    positions[k] = position(segment, offset + start);
+                }
+
+                ByteBuffer payload = payloads.get(k);
+                buf.putInt(start + HEADER_LENGTH, payload.remaining());
+                buf.put(start + HEADER_VERSION, RECORD_VERSION);
+                buf.put(start + HEADER_FLAGS, (flags == null) ? 0 : flags[k]);
+                buf.putShort(start + HEADER_RESERVED, (short)0);
+                if(sources == null) {
+                    buf.putLong(start + HEADER_PUSHED, now);
+                    buf.putInt(start + HEADER_RECEIVE_COUNT, 0);
+                    buf.putLong(start + HEADER_RECEIVED, 0);
+                } else {
+                    Record source = sources.get(k);
+                    buf.putLong(start + HEADER_PUSHED, source.pushedTime);
+                    buf.putInt(start + HEADER_RECEIVE_COUNT, source.receiveCount);
+                    buf.putLong(start + HEADER_RECEIVED, source.receivedTime);
+                }
+                buf.position(start + RECORD_HEADER);
+                buf.put(payload.duplicate());
+
+                crc.reset();
+                buf.putInt(start + HEADER_CRC, checksum(crc, buf, start, payload));
+            }
+            buf.flip();
+
+            FileChannel ch = this.channel(segment);
+            long p = offset;
+            while(buf.hasRemaining()) {
+                p += ch.write(buf, p);
+            }
+
+            offset += size;
+            i = j;
+        }
+
+        return position(segment, offset);
+    }
+
+    // read and validate the record at a position - returns null if position is the tail (there's nothing left to read)
+    protected Record read(long position, long tail) throws IOException {
+        position = this.skipSegmentEnd(position, tail);
+        if(position == tail) {
+            return null;
+        }
+
+        int segment = segmentOf(position);
+        long offset = offsetOf(position);
+        ByteBuffer header = this.readHeader(segment, offset);
+
+        int length = header.getInt(HEADER_LENGTH);
+        ByteBuffer payload = this.region(segment, offset + RECORD_HEADER, length).asReadOnlyBuffer();
+        if(checksum(new CRC32C(), header, 0, payload) != header.getInt(HEADER_CRC)) {
+            throw new CorruptRecordException("Checksum mismatch in record at offset " + offset + " of segment " + segment + " in " + this.dir);
+        }
+
+        return new Record(position, position(segment, offset + RECORD_HEADER + length), header.get(HEADER_FLAGS), header.getLong(HEADER_PUSHED),
+            header.getInt(HEADER_RECEIVE_COUNT), header.getLong(HEADER_RECEIVED), payload);
+    }
+
+    // return the position of the record after the one at a position, reading only its header - returns tail if
+    // position is the tail. the payload isn't checksummed, so this is only as safe as the header is.
+    protected long skip(long position, long tail) throws IOException {
+        position = this.skipSegmentEnd(position, tail);
+        if(position == tail) {
+            return tail;
+        }
+
+        int segment = segmentOf(position);
+        long offset = offsetOf(position);
+        ByteBuffer header = this.readHeader(segment, offset);
+        return position(segment, offset + RECORD_HEADER + header.getInt(HEADER_LENGTH));
+    }
+
+    // position of the first valid record after a corrupt one at a position - the end of the log (tail) if there's none.
+    // the length in the corrupt record's header is tried first; if it doesn't lead to a valid record or the end of
+    // the segment, the rest of the segment is scanned a byte at a time for one. a segment with no valid record left
+    // in it is followed by the start of the next
+    protected long resync(long position, long tail) throws IOException {
+        position = this.skipSegmentEnd(position, tail);
+        if(position == tail) {
+            return tail;
+        }
+
+        int segment = segmentOf(position);
+        long offset = offsetOf(position);
+        long end = (segment == segmentOf(tail)) ? offsetOf(tail) : this.channel(segment).size();
+
+        if(offset + RECORD_HEADER <= end) {
+            long next = offset + RECORD_HEADER + this.region(segment, offset, RECORD_HEADER).getInt(HEADER_LENGTH);
+            if(next > offset && next <= end && (next == end || this.validAt(segment, next, end))) {
+                return position(segment, next);
+            }
+        }
+
+        for(long o = offset + 1; o + RECORD_HEADER <= end; o++) {
+            if(this.validAt(segment, o, end)) {
+                return position(segment, o);
+            }
+        }
+
+        return (segment == segmentOf(tail)) ? tail : position(segment + 1, 0);
+    }
+
+    // indicate if a valid record, ending by a given offset, starts at an offset of a segment
+    private boolean validAt(int segment, long offset, long end) throws IOException {
+        try {
+            Record record = this.read(position(segment, offset), position(segment, end));
+            return record != null && offsetOf(record.next) <= end;
+        } catch(CorruptRecordException e) {
+            return false;
+        }
+    }
+
+    // record in place that the message at a position has been received again
+    protected void updateReceived(long position, int receiveCount, long receivedTime) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER - HEADER_RECEIVE_COUNT);
+        buf.putInt(receiveCount);
+        buf.putLong(receivedTime);
+        buf.flip();
+
+        FileChannel ch = this.channel(segmentOf(position));
+        long p = offsetOf(position) + HEADER_RECEIVE_COUNT;
+        while(buf.hasRemaining()) {
+            p += ch.write(buf, p);
+        }
+    }
+
+    // read the record at a position when the tail isn't known, as when recovering it - returns null if there's no valid
+    // record there (the tail is where the valid records end). never creates segment files.
+    protected Record readRecovering(long position) {
+        int segment = segmentOf(position);
+        long offset = offsetOf(position);
+        if(offset >= this.segmentSize(segment) && new File(this.dir, segmentName(segment + 1)).exists()) {
+            // end of a segment that was rolled over
+            segment++;
+            offset = 0;
+        }
+
+        if(!new File(this.dir, segmentName(segment)).exists()) {
+            return null;
+        }
+
+        try {
+            long p = position(segment, offset);
+            return this.read(p, p + 1);
+        } catch(IOException e) {
+            return null;    // torn or corrupt - the valid records end here
+        }
+    }
+
+    // position of the first record at or after a position - past the end of a segment that has been rolled over is
+    // the start of the next one
+    private long skipSegmentEnd(long position, long tail) throws IOException {
+        while(position != tail && segmentOf(position) < segmentOf(tail) && offsetOf(position) >= this.channel(segmentOf(position)).size()) {
+            position = position(segmentOf(position) + 1, 0);
+        }
+
+        return position;
+    }
+
+    // read and sanity check the header of the record at an offset of a segment
+    private ByteBuffer readHeader(int segment, long offset) throws IOException {
+        ByteBuffer header = this.region(segment, offset, RECORD_HEADER);
+
+        int length = header.getInt(HEADER_LENGTH);
+        if(length < 0 || offset + RECORD_HEADER + length > this.channel(segment).size()) {
+            throw new CorruptRecordException("Corrupt record at offset " + offset + " of segment " + segment + " in " + this.dir);
+        }
+
+        if(header.get(HEADER_VERSION) != RECORD_VERSION || (header.get(HEADER_FLAGS) & ~KNOWN_FLAGS) != 0) {
+            throw new CorruptRecordException("Unsupported record format (version " + header.get(HEADER_VERSION) + ", flags " + header.get(HEADER_FLAGS)
+                + ") at offset " + offset + " of segment " + segment + " in " + this.dir);
+        }
+
+        return header;
+    }
+
+    // name of a segment file
+    private static String segmentName(int segment) {
+        return String.format("%020d.log", segment);
+    }
+
+    // checksum of a record, given its header at start of buf
+    private static int checksum(CRC32C crc, ByteBuffer buf, int start, ByteBuffer payload) {
+        crc.update(buf.duplicate().position(start + HEADER_LENGTH).limit(start + HEADER_CRC));
+        crc.update(buf.duplicate().position(start + CHECKED_START).limit(start + CHECKED_END));
+        crc.update(payload.duplicate());
+        return (int)crc.getValue();
+    }
+
+    // force everything written to the log up to tail out to disk. Segments before the one holding tail are
+    // forced once, the first time a force reaches past them.
+    protected synchronized void force(long tail) throws IOException {
+        int last = segmentOf(tail);
+        for(int segment = Math.max(this.forcedSegment, this.firstSegment); segment <= last; segment++) {
+            this.channel(segment).force(false);
+        }
+
+        this.forcedSegment = last;
+    }
+
+    // first segment of the log
+    protected int firstSegment() {
+        return this.firstSegment;
+    }
+
+    // lowest numbered segment file in the log's directory - 0 if there are none
+    protected int firstSegmentOnDisk() {
+        int first = Integer.MAX_VALUE;
+        File[] files = this.dir.listFiles();
+        if(files != null) {
+            for(File f: files) {
+                String name = f.getName();
+                if(name.length() == 24 && name.endsWith(".log")) {
+                    first = Math.min(first, Integer.parseInt(name.substring(0, 20)));
+                }
+            }
+        }
+
+        return (first == Integer.MAX_VALUE) ? 0 : first;
+    }
+
+    // size of a segment file (in bytes) - 0 if it doesn't exist
+    protected long segmentSize(int segment) {
+        return new File(this.dir, segmentName(segment)).length();
+    }
+
+    // let go of every segment before a given one - files this process has open for them are closed
+    protected synchronized void closeBefore(int segment) {
+        for(int s = this.firstSegment; s < segment; s++) {
+            this.mappings.remove(s);
+            FileChannel ch = this.channels.remove(s);
+            if(ch != null) {
+                try {
+                    ch.close();
+                } catch(IOException e) {
+                    // nothing left to do with it
+                }
+            }
+        }
+
+        if(segment > this.firstSegment) {
+            this.firstSegment = segment;
+        }
+    }
+
+    // drop every segment before a given one - their files are closed and deleted. returns the number of bytes freed.
+    // other processes only close theirs (closeBefore()), once they see the log's first segment has moved on.
+    protected synchronized long dropBefore(int segment) {
+        this.closeBefore(segment);
+
+        long freed = 0;
+        File[] files = this.dir.listFiles();
+        if(files == null) {
+            return 0;
+        }
+
+        for(File f: files) {
+            String name = f.getName();
+            if(name.length() == 24 && name.endsWith(".log") && Long.parseLong(name.substring(0, 20)) < segment) {
+                long size = f.length();
+                if(f.delete()) {
+                    freed += size;
+                }
+            }
+        }
+
+        return freed;
+    }
+
+    // close all open segment files of this log
+    protected void close() {
+        for(FileChannel ch: this.channels.values()) {
+            try {
+                ch.close();
+            } catch(IOException e) {
+                // nothing left to do with it
+            }
+        }
+
+        this.channels.clear();
+        this.mappings.clear();
+    }
+
+    // return length bytes of a segment from an offset - a slice of the segment's mapping, or a copy read from the file
+    // if they lie past the end of the mapping and the segment hasn't yet doubled in size since it was mapped. a
+    // consumer tailing a producer so reads past the mapping on almost every record, but the segment is only mapped
+    // again (whole, as far as it goes) each time it doubles - a mapping can't reach past the end of its file
+    private ByteBuffer region(int segment, long offset, int length) throws IOException {
+        long end = offset + length;
+        MappedByteBuffer map = this.mappings.get(segment);
+        if(map == null || map.capacity() < end) {
+            FileChannel ch = this.channel(segment);
+            long size = ch.size();
+            if(size < end) {
+                throw new EOFException("Unexpected end of segment " + segment + " in " + this.dir);
+            }
+
+            if(map != null && size < 2L * map.capacity()) {
+                ByteBuffer buf = ByteBuffer.allocate(length);
+                long p = offset;
+                while(buf.hasRemaining()) {
+                    int n = ch.read(buf, p);
+                    if(n < 0) {
+                        throw new EOFException("Unexpected end of segment " + segment + " in " + this.dir);
+                    }
+                    p += n;
+                }
+
+                return buf.flip();
+            }
+
+            map = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            this.mappings.put(segment, map);
+        }
+
+        return map.slice((int)offset, length);
+    }
+
+    // return the open file of a segment, opening (and creating) it if needed. an interrupt during I/O closes a
+    // FileChannel for every thread using it (ClosedByInterruptException), so a closed channel is opened again
+    private FileChannel channel(int segment) throws IOException {
+        FileChannel ch = this.channels.get(segment);
+        while(ch == null || !ch.isOpen()) {
+            File f = new File(this.dir, segmentName(segment));
+            FileChannel opened = FileChannel.open(f.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            // force() may open a segment at the same time as an append - keep whichever got in first
+            boolean installed = (ch == null) ? (this.channels.putIfAbsent(segment, opened) == null) : this.channels.replace(segment, ch, opened);
+            if(installed) {
+                ch = opened;
+            } else {
+                opened.close();
+                ch = this.channels.get(segment);
+            }
+        }
+
+        return ch;
+    }
+}
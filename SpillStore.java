@@ -0,0 +1,147 @@
+package com.QueueEmulator;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// SpillStore holds the overflow of a tiered in-memory queue on disk (see InMemoryQueueService's spilling constructor):
+// once a queue has its memory threshold of messages waiting in memory, further messages are appended here, and read
+// back in batches as the in-memory part drains.
+// Messages are kept in a SegmentLog, in a directory of their own per queue - the same segment files a file queue keeps
+// its messages in. Spilled messages are only read back in the order they were appended, so the store is just the log
+// plus a head and tail position, kept in memory: a spill store doesn't outlive its queue, and whatever a previous
+// process left in the directory is cleared when it is opened. Segments are dropped as soon as they have been read.
+//
+// Each record's payload carries the message's ID, creation time and visibility timeout ahead of its content:
+//     long message ID | long time created | long visibility timeout | content
+//
+// A spill store isn't thread-safe - its queue serialises access.
+
+class SpillStore {
+    private static final int ID = 0;
+    private static final int CREATED = 8;
+    private static final int TIMEOUT = 16;
+    private static final int PREFIX_SIZE = 24;
+
+    private final File dir;
+    private final SegmentLog log;
+
+    // position of the next record to read, and of the end of the log
+    private long head = 0;
+    private long tail = 0;
+
+    // number of messages in the store - read without the queue's lock to see if anything has been spilled
+    private volatile int count = 0;
+
+    // open a spill store in a given directory, clearing anything left in it
+    protected SpillStore(File dir) throws IOException {
+        this.dir = dir;
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create spill directory " + dir);
+        }
+
+        deleteSegments(dir);
+        this.log = new SegmentLog(dir);
+    }
+
+    // append messages at the tail, in one write per segment - returns false (appending none) if the write failed
+    protected boolean append(List<InMemoryMessage> msgs) {
+        ArrayList<ByteBuffer> payloads = new ArrayList<ByteBuffer>(msgs.size());
+        byte[] flags = new byte[msgs.size()];
+        for(int i = 0; i < flags.length; i++) {
+            InMemoryMessage msg = msgs.get(i);
+            Object content = msg.getMessageContent();
+            ByteBuffer bytes;
+            if(content instanceof ByteBuffer) {
+                bytes = (ByteBuffer)content;
+                flags[i] = SegmentLog.FLAG_BINARY;
+            } else {
+                bytes = ByteBuffer.wrap(String.valueOf(content).getBytes(StandardCharsets.UTF_8));
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(PREFIX_SIZE + bytes.remaining());
+            payload.putLong(ID, msg.getMessageID());
+            payload.putLong(CREATED, msg.getTimeCreated());
+            payload.putLong(TIMEOUT, msg.getVisibilityTimeout());
+            payload.put(PREFIX_SIZE, bytes, bytes.position(), bytes.remaining());
+            payloads.add(payload);
+        }
+
+        try {
+            this.tail = this.log.append(this.tail, payloads, flags, null);
+            this.count += msgs.size();
+            return true;
+        } catch(IOException e) {
+            System.err.println("Caught IOException while spilling messages to " + this.dir + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    // read up to max messages from the head, in the order they were appended. an I/O error ends the read early -
+    // the messages not read stay in the store, and are tried again on the next read
+    protected List<InMemoryMessage> read(int max) {
+        ArrayList<InMemoryMessage> msgs = new ArrayList<InMemoryMessage>(Math.min(max, this.count));
+        try {
+            while(msgs.size() < max && this.count > 0) {
+                SegmentLog.Record record = this.log.read(this.head, this.tail);
+                if(record == null) {
+                    break;
+                }
+
+                // the content is copied off the segment mapping, as the segment is dropped once it has been read
+                ByteBuffer payload = record.payload;
+                byte[] bytes = new byte[payload.remaining() - PREFIX_SIZE];
+                payload.get(payload.position() + PREFIX_SIZE, bytes);
+                Object content;
+                if(record.binary()) {
+                    content = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+                } else {
+                    content = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                InMemoryMessage msg = new InMemoryMessage(payload.getLong(payload.position() + TIMEOUT), content, payload.getLong(payload.position() + CREATED));
+                msg.setMessageID(payload.getLong(payload.position() + ID));
+                msgs.add(msg);
+
+                this.head = record.next;
+                this.count--;
+            }
+        } catch(IOException e) {
+            System.err.println("Caught IOException while reading spilled messages from " + this.dir + ": " + e.getMessage());
+        }
+
+        int headSegment = SegmentLog.segmentOf(this.head);
+        if(headSegment > this.log.firstSegment()) {
+            this.log.dropBefore(headSegment);
+        }
+
+        return msgs;
+    }
+
+    // number of messages in the store
+    protected int size() {
+        return this.count;
+    }
+
+    // close the store and delete its segments and directory
+    protected void close() {
+        this.log.close();
+        this.count = 0;
+        deleteSegments(this.dir);
+        this.dir.delete();
+    }
+
+    private static void deleteSegments(File dir) {
+        File[] files = dir.listFiles();
+        if(files == null) {
+            return;
+        }
+
+        for(File f: files) {
+            if(f.getName().endsWith(".log")) {
+                f.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.QueueEmulator;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Subscription runs a handler on every message received from a queue, up to concurrency messages at a time (see
+// QueueService.subscribe()).
+// One poller thread pulls messages in batches, long polling while the queue is empty, and hands each message to a
+// handler thread. Once a handler returns, its message is deleted.
+// The poller only pulls as many messages as there are idle handlers, so when handlers fall behind, it stops pulling.
+// Messages stay on the queue, visible to other consumers, instead of piling up in this process while their
+// visibility timeout runs down.
+//
+// Handlers run on virtual threads when the JVM has them (Java 21 on), so thousands of slow, blocking handlers cost a
+// few KB each rather than a platform thread each. On older JVMs they run on a pool of concurrency platform threads.
+// A handler still has to finish within the queue's visibility timeout, or its message is redelivered meanwhile.
+
+public class Subscription implements AutoCloseable {
+    // most messages pulled at once
+    private static final int MAX_BATCH = 10;
+
+    // longest a pull waits for a message (in milliseconds) - bounds how long close() waits for the poller
+    private static final long PULL_WAIT_TIME = 1000;
+
+    // how long the poller waits before pulling again after a pull threw (in milliseconds)
+    private static final long PULL_RETRY_DELAY = 1000;
+
+    private final QueueService service;
+    private final String queueName;
+    private final MessageHandler handler;
+
+    // one permit per idle handler - the poller takes permits before pulling, handlers give them back when done
+    private final Semaphore idleHandlers;
+
+    private final ExecutorService handlers;
+    private final Thread poller;
+    private volatile boolean active = true;
+
+    private final AtomicLong handledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    // start a subscription - see QueueService.subscribe()
+    protected Subscription(QueueService service, String queueName, MessageHandler handler, int concurrency) {
+        this.service = service;
+        this.queueName = queueName;
+        this.handler = handler;
+        this.idleHandlers = new Semaphore(concurrency);
+        this.handlers = newHandlerExecutor(queueName, concurrency);
+
+        this.poller = new Thread(this::poll, "Subscription-" + queueName);
+        this.poller.setDaemon(true);
+        this.poller.start();
+    }
+
+    // stop receiving messages - handlers already running finish (and their messages are deleted)
+    public void close() {
+        this.active = false;
+        this.poller.interrupt();
+        this.handlers.shutdown();
+    }
+
+    // wait up to timeout (in milliseconds) for a closed subscription's handlers to finish - returns true if they have
+    public boolean awaitTermination(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        this.poller.join(Math.max(timeout, 1));
+        return this.handlers.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS) && !this.poller.isAlive();
+    }
+
+    // indicate if this subscription is still receiving messages
+    public boolean isActive() {
+        return this.active;
+    }
+
+    // number of messages handled (and deleted)
+    public long getHandledCount() {
+        return this.handledCount.get();
+    }
+
+    // number of messages whose handler threw
+    public long getFailedCount() {
+        return this.failedCount.get();
+    }
+
+    // poller loop: wait for an idle handler, pull as many messages as there are idle handlers, and hand them out.
+    // a pull that throws is logged and retried after a delay - if the poller stops any other way, the subscription
+    // is no longer active
+    private void poll() {
+        try {
+            this.pollMessages();
+        } finally {
+            this.active = false;
+        }
+    }
+
+    private void pollMessages() {
+        while(this.active) {
+            try {
+                this.idleHandlers.acquire();
+            } catch(InterruptedException e) {
+                break;  // closed
+            }
+
+            int batch = 1 + this.idleHandlers.drainPermits();
+            if(batch > MAX_BATCH) {
+                this.idleHandlers.release(batch - MAX_BATCH);
+                batch = MAX_BATCH;
+            }
+
+            List<Message> messages;
+            try {
+                messages = this.service.pull(this.queueName, batch, PULL_WAIT_TIME);
+            } catch(RuntimeException e) {
+                this.idleHandlers.release(batch);
+                System.err.println("Caught " + e.getClass().getSimpleName() + " while pulling from queue <" + this.queueName + ">: " + e.getMessage());
+                try {
+                    Thread.sleep(PULL_RETRY_DELAY);
+                } catch(InterruptedException ie) {
+                    break;  // closed
+                }
+                continue;
+            }
+            this.idleHandlers.release(batch - messages.size());
+
+            for(Message msg: messages) {
+                try {
+                    this.handlers.execute(() -> this.handle(msg));
+                } catch(RejectedExecutionException e) {
+                    // closed while pulling - the message comes back once its visibility timeout runs out
+                    this.idleHandlers.release();
+                }
+            }
+        }
+    }
+
+    // run the handler on a message, and delete the message if it succeeds
+    private void handle(Message msg) {
+        try {
+            this.handler.handle(msg);
+            this.service.delete(msg.getReceiptHandle(), this.queueName);
+            this.handledCount.incrementAndGet();
+        } catch(Exception e) {
+            this.failedCount.incrementAndGet();
+            System.err.println("Caught " + e.getClass().getSimpleName() + " from handler of queue <" + this.queueName + ">: " + e.getMessage());
+        } finally {
+            this.idleHandlers.release();
+        }
+    }
+
+    // executor for handlers: one virtual thread per message where the JVM has them, else a pool of concurrency threads.
+    // the idle handler permits already bound how many messages are handled at once, so neither needs its own bound.
+    private static ExecutorService newHandlerExecutor(String queueName, int concurrency) {
+        ExecutorService executor = QueueExecutors.newVirtualThreadExecutor();
+        if(executor != null) {
+            return executor;
+        }
+
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            QueueExecutors.daemonThreads("Subscription-" + queueName));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
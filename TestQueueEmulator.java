@@ -3,7 +3,15 @@ package com.QueueEmulator;
 
 // this class runs a comprehensive test suite for InMemoryQueue's public API
 
-import java.util.Date;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import javax.management.ObjectName;
 
 public class TestQueueEmulator {
     public static void main(String[] args) throws InterruptedException {
@@ -284,6 +292,21 @@ public class TestQueueEmulator {
         }
         iqs2.printQueue(QUEUE_03);
 
+        // retrieved messages are in flight, but still on the queue until deleted
+        if(iqs2.getInFlightCount(QUEUE_03) == 2 && iqs2.getQueueMessageCount(QUEUE_03) == 4) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (incorrect in-flight message count on queue <" + QUEUE_03 + ">).");
+            return;
+        }
+
+        if(iqs2.getInFlightCount("NonExistentQueue") == -1 && iqs2.getInFlightCount(null) == -1) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (getInFlightCount() succeeded with invalid parameters).");
+            return;
+        }
+
         // Test message deletion
         System.out.println("\n========================================================\nTesting message delete() from queue..");
 
@@ -324,6 +347,7 @@ public class TestQueueEmulator {
         iqs2.delete(msg2.getReceiptHandle(), QUEUE_03);
         
         Message msg3 = iqs2.pull(QUEUE_03);
+        Long msg3Handle = msg3.getReceiptHandle();
         if(msg3.getMessageContent().equals("Test message 03") && iqs2.getQueueMessageCount(QUEUE_03) == 2) {
             System.out.println("PASSED.");
         } else {
@@ -345,8 +369,297 @@ public class TestQueueEmulator {
             System.out.println("FAILED (visibility timeout failure).");
             return;
         }
+
+        // msg3 and msg4 came out of visibility timeout, msg5 (a redelivery of msg3) went back in
+        if(iqs2.getInFlightCount(QUEUE_03) == 1 && iqs2.getQueueMessageCount(QUEUE_03) == 2) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (in-flight message count not updated on visibility timeout).");
+            return;
+        }
+
+        // the receipt handle msg3 was first issued went stale when its timeout ran out - only the redelivery's handle deletes it
+        iqs2.delete(msg3Handle, QUEUE_03);
+        if(iqs2.getQueueMessageCount(QUEUE_03) == 2 && !msg3Handle.equals(msg5.getReceiptHandle())) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (message deleted with a stale receipt handle).");
+            return;
+        }
+
+        iqs2.delete(msg5.getReceiptHandle(), QUEUE_03);
+        if(iqs2.getQueueMessageCount(QUEUE_03) == 1 && iqs2.getInFlightCount(QUEUE_03) == 0) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to delete redelivered message from queue <" + QUEUE_03 + ">).");
+            return;
+        }
         iqs2.printQueue(QUEUE_03);
 
+        // Test batch push/pull/delete
+        System.out.println("\n========================================================\nTesting batch push(), pull() and delete()..");
+        InMemoryQueueService iqs4 = new InMemoryQueueService();
+        String QUEUE_05 = "QUEUE_05";
+        iqs4.createQueue(QUEUE_05);
+
+        // an invalid entry fails on its own without failing the rest of the batch
+        boolean[] pushed = iqs4.pushBatch(Arrays.asList("Batch message 01", "", "Batch message 02", "Batch message 03"), QUEUE_05);
+        if(pushed[0] && !pushed[1] && pushed[2] && pushed[3] && iqs4.getQueueMessageCount(QUEUE_05) == 3) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to push message batch onto queue <" + QUEUE_05 + ">).");
+            return;
+        }
+
+        if(iqs4.pushBatch(Arrays.asList("Batch message 04"), "NonExistentQueue")[0] || iqs4.pull(null, 10).size() != 0 || iqs4.pull(QUEUE_05, 0).size() != 0) {
+            System.out.println("FAILED (batch operation succeeded with invalid parameters).");
+            return;
+        } else {
+            System.out.println("PASSED.");
+        }
+
+        List<Message> batch = iqs4.pull(QUEUE_05, 10);
+        if(batch.size() == 3 && batch.get(0).getMessageContent().equals("Batch message 01") && batch.get(2).getMessageContent().equals("Batch message 03") && iqs4.getInFlightCount(QUEUE_05) == 3) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to retrieve message batch correctly from queue <" + QUEUE_05 + ">).");
+            return;
+        }
+
+        boolean[] deleted = iqs4.deleteBatch(Arrays.asList(batch.get(0).getReceiptHandle(), 32168465L, batch.get(2).getReceiptHandle()), QUEUE_05);
+        if(deleted[0] && !deleted[1] && deleted[2] && iqs4.getQueueMessageCount(QUEUE_05) == 1) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to delete message batch correctly from queue <" + QUEUE_05 + ">).");
+            return;
+        }
+        iqs4.printQueue(QUEUE_05);
+
+        // Test long polling
+        System.out.println("\n========================================================\nTesting pull() with wait time (long polling)..");
+        long lp1 = new Date().getTime();
+        List<Message> polled = iqs4.pull(QUEUE_05, 10, 500);     // nothing visible: should wait out the wait time
+        long lp2 = new Date().getTime();
+        if(polled.isEmpty() && (lp2 - lp1) >= 500) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (long poll returned before wait time on empty queue <" + QUEUE_05 + ">).");
+            return;
+        }
+
+        Thread producer = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                    iqs4.push("Long poll message", QUEUE_05);
+                } catch (InterruptedException e) {
+                    System.err.println("Caught InterruptedException: " + e.getMessage());
+                }
+            }
+        });
+        producer.start();
+        polled = iqs4.pull(QUEUE_05, 10, 3000);      // should be woken by the push, well before wait time is up
+        long lp3 = new Date().getTime();
+        if(polled.size() == 1 && polled.get(0).getMessageContent().equals("Long poll message") && (lp3 - lp2) < 3000) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (long poll not woken by push onto queue <" + QUEUE_05 + ">).");
+            return;
+        }
+
+        // Test binary payloads
+        System.out.println("\n========================================================\nTesting binary payload push() and pull()..");
+        byte[] blob = new byte[4096];
+        new Random(4096).nextBytes(blob);
+        iqs4.pushPayload(ByteBuffer.wrap(blob), QUEUE_05);
+        Message binMsg = iqs4.pull(QUEUE_05);
+        if(binMsg != null && binMsg.getPayload().equals(ByteBuffer.wrap(blob)) && binMsg.getPayload().isReadOnly()) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (binary payload did not round trip through queue <" + QUEUE_05 + ">).");
+            return;
+        }
+
+        // Test queue metrics
+        System.out.println("\n========================================================\nTesting queue metrics (getQueueStats())..");
+        QueueStats stats = iqs4.getQueueStats(QUEUE_05);
+        if(stats != null && stats.getPushCount() == 5 && stats.getPullCount() == 5 && stats.getDeleteCount() == 2 && stats.getEmptyReceiveCount() == 1
+            && stats.getTotalMessages() == 3 && stats.getPushLatency().getCount() == 3 && iqs4.getQueueStats("NonExistentQueue") == null) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (wrong metrics for queue <" + QUEUE_05 + ">: " + stats + ").");
+            return;
+        }
+
+        // Test subscriptions
+        System.out.println("\n========================================================\nTesting subscribe()..");
+        String QUEUE_07 = "QUEUE_07";
+        iqs4.createQueue(QUEUE_07);
+        for(int i = 0; i < 20; i++) {
+            iqs4.push("Subscribed message " + i, QUEUE_07);
+        }
+
+        Subscription sub = iqs4.subscribe(QUEUE_07, m -> {
+            if(m.getMessageContent().equals("Subscribed message 13")) {
+                throw new Exception("handler failure (expected by test)");
+            }
+            Thread.sleep(10);
+        }, 4);
+        for(int i = 0; i < 300 && sub.getHandledCount() + sub.getFailedCount() < 20; i++) {
+            Thread.sleep(10);
+        }
+        sub.close();
+
+        if(sub.awaitTermination(2000) && sub.getHandledCount() == 19 && sub.getFailedCount() == 1 && iqs4.getQueueMessageCount(QUEUE_07) == 1
+            && iqs4.getInFlightCount(QUEUE_07) == 1 && iqs4.subscribe(QUEUE_07, null, 4) == null) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (subscription did not handle messages of queue <" + QUEUE_07 + "> correctly).");
+            return;
+        }
+
+        // Test asynchronous push/pull/delete - a long poll is completed by a later push
+        System.out.println("\n========================================================\nTesting pushAsync(), pullAsync() and deleteAsync()..");
+        String QUEUE_08 = "QUEUE_08";
+        iqs4.createQueue(QUEUE_08);
+        CompletableFuture<List<Message>> apulled = iqs4.pullAsync(QUEUE_08, 10, 2000);
+        boolean awaited = !apulled.isDone();
+        boolean asyncDone = awaited && iqs4.pushAsync("Async message", QUEUE_08).join() && apulled.join().size() == 1
+            && iqs4.deleteAsync(apulled.join().get(0).getReceiptHandle(), QUEUE_08).join() && iqs4.getQueueMessageCount(QUEUE_08) == 0;
+
+        // a long poll still waiting when its queue is deleted completes empty
+        CompletableFuture<List<Message>> orphaned = iqs4.pullAsync(QUEUE_08, 10, 60000);
+        iqs4.deleteQueue(QUEUE_08);
+        for(int k = 0; k < 200 && !orphaned.isDone(); k++) {
+            Thread.sleep(10);
+        }
+
+        if(asyncDone && orphaned.isDone() && orphaned.join().isEmpty()) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (asynchronous operations on queue <" + QUEUE_08 + "> did not complete correctly).");
+            return;
+        }
+
+        // Test off-heap storage - messages come back as they went in, and in order
+        System.out.println("\n========================================================\nTesting InMemoryQueueService OFF_HEAP storage..");
+        InMemoryQueueService iqs5 = new InMemoryQueueService(InMemoryQueueService.Storage.OFF_HEAP);
+        iqs5.createQueue(QUEUE_01);
+        iqs5.pushBatch(Arrays.asList("Off-heap message 01", "Off-heap message 02"), QUEUE_01);
+        iqs5.pushPayload(ByteBuffer.wrap(blob), QUEUE_01);
+        List<Message> offHeap = iqs5.pull(QUEUE_01, 10);
+        if(offHeap.size() == 3 && offHeap.get(0).getMessageContent().equals("Off-heap message 01") && offHeap.get(1).getMessageContent().equals("Off-heap message 02")
+            && offHeap.get(2).getPayload().equals(ByteBuffer.wrap(blob)) && iqs5.getQueueMessageCount(QUEUE_01) == 3 && iqs5.getInFlightCount(QUEUE_01) == 3) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (messages did not round trip through off-heap queue <" + QUEUE_01 + ">).");
+            return;
+        }
+
+        // Test byte limits - a full queue fails fast, and a blocked push goes through once a delete makes room
+        System.out.println("\n========================================================\nTesting byte limits and backpressure..");
+        String QUEUE_09 = "QUEUE_09";
+        iqs5.createQueue(QUEUE_09);
+        iqs5.setByteLimits(QUEUE_09, 16, 32);
+        PushStatus tooLarge = iqs5.push("Message over 16 bytes", QUEUE_09, Backpressure.FAIL, 0);
+        iqs5.push("Message 01 (16B)", QUEUE_09);
+        iqs5.push("Message 02 (16B)", QUEUE_09);
+        PushStatus full = iqs5.push("Message 03 (16B)", QUEUE_09, Backpressure.FAIL, 0);
+        Message held = iqs5.pull(QUEUE_09);
+        new Thread(() -> iqs5.delete(held.getReceiptHandle(), QUEUE_09)).start();
+        PushStatus blocked = iqs5.push("Message 03 (16B)", QUEUE_09, Backpressure.BLOCK, 2000);
+        if(tooLarge == PushStatus.MESSAGE_TOO_LARGE && full == PushStatus.QUEUE_FULL && blocked == PushStatus.OK
+            && iqs5.getQueueBytes(QUEUE_09) == 32 && iqs5.getQueueMessageCount(QUEUE_09) == 2) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (byte limits of queue <" + QUEUE_09 + "> were not applied correctly).");
+            return;
+        }
+
+        // Test tiered queues - messages past the memory threshold spill to disk, and come back in publish order
+        System.out.println("\n========================================================\nTesting InMemoryQueueService spilling to disk..");
+        InMemoryQueueService iqs6 = new InMemoryQueueService(InMemoryQueueService.Storage.HEAP, System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_spill_" + new Date().getTime(), 4);
+        iqs6.createQueue(QUEUE_01);
+        for(int k = 0; k < 10; k++) {
+            iqs6.push("Tiered message " + k, QUEUE_01);
+        }
+
+        int spilled = iqs6.getSpilledCount(QUEUE_01);
+        List<Message> tiered = iqs6.pull(QUEUE_01, 10);
+        boolean tieredOrder = tiered.size() == 10;
+        for(int k = 0; tieredOrder && k < 10; k++) {
+            tieredOrder = tiered.get(k).getMessageContent().equals("Tiered message " + k);
+        }
+
+        if(spilled == 6 && tieredOrder && iqs6.getSpilledCount(QUEUE_01) == 0 && iqs6.deleteQueue(QUEUE_01)) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (messages did not come back in order from spilling queue <" + QUEUE_01 + ">).");
+            return;
+        }
+
+        // Test queue attributes and changeVisibility() - an extended message stays hidden, one changed to 0 comes straight back
+        System.out.println("\n========================================================\nTesting queue attributes and changeVisibility()..");
+        String QUEUE_10 = "QUEUE_10";
+        iqs5.createQueue(QUEUE_10, new QueueAttributes().setVisibilityTimeout(100).setMaxInFlight(2));
+        iqs5.pushBatch(Arrays.asList("Message 01", "Message 02", "Message 03"), QUEUE_10);
+        List<Message> limited = iqs5.pull(QUEUE_10, 10);
+        Long extendedHandle = limited.isEmpty() ? null : limited.get(0).getReceiptHandle();
+        boolean extended = limited.size() == 2 && iqs5.changeVisibility(extendedHandle, QUEUE_10, 2000);
+        Thread.sleep(200);
+        Message redelivered = iqs5.pull(QUEUE_10);
+        boolean released = iqs5.changeVisibility(extendedHandle, QUEUE_10, 0);
+        Message returned = iqs5.pull(QUEUE_10);
+        if(extended && redelivered != null && redelivered.getMessageContent().equals("Message 02") && released
+            && returned != null && returned.getMessageContent().equals("Message 01") && !iqs5.changeVisibility(extendedHandle, QUEUE_10, 1000)
+            && iqs5.getQueueAttributes(QUEUE_10).getMaxInFlight() == 2) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (attributes of queue <" + QUEUE_10 + "> were not applied correctly).");
+            return;
+        }
+
+        // Test dead-letter queues - a message received maxReceiveCount times is moved on its next receive, and redrive moves it back
+        System.out.println("\n========================================================\nTesting dead-letter queues and redrive()..");
+        String QUEUE_12 = "QUEUE_12";
+        String QUEUE_13 = "QUEUE_13";
+        iqs5.createQueue(QUEUE_12);
+        iqs5.createQueue(QUEUE_13, new QueueAttributes().setRedrivePolicy(QUEUE_12, 2));
+        boolean cycleRejected = !iqs5.createQueue("QUEUE_14", new QueueAttributes().setRedrivePolicy("QUEUE_14", 1));
+        iqs5.push("Poison message", QUEUE_13);
+        for(int k = 0; k < 2; k++) {
+            Message poison = iqs5.pull(QUEUE_13);
+            iqs5.changeVisibility(poison == null ? null : poison.getReceiptHandle(), QUEUE_13, 0);
+        }
+        boolean deadLettered = iqs5.pull(QUEUE_13) == null && iqs5.getQueueMessageCount(QUEUE_12) == 1;
+        int redriven = iqs5.redrive(QUEUE_12, QUEUE_13, 10);
+        Message redrivenMsg = iqs5.pull(QUEUE_13);
+        if(cycleRejected && deadLettered && redriven == 1 && redrivenMsg != null && redrivenMsg.getMessageContent().equals("Poison message")
+            && iqs5.getQueueMessageCount(QUEUE_12) == 0) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (poison message on queue <" + QUEUE_13 + "> was not dead-lettered and redriven correctly).");
+            return;
+        }
+
+        // Test closing a service - its queues are deleted, their MBeans unregistered and long polls still waiting come back empty
+        System.out.println("\n========================================================\nTesting InMemoryQueueService close()..");
+        InMemoryQueueService iqs7 = new InMemoryQueueService();
+        iqs7.createQueue("Closed queue 01");
+        iqs7.createQueue("Closed queue 02");
+        iqs7.push("Message on a closed service", "Closed queue 01");
+        long registered = ManagementFactory.getPlatformMBeanServer().queryNames(ObjectName.WILDCARD, null).stream().filter(n -> String.valueOf(n.getKeyProperty("queue")).startsWith("\"Closed queue")).count();
+        CompletableFuture<List<Message>> closedPoll = iqs7.pullAsync("Closed queue 02", 10, 60000);
+        iqs7.close();
+        long unregistered = ManagementFactory.getPlatformMBeanServer().queryNames(ObjectName.WILDCARD, null).stream().filter(n -> String.valueOf(n.getKeyProperty("queue")).startsWith("\"Closed queue")).count();
+        List<Message> closedResult = closedPoll.completeOnTimeout(null, 2000, TimeUnit.MILLISECONDS).join();
+        if(registered == 2 && unregistered == 0 && closedResult != null && closedResult.isEmpty() && iqs7.queueCount() == 0 && iqs7.pull("Closed queue 01") == null) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (queues of a closed service were not released).");
+            return;
+        }
+
         // Test max queue service capacity limit
         System.out.println("\n========================================================\nTest maximum queue service capacity");
         InMemoryQueueService iqs3 = new InMemoryQueueService();
@@ -406,5 +719,312 @@ public class TestQueueEmulator {
         long t2 = new Date().getTime();
         long t3 = t2 - t1;
         System.out.println("(" + t3 + "ms)");
+
+        // -------------------- FileQueueService Tests --------------------
+        // Test file queue push/pull/delete
+        System.out.println("\n========================================================\nTesting FileQueueService push(), pull() and delete()..");
+        FileQueueService fqs = new FileQueueService(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2);
+        String QUEUE_06 = "QUEUE_06";
+        fqs.createQueue(QUEUE_06);
+        boolean[] fpushed = fqs.pushBatch(Arrays.asList("File message 01", "", "File message 02"), QUEUE_06);
+        if(fpushed[0] && !fpushed[1] && fpushed[2] && fqs.getQueueMessageCount(QUEUE_06) == 2) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to push messages onto file queue <" + QUEUE_06 + ">).");
+            return;
+        }
+
+        Message fmsg1 = fqs.pull(QUEUE_06);
+        Message fmsg2 = fqs.pull(QUEUE_06);
+        if(fmsg1 != null && fmsg1.getMessageContent().equals("File message 01") && fmsg2 != null && fmsg2.getMessageContent().equals("File message 02")
+            && fqs.pull(QUEUE_06) == null && fqs.getInFlightCount(QUEUE_06) == 2) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to pull messages in order from file queue <" + QUEUE_06 + ">).");
+            return;
+        }
+
+        fqs.pushPayload(ByteBuffer.wrap(blob), QUEUE_06);
+        Message fbin = fqs.pull(QUEUE_06);
+        if(fbin != null && fbin.getPayload().equals(ByteBuffer.wrap(blob)) && fbin.getPayload().isReadOnly()) {
+            fqs.delete(fbin.getReceiptHandle(), QUEUE_06);
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (binary payload did not round trip through file queue <" + QUEUE_06 + ">).");
+            return;
+        }
+
+        fqs.delete(fmsg1.getReceiptHandle(), QUEUE_06);
+        boolean[] fdeleted = fqs.deleteBatch(Arrays.asList(fmsg1.getReceiptHandle(), fmsg2.getReceiptHandle()), QUEUE_06);    // first handle was already used
+        if(!fdeleted[0] && fdeleted[1] && fqs.getQueueMessageCount(QUEUE_06) == 0 && fqs.getInFlightCount(QUEUE_06) == 0) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (failed to delete messages from file queue <" + QUEUE_06 + ">).");
+            return;
+        }
+
+        // Test asynchronous operations through the file queue's I/O stage
+        System.out.println("\n========================================================\nTesting FileQueueService pushAsync(), pullAsync() and deleteAsync()..");
+        CompletableFuture<List<Message>> fapulled = fqs.pullAsync(QUEUE_06, 10, 2000);
+        Thread.sleep(50);
+        boolean fawaited = !fapulled.isDone();
+        CompletableFuture<Boolean> fapushed1 = fqs.pushAsync("File async message 01", QUEUE_06);
+        CompletableFuture<Boolean> fapushed2 = fqs.pushAsync("File async message 02", QUEUE_06);
+        if(fawaited && fapushed1.join() && fapushed2.join() && !fqs.pushAsync("", QUEUE_06).join() && !fapulled.join().isEmpty()
+            && fqs.deleteAsync(fapulled.join().get(0).getReceiptHandle(), QUEUE_06).join() && !fqs.deleteAsync(fapulled.join().get(0).getReceiptHandle(), QUEUE_06).join()
+            && fqs.getQueueMessageCount(QUEUE_06) == 1) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (asynchronous operations on file queue <" + QUEUE_06 + "> did not complete correctly).");
+            return;
+        }
+
+        // Test attributes of a file queue - they are kept in the queue directory, and limit the messages on the queue
+        System.out.println("\n========================================================\nTesting FileQueueService queue attributes and changeVisibility()..");
+        String QUEUE_11 = "QUEUE_11";
+        fqs.createQueue(QUEUE_11, new QueueAttributes().setVisibilityTimeout(100).setMaxMessages(2));
+        fqs.pushBatch(Arrays.asList("File message 01", "File message 02"), QUEUE_11);
+        PushStatus ffull = fqs.push("File message 03", QUEUE_11, Backpressure.FAIL, 0);
+        List<Message> fpulled = fqs.pull(QUEUE_11, 10);
+        boolean fextended = fpulled.size() == 2 && fqs.changeVisibility(fpulled.get(1).getReceiptHandle(), QUEUE_11, 2000);
+        Thread.sleep(200);
+        Message fredelivered = fqs.pull(QUEUE_11);
+        if(ffull == PushStatus.QUEUE_FULL && fextended && fredelivered != null && fredelivered.getMessageContent().equals("File message 01")
+            && fqs.pull(QUEUE_11) == null && new File(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2 + "/" + QUEUE_11 + "/attributes").exists()) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (attributes of file queue <" + QUEUE_11 + "> were not applied correctly).");
+            return;
+        }
+
+        // Test interrupted file I/O - an interrupt closes a segment file for every thread, so it must be reopened
+        System.out.println("\n========================================================\nTesting FileQueueService after interrupted pushes..");
+        String QUEUE_15 = "QUEUE_15";
+        fqs.createQueue(QUEUE_15);
+        fqs.push("Before interrupts", QUEUE_15);
+        Thread interrupted = new Thread(() -> {
+            for(int k = 0; k < 2000; k++) {
+                fqs.push("Interrupted push " + k, QUEUE_15);
+                Thread.interrupted();
+            }
+        });
+        interrupted.start();
+        while(interrupted.isAlive()) {
+            interrupted.interrupt();
+        }
+        Message beforeInterrupts = fqs.pull(QUEUE_15);
+        if(fqs.push("After interrupts", QUEUE_15) && beforeInterrupts != null && beforeInterrupts.getMessageContent().equals("Before interrupts")) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (file queue <" + QUEUE_15 + "> did not recover from interrupted I/O).");
+            return;
+        }
+
+        // Test corrupt records - a record failing its checksum is dropped, and the records after it are still received
+        System.out.println("\n========================================================\nTesting FileQueueService with a corrupt record..");
+        String QUEUE_16 = "QUEUE_16";
+        fqs.createQueue(QUEUE_16);
+        fqs.pushBatch(Arrays.asList("Checked message 01", "Checked message 02", "Checked message 03"), QUEUE_16);
+        // flip a bit in the payload of the second record (each record is a 32 byte header and an 18 byte payload)
+        try (RandomAccessFile segment = new RandomAccessFile(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2 + "/" + QUEUE_16 + "/00000000000000000000.log", "rw")) {
+            segment.seek(50 + 32 + 5);
+            int b = segment.read();
+            segment.seek(50 + 32 + 5);
+            segment.write(b ^ 0x01);
+        } catch(IOException e) {
+            System.out.println("FAILED (could not corrupt segment of file queue <" + QUEUE_16 + ">: " + e.getMessage() + ").");
+            return;
+        }
+        List<Message> checked = fqs.pull(QUEUE_16, 10);
+        if(checked.size() == 2 && checked.get(0).getMessageContent().equals("Checked message 01") && checked.get(1).getMessageContent().equals("Checked message 03")
+            && fqs.getCorruptRecordCount(QUEUE_16) == 1 && fqs.getQueueMessageCount(QUEUE_16) == 2) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (corrupt record on file queue <" + QUEUE_16 + "> was not skipped).");
+            return;
+        }
+
+        // Test deleting a file queue - a long poll still waiting comes back empty, the queue's I/O stage stops and its files go
+        System.out.println("\n========================================================\nTesting FileQueueService deleteQueue()..");
+        String QUEUE_17 = "QUEUE_17";
+        fqs.createQueue(QUEUE_17);
+        CompletableFuture<List<Message>> fparked = fqs.pullAsync(QUEUE_17, 10, 60000);
+        Thread.sleep(100);
+        boolean fqueueDeleted = fqs.deleteQueue(QUEUE_17);
+        List<Message> fparkedResult = fparked.completeOnTimeout(null, 2000, TimeUnit.MILLISECONDS).join();
+        boolean stageStopped = true;
+        for(Thread t: Thread.getAllStackTraces().keySet()) {
+            stageStopped &= !t.getName().equals("FileQueueStage-" + QUEUE_17);
+        }
+        if(fqueueDeleted && fparkedResult != null && fparkedResult.isEmpty() && stageStopped && !fqs.push("After delete", QUEUE_17)
+            && !fqs.deleteQueue(QUEUE_17) && !new File(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2 + "/" + QUEUE_17).exists()) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (file queue <" + QUEUE_17 + "> was not deleted cleanly).");
+            return;
+        }
+
+        // Test two services on the same root - each sees the other's messages, deliveries and deletes, and a long poll on one
+        // is woken by a push on the other
+        System.out.println("\n========================================================\nTesting FileQueueService shared between services on the same root..");
+        String QUEUE_18 = "QUEUE_18";
+        fqs.createQueue(QUEUE_18);
+        FileQueueService fqsShared = new FileQueueService(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2);
+        fqs.push("Shared message 01", QUEUE_18);
+        Message shared = fqsShared.pull(QUEUE_18);
+        boolean sharedDelivery = shared != null && shared.getMessageContent().equals("Shared message 01") && fqs.getInFlightCount(QUEUE_18) == 1 && fqs.pull(QUEUE_18) == null;
+        boolean sharedDelete = sharedDelivery && fqs.deleteBatch(Arrays.asList(shared.getReceiptHandle()), QUEUE_18)[0] && fqsShared.getQueueMessageCount(QUEUE_18) == 0;
+        CompletableFuture<List<Message>> sharedPoll = CompletableFuture.supplyAsync(() -> fqsShared.pull(QUEUE_18, 1, 5000));
+        Thread.sleep(200);
+        long sharedPushed = System.currentTimeMillis();
+        fqs.push("Shared message 02", QUEUE_18);
+        List<Message> woken = sharedPoll.join();
+        long sharedWait = System.currentTimeMillis() - sharedPushed;
+        fqsShared.close();
+        if(sharedDelivery && sharedDelete && woken.size() == 1 && woken.get(0).getMessageContent().equals("Shared message 02") && sharedWait < 500) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (services sharing file queue <" + QUEUE_18 + "> did not see each other's changes).");
+            return;
+        }
+
+        // Test a queue shared with another process - the load generator pushes onto it from a second JVM while this one pushes
+        // and pulls, and the queue's lock keeps their log appends and index updates from interleaving
+        System.out.println("\n========================================================\nTesting FileQueueService shared with another process..");
+        String LOAD_QUEUE = "LoadTest_01";
+        Process loadGenerator;
+        try {
+            loadGenerator = new ProcessBuilder(System.getProperty("java.home") + "/bin/java", "-cp", System.getProperty("java.class.path"), "com.QueueEmulator.SQSEClient",
+                "--service", "file", "--root", System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2, "--producers", "2", "--consumers", "0", "--duration", "1", "--warmup", "0")
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+        } catch(IOException e) {
+            System.out.println("FAILED (could not start load generator: " + e.getMessage() + ").");
+            return;
+        }
+        fqs.createQueue(LOAD_QUEUE);
+        HashSet<String> ownReceived = new HashSet<String>();
+        int ownPushed = 0;
+        int foreignReceived = 0;
+        int malformed = 0;
+        boolean draining = false;
+        while(true) {
+            if(!draining && fqs.push("Cross-process message " + ownPushed, LOAD_QUEUE)) {
+                ownPushed++;
+            }
+            List<Message> received = fqs.pull(LOAD_QUEUE, 10);
+            ArrayList<Long> handles = new ArrayList<Long>();
+            for(Message m: received) {
+                String content = String.valueOf(m.getMessageContent());
+                if(content.startsWith("Cross-process message ")) {
+                    malformed += ownReceived.add(content) ? 0 : 1;   // received twice
+                } else if(content.matches("\\d+:x+")) {
+                    foreignReceived++;
+                } else {
+                    malformed++;
+                }
+                handles.add(m.getReceiptHandle());
+            }
+            fqs.deleteBatch(handles, LOAD_QUEUE);
+            if(draining && received.isEmpty()) {
+                break;
+            }
+            draining = !loadGenerator.isAlive();
+        }
+        if(loadGenerator.waitFor() == 0 && malformed == 0 && foreignReceived > 0 && ownReceived.size() == ownPushed && fqs.getCorruptRecordCount(LOAD_QUEUE) == 0
+            && fqs.getQueueMessageCount(LOAD_QUEUE) == 0) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (file queue <" + LOAD_QUEUE + "> shared with another process lost or garbled messages).");
+            return;
+        }
+
+        // Test durability modes - pushes made in SYNC and INTERVAL mode are published like any other, and invalid modes are refused
+        System.out.println("\n========================================================\nTesting FileQueueService durability modes..");
+        String QUEUE_19 = "QUEUE_19";
+        boolean durabilityChecked = false;
+        try {
+            new FileQueueService(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2, FileQueueService.Durability.INTERVAL, 0);
+        } catch(IllegalArgumentException e) {
+            durabilityChecked = true;
+        }
+        FileQueueService fqsSync = new FileQueueService(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2, FileQueueService.Durability.SYNC, 100);
+        fqsSync.createQueue(QUEUE_19);
+        boolean syncPushed = fqsSync.push("Synced message 01", QUEUE_19) && fqsSync.pushAsync("Synced message 02", QUEUE_19).join();
+        boolean intervalSet = fqsSync.setDurability(QUEUE_19, FileQueueService.Durability.INTERVAL, 20) && !fqsSync.setDurability("NonExistentQueue", FileQueueService.Durability.SYNC, 20)
+            && !fqsSync.setDurability(QUEUE_19, null, 20) && !fqsSync.setDurability(QUEUE_19, FileQueueService.Durability.INTERVAL, 0);
+        boolean[] intervalPushed = fqsSync.pushBatch(Arrays.asList("Interval message 01", "Interval message 02"), QUEUE_19);
+        Thread.sleep(100);    // a few background syncs
+        fqsSync.close();
+        List<Message> durable = fqs.pull(QUEUE_19, 10);
+        if(durabilityChecked && syncPushed && intervalSet && intervalPushed[0] && intervalPushed[1] && durable.size() == 4
+            && durable.get(0).getMessageContent().equals("Synced message 01") && durable.get(3).getMessageContent().equals("Interval message 02")) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (durability modes of file queue <" + QUEUE_19 + "> were not applied correctly).");
+            return;
+        }
+
+        // Test compaction - once every message in the first segment but one is deleted, the segment is dropped (the remaining
+        // message is relocated) and its file deleted, and the message is still delivered
+        System.out.println("\n========================================================\nTesting FileQueueService compact()..");
+        String QUEUE_20 = "QUEUE_20";
+        fqs.createQueue(QUEUE_20);
+        char[] filler = new char[200 * 1024];
+        Arrays.fill(filler, 'x');
+        String large = new String(filler);
+        for(int k = 0; k < 100; k++) {
+            fqs.push(k + ":" + large, QUEUE_20);     // a little over one 16MB segment
+        }
+        File firstSegment = new File(System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2 + "/" + QUEUE_20 + "/00000000000000000000.log");
+        boolean rolledOver = firstSegment.exists() && new File(firstSegment.getParent(), "00000000000000000001.log").exists();
+        List<Message> consumed = fqs.pull(QUEUE_20, 100);
+        for(int k = 1; k < consumed.size(); k++) {
+            fqs.delete(consumed.get(k).getReceiptHandle(), QUEUE_20);
+        }
+        fqs.changeVisibility(consumed.get(0).getReceiptHandle(), QUEUE_20, 0);
+        long freed = fqs.compact(QUEUE_20);
+        Message relocated = fqs.pull(QUEUE_20);
+        if(rolledOver && consumed.size() == 100 && freed > 16 * 1000 * 1000 && fqs.getReclaimedBytes(QUEUE_20) == freed && !firstSegment.exists()
+            && relocated != null && relocated.getMessageContent().equals("0:" + large) && fqs.getQueueMessageCount(QUEUE_20) == 1) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (consumed segment of file queue <" + QUEUE_20 + "> was not compacted).");
+            return;
+        }
+
+        // Test restarting - a queue reopened by a new service after a clean close keeps its messages and in-flight state, and
+        // one whose index was left broken by an unclean stop is recovered from its last checkpoint and the log after it
+        System.out.println("\n========================================================\nTesting FileQueueService restart and recovery..");
+        String restartRoot = System.getProperty("java.io.tmpdir") + "/TestQueueEmulator_" + t2 + "_restart";
+        String QUEUE_21 = "QUEUE_21";
+        FileQueueService fqsBefore = new FileQueueService(restartRoot);
+        fqsBefore.createQueue(QUEUE_21);
+        fqsBefore.pushBatch(Arrays.asList("Restart message 01", "Restart message 02", "Restart message 03", "Restart message 04"), QUEUE_21);
+        List<Message> beforeRestart = fqsBefore.pull(QUEUE_21, 2);
+        fqsBefore.delete(beforeRestart.get(0).getReceiptHandle(), QUEUE_21);
+        fqsBefore.close();
+        FileQueueService fqsAfter = new FileQueueService(restartRoot);
+        boolean reopened = fqsAfter.getQueueMessageCount(QUEUE_21) == 3 && fqsAfter.getInFlightCount(QUEUE_21) == 1;
+        fqsAfter.pushBatch(Arrays.asList("Restart message 05", "Restart message 06"), QUEUE_21);
+        // the service is never closed - break its index, as a stop part way through an update could
+        try (RandomAccessFile index = new RandomAccessFile(restartRoot + "/" + QUEUE_21 + "/index", "rw")) {
+            index.writeInt(0);
+        } catch(IOException e) {
+            System.out.println("FAILED (could not break index of file queue <" + QUEUE_21 + ">: " + e.getMessage() + ").");
+            return;
+        }
+        FileQueueService fqsRecovered = new FileQueueService(restartRoot);
+        boolean recovered = fqsRecovered.getQueueMessageCount(QUEUE_21) == 5 && fqsRecovered.getInFlightCount(QUEUE_21) == 1
+            && fqsRecovered.deleteBatch(Arrays.asList(beforeRestart.get(1).getReceiptHandle()), QUEUE_21)[0];
+        List<Message> afterRestart = fqsRecovered.pull(QUEUE_21, 10);
+        if(beforeRestart.size() == 2 && reopened && recovered && afterRestart.size() == 4 && afterRestart.get(0).getMessageContent().equals("Restart message 03")
+            && afterRestart.get(3).getMessageContent().equals("Restart message 06")) {
+            System.out.println("PASSED.");
+        } else {
+            System.out.println("FAILED (file queue <" + QUEUE_21 + "> was not restored correctly on restart).");
+            return;
+        }
+        fqsRecovered.close();
+        fqsAfter.close();
     }
 }
\ No newline at end of file
@@ -0,0 +1,238 @@
+package com.QueueEmulator;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+// VisibilityTimer tracks when in-flight messages come out of visibility timeout.
+// It is a hierarchical timing wheel with a 1ms tick: LEVELS wheels of WHEEL_SIZE buckets each, where a bucket on
+// level n spans WHEEL_SIZE^n ticks. An entry goes into the lowest level whose span covers its expiry time, and is
+// moved down a level each time the wheel below it completes a turn, until it expires from a level 0 bucket.
+// Scheduling and cancelling are O(1) (entries are linked into buckets intrusively, so neither allocates), and
+// advancing the timer only visits buckets that can hold expired entries.
+// A timer isn't thread-safe - its owner must serialise access (InMemoryQueue uses its consumer lock).
+//
+// The class also runs a shared background sweeper: owners registered with it are asked every SWEEP_INTERVAL ms to
+// expire their messages, so that expired messages go back on their queue (and wake long polling consumers) without
+// waiting for the next operation on that queue.
+
+class VisibilityTimer<E extends VisibilityTimer.Entry> {
+
+    // an entry that can be scheduled on a timer - in-flight messages extend this
+    static class Entry {
+        private long expiryTime;
+        private Entry timerNext;
+        private Entry timerPrev;
+        private int timerLevel = -1;   // -1 while not scheduled
+        private int timerBucket;
+
+        // indicate if this entry is currently scheduled on a timer
+        protected boolean scheduled() {
+            return this.timerLevel >= 0;
+        }
+    }
+
+    // an owner of a timer that the background sweeper expires messages for
+    interface Sweepable {
+        // expire messages due by now - should not block if the owner is busy
+        public void expire();
+    }
+
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+
+    // 5 levels of 64 buckets span 2^30 ticks (about 12 days) - entries further out wait on the last level and are re-placed
+    private static final int LEVELS = 5;
+
+    // interval between background sweeps (in milliseconds)
+    private static final long SWEEP_INTERVAL = 10;
+
+    // owners registered for background sweeping - held weakly, so a deleted queue drops out on its own
+    private static final CopyOnWriteArrayList<WeakReference<Sweepable>> sweepables = new CopyOnWriteArrayList<WeakReference<Sweepable>>();
+
+    static {
+        Thread sweeper = new Thread(new Runnable() {
+            public void run() {
+                while(true) {
+                    try {
+                        Thread.sleep(SWEEP_INTERVAL);
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+
+                    for(WeakReference<Sweepable> ref: sweepables) {
+                        Sweepable s = ref.get();
+                        if(s == null) {
+                            sweepables.remove(ref);
+                        } else {
+                            s.expire();
+                        }
+                    }
+                }
+            }
+        }, "VisibilityTimer");
+        sweeper.setDaemon(true);
+        sweeper.start();
+    }
+
+    // register an owner with the background sweeper
+    static void register(Sweepable s) {
+        sweepables.add(new WeakReference<Sweepable>(s));
+    }
+
+    // drop an owner from the background sweeper
+    static void unregister(Sweepable s) {
+        sweepables.removeIf(ref -> ref.get() == s);
+    }
+
+    // bucket list heads, per level
+    private final Entry[][] wheels = new Entry[LEVELS][WHEEL_SIZE];
+
+    // number of entries on each level - lets advance() skip over turns of empty wheels
+    private final int[] levelCounts = new int[LEVELS];
+
+    // last tick (time in ms) this timer has been advanced to
+    private long currentTick;
+
+    // number of entries scheduled on this timer
+    private int size = 0;
+
+    protected VisibilityTimer(long now) {
+        this.currentTick = now;
+    }
+
+    // schedule an entry to expire at a given time (in ms) - an entry that's already scheduled is moved
+    protected void schedule(E e, long expiryTime) {
+        Entry entry = e;
+        if(entry.scheduled()) {
+            this.unlink(entry);
+            this.size--;
+        }
+
+        entry.expiryTime = expiryTime;
+        this.place(entry, Math.max(expiryTime, this.currentTick + 1));
+        this.size++;
+    }
+
+    // remove an entry from this timer - returns false if it wasn't scheduled
+    protected boolean cancel(E e) {
+        if(!e.scheduled()) {
+            return false;
+        }
+
+        this.unlink(e);
+        this.size--;
+        return true;
+    }
+
+    // number of entries scheduled on this timer
+    protected int size() {
+        return this.size;
+    }
+
+    // advance this timer to a given time (in ms), handing every entry that has expired by then to expired
+    @SuppressWarnings("unchecked")
+    protected void advance(long now, Consumer<E> expired) {
+        while(this.currentTick < now) {
+            if(this.size == 0) {
+                this.currentTick = now;
+                return;
+            }
+
+            // nothing can expire or move down a level until the next turn of the lowest non-empty level - skip to it
+            int lowest = 0;
+            while(this.levelCounts[lowest] == 0) {
+                lowest++;
+            }
+
+            if(lowest > 0) {
+                int shift = WHEEL_BITS * lowest;
+                long turn = ((this.currentTick >> shift) + 1) << shift;
+                if(turn > now) {
+                    this.currentTick = now;
+                    return;
+                }
+
+                this.currentTick = turn - 1;
+            }
+
+            this.currentTick++;
+
+            // move entries down from every level whose lower wheels just completed a turn
+            for(int level = LEVELS - 1; level > 0; level--) {
+                int shift = WHEEL_BITS * level;
+                if((this.currentTick & ((1L << shift) - 1)) == 0) {
+                    this.cascade(level, (int)((this.currentTick >> shift) & WHEEL_MASK));
+                }
+            }
+
+            // every entry in the level 0 bucket for this tick is due
+            int bucket = (int)(this.currentTick & WHEEL_MASK);
+            Entry e = this.wheels[0][bucket];
+            while(e != null) {
+                Entry next = e.timerNext;
+                this.unlink(e);
+                this.size--;
+                expired.accept((E)e);
+                e = next;
+            }
+        }
+    }
+
+    // re-place all entries of a bucket on lower levels
+    private void cascade(int level, int bucket) {
+        Entry e = this.wheels[level][bucket];
+        while(e != null) {
+            Entry next = e.timerNext;
+            this.unlink(e);
+            this.place(e, Math.max(e.expiryTime, this.currentTick));
+            e = next;
+        }
+    }
+
+    // link an entry into the bucket that covers a given tick
+    private void place(Entry e, long tick) {
+        long delta = tick - this.currentTick;
+        int level = 0;
+        while(level < LEVELS - 1 && delta >= (1L << (WHEEL_BITS * (level + 1)))) {
+            level++;
+        }
+
+        if(delta >= (1L << (WHEEL_BITS * LEVELS))) {
+            // beyond the span of the last level - park the entry in its furthest bucket, it is re-placed from there
+            tick = this.currentTick + (1L << (WHEEL_BITS * LEVELS)) - 1;
+        }
+
+        int bucket = (int)((tick >> (WHEEL_BITS * level)) & WHEEL_MASK);
+        Entry head = this.wheels[level][bucket];
+        e.timerPrev = null;
+        e.timerNext = head;
+        if(head != null) {
+            head.timerPrev = e;
+        }
+
+        this.wheels[level][bucket] = e;
+        e.timerLevel = level;
+        e.timerBucket = bucket;
+        this.levelCounts[level]++;
+    }
+
+    // unlink an entry from its bucket
+    private void unlink(Entry e) {
+        if(e.timerPrev != null) {
+            e.timerPrev.timerNext = e.timerNext;
+        } else {
+            this.wheels[e.timerLevel][e.timerBucket] = e.timerNext;
+        }
+
+        if(e.timerNext != null) {
+            e.timerNext.timerPrev = e.timerPrev;
+        }
+
+        this.levelCounts[e.timerLevel]--;
+        e.timerNext = null;
+        e.timerPrev = null;
+        e.timerLevel = -1;
+    }
+}
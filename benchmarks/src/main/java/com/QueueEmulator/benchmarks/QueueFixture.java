@@ -0,0 +1,152 @@
+package com.QueueEmulator.benchmarks;
+
+import com.QueueEmulator.*;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import org.openjdk.jmh.annotations.*;
+
+// QueueFixture is the queue the benchmarks run against, shared by all benchmark threads: a queue on a given service
+// (memory, offheap - the in-memory service in OFF_HEAP storage mode - or file), holding depth messages of payloadSize characters, inFlightPercent of which are in flight (pulled but not deleted).
+// The queue is filled once per trial. Before each iteration it is brought back to its depth (the push benchmark grows
+// it) and its in-flight messages are pulled afresh - both services time messages out of flight after 5 seconds, so
+// messages held since an earlier iteration may be visible again.
+//
+// Both services allow 20000 messages in flight per queue, and the in-memory service 100000 messages per queue - the
+// fixture holds at most MAX_HELD messages in flight, and the largest depth leaves room for benchmark threads to push
+// and pull their batches, for up to 16 threads.
+
+@State(Scope.Benchmark)
+public class QueueFixture {
+    // queue the benchmarks use
+    static final String QUEUE = "benchmark";
+
+    // number of operations each thread runs per iteration of the single shot benchmarks
+    static final int BATCH = 500;
+
+    // most messages the fixture itself keeps in flight
+    static final int MAX_HELD = 10000;
+
+    // messages pushed or pulled per call while setting up
+    private static final int FILL_BATCH = 1000;
+
+    @Param({"memory", "offheap", "file"})
+    public String service;
+
+    @Param({"1", "1000", "10000", "90000"})
+    public int depth;
+
+    @Param({"64", "1024", "8192"})
+    public int payloadSize;
+
+    @Param({"0", "50", "90"})
+    public int inFlightPercent;
+
+    // durability mode of file queues (ignored by the in-memory service)
+    @Param({"NONE"})
+    public FileQueueService.Durability durability;
+
+    QueueService queues;
+    String message;
+
+    // root directory of a file queue service
+    private Path root;
+
+    // receipt handles of the messages the fixture keeps in flight
+    private final List<Long> held = new ArrayList<Long>();
+
+    @Setup(Level.Trial)
+    public void createQueue() throws IOException {
+        char[] content = new char[this.payloadSize];
+        Arrays.fill(content, 'm');
+        this.message = new String(content);
+
+        if(this.service.equals("memory") || this.service.equals("offheap")) {
+            InMemoryQueueService memoryQueues = new InMemoryQueueService(this.service.equals("offheap") ? InMemoryQueueService.Storage.OFF_HEAP : InMemoryQueueService.Storage.HEAP);
+            memoryQueues.createQueue(QUEUE);
+            this.queues = memoryQueues;
+        } else if(this.service.equals("file")) {
+            this.root = Files.createTempDirectory("queue-benchmark");
+            FileQueueService fileQueues = new FileQueueService(this.root.toString(), this.durability, 100);
+            fileQueues.createQueue(QUEUE);
+            this.queues = fileQueues;
+        } else {
+            throw new IllegalArgumentException("Unknown queue service: " + this.service);
+        }
+
+        this.push(this.depth);
+    }
+
+    @Setup(Level.Iteration)
+    public void settle() {
+        // release the messages held through the last iteration - any that timed out are visible again anyway
+        this.queues.deleteBatch(this.held, QUEUE);
+        this.held.clear();
+
+        long count = this.count();
+        if(count < this.depth) {
+            this.push(this.depth - count);
+        }
+
+        while(count > this.depth) {
+            List<Long> handles = this.pull((int)Math.min(count - this.depth, FILL_BATCH));
+            if(handles.isEmpty()) {
+                break;
+            }
+
+            this.queues.deleteBatch(handles, QUEUE);
+            count -= handles.size();
+        }
+
+        int inFlight = (int)Math.min((long)this.depth * this.inFlightPercent / 100, MAX_HELD);
+        while(this.held.size() < inFlight) {
+            List<Long> handles = this.pull(Math.min(inFlight - this.held.size(), FILL_BATCH));
+            if(handles.isEmpty()) {
+                break;
+            }
+
+            this.held.addAll(handles);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteQueue() throws IOException {
+        if(this.queues instanceof InMemoryQueueService) {
+            ((InMemoryQueueService)this.queues).close();
+        } else if(this.queues instanceof FileQueueService) {
+            ((FileQueueService)this.queues).close();
+        }
+
+        if(this.root != null) {
+            Files.walk(this.root).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    // push a number of messages onto the queue
+    void push(long count) {
+        while(count > 0) {
+            int n = (int)Math.min(count, FILL_BATCH);
+            this.queues.pushBatch(Collections.nCopies(n, this.message), QUEUE);
+            count -= n;
+        }
+    }
+
+    // pull up to a number of messages from the queue - returns their receipt handles
+    List<Long> pull(int count) {
+        List<Long> handles = new ArrayList<Long>();
+        for(Message msg: this.queues.pull(QUEUE, count)) {
+            handles.add(msg.getReceiptHandle());
+        }
+
+        return handles;
+    }
+
+    // number of messages on the queue, in flight or not
+    private long count() {
+        if(this.queues instanceof FileQueueService) {
+            return ((FileQueueService)this.queues).getQueueMessageCount(QUEUE);
+        }
+
+        return ((InMemoryQueueService)this.queues).getQueueMessageCount(QUEUE);
+    }
+}
@@ -0,0 +1,111 @@
+package com.QueueEmulator.benchmarks;
+
+import com.QueueEmulator.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// QueueServiceBenchmark measures push, pull and delete, and push-pull-delete round trips, on a QueueFixture.
+// push, pull and delete change the queue they run on, so they run as single shots of QueueFixture.BATCH operations
+// per thread, with the queue reset between shots - their scores are the time a thread takes for a whole batch.
+// The round trip leaves the queue as it found it, so it runs for a fixed time and scores round trips per second.
+// Thread counts are set on the JMH command line (-t) - see benchmarks/pom.xml.
+
+@Fork(1)
+public class QueueServiceBenchmark {
+
+    // messages a thread pulls in the pull benchmark - the thread pushes as many first, so that the queue can't run dry
+    // at small depths, and deletes them afterwards
+    @State(Scope.Thread)
+    public static class Pulls {
+        final long[] handles = new long[QueueFixture.BATCH];
+        int count;
+
+        @Setup(Level.Iteration)
+        public void prepare(QueueFixture fixture) {
+            fixture.push(QueueFixture.BATCH);
+            this.count = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void release(QueueFixture fixture) {
+            List<Long> received = new ArrayList<Long>(this.count);
+            for(int i = 0; i < this.count; i++) {
+                received.add(this.handles[i]);
+            }
+
+            fixture.queues.deleteBatch(received, QueueFixture.QUEUE);
+        }
+    }
+
+    // messages a thread deletes in the delete benchmark - pushed and pulled by the thread before each shot
+    @State(Scope.Thread)
+    public static class Deletes {
+        List<Long> handles = new ArrayList<Long>();
+        int next;
+
+        @Setup(Level.Iteration)
+        public void prepare(QueueFixture fixture) {
+            fixture.push(QueueFixture.BATCH);
+            this.handles = new ArrayList<Long>();
+            while(this.handles.size() < QueueFixture.BATCH) {
+                List<Long> pulled = fixture.pull(QueueFixture.BATCH - this.handles.size());
+                if(pulled.isEmpty()) {
+                    break;
+                }
+
+                this.handles.addAll(pulled);
+            }
+
+            this.next = 0;
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10, batchSize = QueueFixture.BATCH)
+    @Measurement(iterations = 20, batchSize = QueueFixture.BATCH)
+    public boolean push(QueueFixture fixture) {
+        return fixture.queues.push(fixture.message, QueueFixture.QUEUE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10, batchSize = QueueFixture.BATCH)
+    @Measurement(iterations = 20, batchSize = QueueFixture.BATCH)
+    public Message pull(QueueFixture fixture, Pulls pulls) {
+        Message msg = fixture.queues.pull(QueueFixture.QUEUE);
+        if(msg != null) {
+            pulls.handles[pulls.count++] = msg.getReceiptHandle();
+        }
+
+        return msg;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 10, batchSize = QueueFixture.BATCH)
+    @Measurement(iterations = 20, batchSize = QueueFixture.BATCH)
+    public void delete(QueueFixture fixture, Deletes deletes) {
+        Long handle = deletes.next < deletes.handles.size() ? deletes.handles.get(deletes.next++) : null;
+        fixture.queues.delete(handle, QueueFixture.QUEUE);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 5, time = 1)
+    @Measurement(iterations = 10, time = 1)
+    public Message roundTrip(QueueFixture fixture) {
+        fixture.queues.push(fixture.message, QueueFixture.QUEUE);
+        Message msg = fixture.queues.pull(QueueFixture.QUEUE);
+        if(msg != null) {
+            fixture.queues.delete(msg.getReceiptHandle(), QueueFixture.QUEUE);
+        }
+
+        return msg;
+    }
+}